@@ -18,16 +18,22 @@
 package com.noisepages.nettoyeur.bluetooth;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.UUID;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.noisepages.nettoyeur.common.OverflowPolicy;
 import com.noisepages.nettoyeur.common.RawByteReceiver;
+import com.noisepages.nettoyeur.common.RawByteSliceAdapter;
+import com.noisepages.nettoyeur.common.RawByteSliceReceiver;
+import com.noisepages.nettoyeur.transport.StreamReader;
+import com.noisepages.nettoyeur.transport.StreamTransport;
+import com.noisepages.nettoyeur.transport.StreamWriter;
+import com.noisepages.nettoyeur.transport.StreamWriterObserver;
 
 
 /**
@@ -47,15 +53,38 @@ public class BluetoothSppConnection {
                                                                                                 // change
                                                                                                 // this.
 
+  /**
+   * Default capacity of the write queue, in bytes.
+   */
+  public static final int DEFAULT_WRITE_QUEUE_CAPACITY = 4096;
+
+  private static final int WRITE_CHUNK_SIZE = 512;
+
   public static enum State {
     NONE, CONNECTING, CONNECTED
   }
 
   private final BluetoothAdapter btAdapter;
   private final BluetoothSppObserver sppObserver;
-  private final RawByteReceiver sppReceiver;
-  private final int bufferSize;
+  private final RawByteSliceReceiver sppReceiver;
+  private int minReadBufferSize;
+  private int maxReadBufferSize;
+  private long coalescingWindowMicros = 0;
   private volatile State connectionState = State.NONE;
+  private int writeQueueCapacity = DEFAULT_WRITE_QUEUE_CAPACITY;
+  private long flushDeadlineMillis = 0;
+  private OverflowPolicy writePolicy = OverflowPolicy.BLOCK;
+  private StreamWriterObserver writerObserver = null;
+  private boolean autoReconnect = false;
+  private long initialReconnectDelayMillis = 0;
+  private long maxReconnectDelayMillis = 0;
+  private int maxReconnectAttempts = 0;
+  private BluetoothSppReconnectObserver reconnectObserver = null;
+  private BluetoothDevice lastDevice = null;
+  private UUID lastUuid = null;
+  private ReconnectThread reconnectThread = null;
+  private int reconnectCount = 0;
+  private long lastOutageMillis = 0;
   private ConnectThread connectThread = null;
   private ConnectedThread connectedThread = null;
 
@@ -64,7 +93,8 @@ public class BluetoothSppConnection {
    * 
    * @param observer handling Bluetooth-related events
    * @param receiver handling incoming data from Bluetooth
-   * @param bufferSize buffer size for the input stream
+   * @param bufferSize buffer size for the input stream; see
+   *        {@link #configureReader(int, int, long)} for adaptive buffer sizes
    * @throws BluetoothUnavailableException
    * @throws BluetoothDisabledException
    */
@@ -78,8 +108,9 @@ public class BluetoothSppConnection {
       throw new BluetoothDisabledException();
     }
     this.sppObserver = observer;
-    this.sppReceiver = receiver;
-    this.bufferSize = bufferSize;
+    this.sppReceiver = RawByteSliceAdapter.adapt(receiver);
+    minReadBufferSize = bufferSize;
+    maxReadBufferSize = bufferSize;
   }
 
   /**
@@ -89,6 +120,111 @@ public class BluetoothSppConnection {
     return connectionState;
   }
 
+  /**
+   * Configures the receive loop. The read buffer starts at the minimum size and adapts to the
+   * observed burst length. With a positive coalescing window, reads that arrive within the window
+   * are delivered to the receiver in one callback. Takes effect on the next connection.
+   * 
+   * @param minBufferSize initial and minimum size of the read buffer
+   * @param maxBufferSize maximum size of the read buffer
+   * @param coalescingWindowMicros time window for coalescing reads; 0 disables coalescing
+   */
+  public synchronized void configureReader(int minBufferSize, int maxBufferSize,
+      long coalescingWindowMicros) {
+    if (minBufferSize <= 0 || maxBufferSize < minBufferSize) {
+      throw new IllegalArgumentException("Invalid buffer sizes");
+    }
+    minReadBufferSize = minBufferSize;
+    maxReadBufferSize = maxBufferSize;
+    this.coalescingWindowMicros = coalescingWindowMicros;
+  }
+
+  /**
+   * @return the reader of the current connection, for monitoring throughput, callback rate and
+   *         buffer size; null if there is no connection
+   */
+  public synchronized StreamReader getReader() {
+    return (connectedThread != null) ? connectedThread.reader : null;
+  }
+
+  /**
+   * Configures the write queue. Writes go into a bounded queue that a writer thread drains, so that
+   * a congested connection won't stall the threads that send data. Takes effect on the next
+   * connection.
+   * 
+   * @param capacity capacity of the write queue, in bytes
+   * @param flushDeadlineMillis max time that small writes may be held back in order to coalesce
+   *        them with subsequent writes; 0 means that queued data goes out right away
+   * @param policy BLOCK to make writers wait for room in the queue, or DROP_NEWEST to drop writes
+   *        when the queue is full
+   */
+  public synchronized void configureWriter(int capacity, long flushDeadlineMillis,
+      OverflowPolicy policy) {
+    if (policy == OverflowPolicy.DROP_OLDEST) {
+      throw new IllegalArgumentException("Unsupported policy: " + policy);
+    }
+    writeQueueCapacity = capacity;
+    this.flushDeadlineMillis = flushDeadlineMillis;
+    writePolicy = policy;
+  }
+
+  /**
+   * Sets an observer for queue depth, stall times and throughput of the writer thread.
+   * 
+   * @param observer may be null
+   */
+  public synchronized void setWriterObserver(StreamWriterObserver observer) {
+    writerObserver = observer;
+    if (connectedThread != null) {
+      connectedThread.writer.setObserver(observer);
+    }
+  }
+
+  /**
+   * Enables or disables automatic reconnects. When enabled, a connection that drops will be
+   * reestablished in the background, with exponential backoff between attempts. While reconnecting,
+   * the connection state is CONNECTING, and writes fail with {@link BluetoothNotConnectedException}.
+   * 
+   * @param enabled true if dropped connections are to be reestablished
+   * @param initialDelayMillis delay before the first attempt; must be positive when enabled
+   * @param maxDelayMillis upper limit for the delay between attempts, which doubles after each
+   *        failed attempt
+   * @param maxAttempts number of attempts before giving up, or 0 for unlimited attempts
+   */
+  public synchronized void setAutoReconnect(boolean enabled, long initialDelayMillis,
+      long maxDelayMillis, int maxAttempts) {
+    if (enabled && initialDelayMillis <= 0) {
+      // The delay doubles after each attempt, so it would never grow from zero.
+      throw new IllegalArgumentException("Initial delay must be positive: " + initialDelayMillis);
+    }
+    autoReconnect = enabled;
+    initialReconnectDelayMillis = initialDelayMillis;
+    maxReconnectDelayMillis = Math.max(initialDelayMillis, maxDelayMillis);
+    maxReconnectAttempts = maxAttempts;
+  }
+
+  /**
+   * @param observer for monitoring automatic reconnects; may be null
+   */
+  public synchronized void setReconnectObserver(BluetoothSppReconnectObserver observer) {
+    reconnectObserver = observer;
+  }
+
+  /**
+   * @return number of successful automatic reconnects since this object was created
+   */
+  public synchronized int getReconnectCount() {
+    return reconnectCount;
+  }
+
+  /**
+   * @return duration of the most recent outage that ended in a successful reconnect, in
+   *         milliseconds
+   */
+  public synchronized long getLastOutageMillis() {
+    return lastOutageMillis;
+  }
+
   /**
    * Stop all threads and close SPP connection.
    */
@@ -117,13 +253,16 @@ public class BluetoothSppConnection {
   public synchronized void connect(String addr, UUID uuid) throws IOException {
     cancelThreads();
     BluetoothDevice device = btAdapter.getRemoteDevice(addr);
+    lastDevice = device;
+    lastUuid = uuid;
     connectThread = new ConnectThread(device, uuid);
     connectThread.start();
     setState(State.CONNECTING);
   }
 
   /**
-   * Write bytes to the output stream of the SPP connection.
+   * Queue bytes for the output stream of the SPP connection. This method only blocks if the write
+   * queue is full and the overflow policy is BLOCK.
    * 
    * @param out buffer containing the bytes to be sent to the Bluetooth device
    * @param offset index of first byte to be sent
@@ -131,21 +270,37 @@ public class BluetoothSppConnection {
    * @throws IOException
    */
   public void write(byte[] out, int offset, int count) throws IOException {
-    ConnectedThread thread;
-    synchronized (this) {
-      if (connectionState != State.CONNECTED) {
-        throw new BluetoothNotConnectedException();
-      }
-      thread = connectedThread;
+    getConnectedThread().writer.write(out, offset, count);
+  }
+
+  /**
+   * Block until all queued bytes have been written to the output stream of the SPP connection.
+   * 
+   * @throws IOException
+   */
+  public void flush() throws IOException {
+    getConnectedThread().writer.flush();
+  }
+
+  /**
+   * @return number of bytes in the write queue
+   */
+  public synchronized int getWriteQueueDepth() {
+    return (connectedThread != null) ? connectedThread.writer.getQueueDepth() : 0;
+  }
+
+  private synchronized ConnectedThread getConnectedThread() throws BluetoothNotConnectedException {
+    if (connectionState != State.CONNECTED) {
+      throw new BluetoothNotConnectedException();
     }
-    thread.write(out, offset, count);
+    return connectedThread;
   }
 
   private synchronized void connected(BluetoothSocket socket, BluetoothDevice device)
       throws IOException {
     connectThread = null;
     cancelConnectedThread();
-    connectedThread = new ConnectedThread(socket);
+    connectedThread = new ConnectedThread(new BluetoothStreamTransport(socket));
     connectedThread.start();
     sppObserver.onDeviceConnected(device);
     setState(State.CONNECTED);
@@ -161,11 +316,73 @@ public class BluetoothSppConnection {
     sppObserver.onConnectionLost();
   }
 
+  // Reconnect observers are invoked without holding the lock of this object, so that they can
+  // safely write to the connection while other threads do the same.
+  private void connectionLost(ConnectedThread thread) {
+    BluetoothSppReconnectObserver observer;
+    synchronized (this) {
+      if (!autoReconnect || thread != connectedThread || lastDevice == null) {
+        connectionLost();
+        return;
+      }
+      cancelConnectedThread();
+      setState(State.CONNECTING);
+      reconnectThread = new ReconnectThread(lastDevice, lastUuid);
+      reconnectThread.start();
+      observer = reconnectObserver;
+    }
+    if (observer != null) {
+      observer.onConnectionInterrupted();
+    }
+  }
+
+  private void reconnected(ReconnectThread thread, BluetoothSocket socket, int attempts,
+      long outageMillis) throws IOException {
+    BluetoothSppReconnectObserver observer;
+    synchronized (this) {
+      if (thread != reconnectThread) {
+        socket.close(); // Canceled while connecting.
+        return;
+      }
+      reconnectThread = null;
+      connectedThread = new ConnectedThread(new BluetoothStreamTransport(socket));
+      connectedThread.start();
+      setState(State.CONNECTED);
+      reconnectCount++;
+      lastOutageMillis = outageMillis;
+      observer = reconnectObserver;
+    }
+    if (observer != null) {
+      observer.onReconnected(attempts, outageMillis);
+    }
+  }
+
+  private boolean reconnectFailed(ReconnectThread thread, int attempt, long nextDelayMillis) {
+    BluetoothSppReconnectObserver observer;
+    synchronized (this) {
+      if (thread != reconnectThread) return false;
+      if (maxReconnectAttempts > 0 && attempt >= maxReconnectAttempts) {
+        reconnectThread = null;
+        connectionLost();
+        return false;
+      }
+      observer = reconnectObserver;
+    }
+    if (observer != null) {
+      observer.onReconnectAttemptFailed(attempt, nextDelayMillis);
+    }
+    return true;
+  }
+
   private void cancelThreads() {
     if (connectThread != null) {
       connectThread.cancel();
       connectThread = null;
     }
+    if (reconnectThread != null) {
+      reconnectThread.cancel();
+      reconnectThread = null;
+    }
     cancelConnectedThread();
   }
 
@@ -213,42 +430,92 @@ public class BluetoothSppConnection {
     }
   }
 
-  private class ConnectedThread extends Thread {
-    private final BluetoothSocket socket;
-    private final InputStream inStream;
-    private final OutputStream outStream;
+  private class ReconnectThread extends Thread {
+    private final BluetoothDevice device;
+    private final UUID uuid;
+    private final long outageStart = SystemClock.elapsedRealtime();
+    private volatile boolean canceled = false;
+    private volatile BluetoothSocket socket = null;
 
-    private ConnectedThread(BluetoothSocket socket) throws IOException {
-      this.socket = socket;
-      inStream = socket.getInputStream();
-      outStream = socket.getOutputStream();
+    private ReconnectThread(BluetoothDevice device, UUID uuid) {
+      this.device = device;
+      this.uuid = uuid;
     }
 
     @Override
     public void run() {
-      byte[] buffer = new byte[bufferSize];
-      int nBytes;
-      while (true) {
+      long delay = initialReconnectDelayMillis;
+      for (int attempt = 1;; ++attempt) {
         try {
-          nBytes = inStream.read(buffer);
-          sppReceiver.onBytesReceived(nBytes, buffer);
+          Thread.sleep(delay);
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (canceled) return;
+        try {
+          socket = device.createRfcommSocketToServiceRecord(uuid);
+          socket.connect();
+          reconnected(this, socket, attempt, SystemClock.elapsedRealtime() - outageStart);
+          return;
         } catch (IOException e) {
-          connectionLost();
-          break;
+          closeSocket();
         }
+        delay = Math.min(delay * 2, maxReconnectDelayMillis);
+        if (canceled || !reconnectFailed(this, attempt, delay)) return;
       }
     }
 
-    private void write(byte[] buffer, int offset, int count) throws IOException {
-      outStream.write(buffer, offset, count);
+    private void closeSocket() {
+      BluetoothSocket s = socket;
+      if (s != null) {
+        try {
+          s.close();
+        } catch (IOException e) {
+          Log.e(TAG, "Unable to close socket", e);
+        }
+      }
+    }
+
+    private void cancel() {
+      canceled = true;
+      interrupt();
+      closeSocket();
+    }
+  }
+
+  private class ConnectedThread extends Thread {
+    private final StreamTransport transport;
+    private final StreamReader reader;
+    private final StreamWriter writer;
+
+    private ConnectedThread(StreamTransport transport) throws IOException {
+      this.transport = transport;
+      reader =
+          new StreamReader(transport.getInputStream(), sppReceiver, minReadBufferSize,
+              maxReadBufferSize, coalescingWindowMicros);
+      writer =
+          new StreamWriter(transport.getOutputStream(), writeQueueCapacity, WRITE_CHUNK_SIZE,
+              flushDeadlineMillis, writePolicy);
+      writer.setObserver(writerObserver);
+    }
+
+    @Override
+    public void run() {
+      try {
+        reader.readAll();
+      } catch (IOException e) {
+        // Connection failed or was closed; either way, it's lost.
+      }
+      connectionLost(this);
     }
 
     private void cancel() {
       try {
-        socket.close();
+        transport.close();
       } catch (IOException e) {
         Log.e(TAG, "Unable to close socket", e);
       }
+      writer.close(); // Closing the socket first releases a writer thread that is stuck in a write.
     }
   }
 }
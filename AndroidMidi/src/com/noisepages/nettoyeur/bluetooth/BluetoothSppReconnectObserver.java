@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.bluetooth;
+
+/**
+ * Callbacks for monitoring automatic reconnects of a Bluetooth SPP connection. While a connection
+ * is being reestablished, {@link BluetoothSppObserver} receives no events; if all attempts fail, it
+ * will receive {@link BluetoothSppObserver#onConnectionLost()}.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public interface BluetoothSppReconnectObserver {
+
+  /**
+   * Called when an established connection drops and reconnect attempts begin.
+   */
+  void onConnectionInterrupted();
+
+  /**
+   * Called when a reconnect attempt fails.
+   * 
+   * @param attempt number of the failed attempt, starting at 1
+   * @param nextDelayMillis delay until the next attempt
+   */
+  void onReconnectAttemptFailed(int attempt, long nextDelayMillis);
+
+  /**
+   * Called when the connection has been reestablished.
+   * 
+   * @param attempts number of attempts that it took
+   * @param outageMillis time from the loss of the connection until the successful reconnect
+   */
+  void onReconnected(int attempts, long outageMillis);
+}
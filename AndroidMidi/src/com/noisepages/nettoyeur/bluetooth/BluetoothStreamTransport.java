@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.bluetooth.BluetoothSocket;
+
+import com.noisepages.nettoyeur.transport.StreamTransport;
+
+/**
+ * Stream transport on top of a connected Bluetooth socket.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class BluetoothStreamTransport implements StreamTransport {
+
+  private final BluetoothSocket socket;
+
+  /**
+   * Constructor.
+   * 
+   * @param socket connected Bluetooth socket
+   */
+  public BluetoothStreamTransport(BluetoothSocket socket) {
+    this.socket = socket;
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return socket.getInputStream();
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    return socket.getOutputStream();
+  }
+
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+}
@@ -14,18 +14,19 @@
 
 package com.noisepages.nettoyeur.bluetooth.midi;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import com.noisepages.nettoyeur.bluetooth.BluetoothDisabledException;
 import com.noisepages.nettoyeur.bluetooth.BluetoothSppConnection;
 import com.noisepages.nettoyeur.bluetooth.BluetoothSppObserver;
+import com.noisepages.nettoyeur.bluetooth.BluetoothSppReconnectObserver;
 import com.noisepages.nettoyeur.bluetooth.BluetoothUnavailableException;
-import com.noisepages.nettoyeur.common.RawByteReceiver;
+import com.noisepages.nettoyeur.common.OverflowPolicy;
 import com.noisepages.nettoyeur.midi.FromWireConverter;
 import com.noisepages.nettoyeur.midi.MidiDevice;
 import com.noisepages.nettoyeur.midi.MidiReceiver;
-import com.noisepages.nettoyeur.midi.ToWireConverter;
+import com.noisepages.nettoyeur.transport.StreamReader;
+import com.noisepages.nettoyeur.transport.StreamWriterObserver;
 
 
 /**
@@ -35,45 +36,50 @@ import com.noisepages.nettoyeur.midi.ToWireConverter;
  */
 public class BluetoothMidiDevice implements MidiDevice {
 
-  private final BluetoothSppConnection btConnection;
-  private final ToWireConverter toWire = new ToWireConverter(new RawByteReceiver() {
-    private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-    private boolean inBlock = false;
+  private static final int MIN_READ_BUFFER_SIZE = 64;
+  private static final int MAX_READ_BUFFER_SIZE = 1024;
 
+  private final BluetoothSppConnection btConnection;
+  private final ResumableMidiOutput output = new ResumableMidiOutput() {
     @Override
-    public void onBytesReceived(int nBytes, byte[] buffer) {
-      if (inBlock) {
-        outputStream.write(buffer, 0, nBytes);
-      } else {
-        try {
-          btConnection.write(buffer, 0, nBytes);
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+    protected void write(byte[] buffer, int offset, int count) {
+      try {
+        btConnection.write(buffer, offset, count);
+      } catch (IOException e) {
+        e.printStackTrace();
       }
     }
+  };
+  private volatile BluetoothSppReconnectObserver reconnectObserver = null;
 
-    @Override
-    public boolean beginBlock() {
-      outputStream.reset();
-      inBlock = true;
-      return true;
-    }
+  private final BluetoothSppReconnectObserver connectionMonitor =
+      new BluetoothSppReconnectObserver() {
+        @Override
+        public void onConnectionInterrupted() {
+          output.beginOutage();
+          BluetoothSppReconnectObserver observer = reconnectObserver;
+          if (observer != null) {
+            observer.onConnectionInterrupted();
+          }
+        }
 
-    @Override
-    public void endBlock() {
-      if (inBlock) {
-        try {
-          btConnection.write(outputStream.toByteArray(), 0, outputStream.size());
-        } catch (IOException e) {
-          e.printStackTrace();
+        @Override
+        public void onReconnectAttemptFailed(int attempt, long nextDelayMillis) {
+          BluetoothSppReconnectObserver observer = reconnectObserver;
+          if (observer != null) {
+            observer.onReconnectAttemptFailed(attempt, nextDelayMillis);
+          }
         }
-        inBlock = false;
-      } else {
-        throw new IllegalStateException("Not in block mode");
-      }
-    }
-  });
+
+        @Override
+        public void onReconnected(int attempts, long outageMillis) {
+          output.endOutage();
+          BluetoothSppReconnectObserver observer = reconnectObserver;
+          if (observer != null) {
+            observer.onReconnected(attempts, outageMillis);
+          }
+        }
+      };
 
   /**
    * Constructor.
@@ -85,7 +91,10 @@ public class BluetoothMidiDevice implements MidiDevice {
    */
   public BluetoothMidiDevice(BluetoothSppObserver observer, MidiReceiver receiver)
       throws BluetoothUnavailableException, BluetoothDisabledException {
-    btConnection = new BluetoothSppConnection(observer, new FromWireConverter(receiver), 64);
+    btConnection =
+        new BluetoothSppConnection(observer, new FromWireConverter(receiver), MIN_READ_BUFFER_SIZE);
+    btConnection.configureReader(MIN_READ_BUFFER_SIZE, MAX_READ_BUFFER_SIZE, 0);
+    btConnection.setReconnectObserver(connectionMonitor);
   }
 
   /**
@@ -95,9 +104,109 @@ public class BluetoothMidiDevice implements MidiDevice {
    * @throws IOException
    */
   public void connect(String addr) throws IOException {
+    output.reset();
     btConnection.connect(addr);
   }
 
+  /**
+   * Enables or disables running status on the Bluetooth output, i.e., repeated status bytes of
+   * channel messages will be omitted. This raises the effective message throughput of the serial
+   * link by up to a third for dense note and controller streams. Disabled by default.
+   * 
+   * @param enabled true if running status is to be used
+   */
+  public void setRunningStatus(boolean enabled) {
+    output.setRunningStatus(enabled);
+  }
+
+  /**
+   * @return number of bytes saved on the Bluetooth output due to running status
+   */
+  public long getBytesSaved() {
+    return output.getBytesSaved();
+  }
+
+  /**
+   * Configures the receive loop of the Bluetooth input; takes effect on the next connection. By
+   * default, the read buffer adapts between 64 and 1024 bytes, without coalescing. See
+   * {@link BluetoothSppConnection#configureReader(int, int, long)}.
+   */
+  public void configureReader(int minBufferSize, int maxBufferSize, long coalescingWindowMicros) {
+    btConnection.configureReader(minBufferSize, maxBufferSize, coalescingWindowMicros);
+  }
+
+  /**
+   * @return the reader of the current connection, for monitoring throughput, callback rate and
+   *         buffer size; null if there is no connection
+   */
+  public StreamReader getReader() {
+    return btConnection.getReader();
+  }
+
+  /**
+   * Configures the write queue of the Bluetooth output; takes effect on the next connection. See
+   * {@link BluetoothSppConnection#configureWriter(int, long, OverflowPolicy)}.
+   */
+  public void configureWriter(int capacity, long flushDeadlineMillis, OverflowPolicy policy) {
+    btConnection.configureWriter(capacity, flushDeadlineMillis, policy);
+  }
+
+  /**
+   * Sets an observer for queue depth, stall times and throughput of the Bluetooth output.
+   * 
+   * @param observer may be null
+   */
+  public void setWriterObserver(StreamWriterObserver observer) {
+    btConnection.setWriterObserver(observer);
+  }
+
+  /**
+   * Enables or disables automatic reconnects to the last device. While a connection is being
+   * reestablished, outgoing messages are held in a buffer of the given size; once the buffer is
+   * full, further messages are dropped. After a successful reconnect, all notes are released, and
+   * the last known programs, controllers and pitch bends of all channels go out, followed by the
+   * buffered messages, so that no notes hang and the remote device ends up in the same state as if
+   * there had been no outage. See
+   * {@link BluetoothSppConnection#setAutoReconnect(boolean, long, long, int)}.
+   * 
+   * @param outageBufferSize max number of bytes to hold during an outage; 0 drops all messages
+   */
+  public void setAutoReconnect(boolean enabled, long initialDelayMillis, long maxDelayMillis,
+      int maxAttempts, int outageBufferSize) {
+    btConnection.setAutoReconnect(enabled, initialDelayMillis, maxDelayMillis, maxAttempts);
+    output.setOutageCapacity(outageBufferSize);
+  }
+
+  /**
+   * Sets an observer for reconnect attempts and outage durations.
+   * 
+   * @param observer may be null
+   */
+  public void setReconnectObserver(BluetoothSppReconnectObserver observer) {
+    reconnectObserver = observer;
+  }
+
+  /**
+   * @return number of successful automatic reconnects
+   */
+  public int getReconnectCount() {
+    return btConnection.getReconnectCount();
+  }
+
+  /**
+   * @return duration of the most recent outage that ended in a reconnect, in milliseconds
+   */
+  public long getLastOutageMillis() {
+    return btConnection.getLastOutageMillis();
+  }
+
+  /**
+   * @return number of bytes dropped during outages because the outage buffer was full
+   */
+  public long getDroppedBytes() {
+    return output.getDroppedBytes();
+  }
+
   /**
    * Stops all Bluetooth threads and closes the Bluetooth connection.
    */
@@ -110,7 +219,7 @@ public class BluetoothMidiDevice implements MidiDevice {
    * @return the MIDI receiver that sends messages to the Bluetooth output stream
    */
   public MidiReceiver getMidiOut() {
-    return toWire;
+    return output.getMidiOut();
   }
 
   /**
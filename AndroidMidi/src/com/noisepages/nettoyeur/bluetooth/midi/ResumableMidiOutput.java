@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.bluetooth.midi;
+
+import com.noisepages.nettoyeur.common.ByteArena;
+import com.noisepages.nettoyeur.common.RawByteReceiver;
+import com.noisepages.nettoyeur.midi.MidiReceiver;
+import com.noisepages.nettoyeur.midi.ToWireConverter;
+import com.noisepages.nettoyeur.midi.util.MidiStateTracker;
+
+/**
+ * MIDI output over a link that may drop out and come back, e.g., a Bluetooth connection with
+ * automatic reconnects. During an outage, output is held in a buffer of limited size; once the
+ * buffer overflows, everything is dropped until the end of the outage. After the outage, all notes
+ * are released, the tracked controller state is restored, and then the buffered output goes out.
+ * 
+ * @author Peter Brinkmann
+ */
+abstract class ResumableMidiOutput {
+
+  private static final int BLOCK_PAGE_SIZE = 1024;
+  private static final int ALL_NOTES_OFF = 123;
+
+  private final WireSender sender = new WireSender();
+  private final ToWireConverter toWire = new ToWireConverter(sender);
+  private final MidiStateTracker stateTracker = new MidiStateTracker(toWire);
+
+  private class WireSender implements RawByteReceiver {
+    private final ByteArena blockArena = new ByteArena(BLOCK_PAGE_SIZE);
+    private final ByteArena outageArena = new ByteArena(BLOCK_PAGE_SIZE);
+    private boolean inBlock = false;
+    private boolean outage = false;
+    private boolean outageFull = false;
+    private int outageCapacity = 0;
+    private long droppedBytes = 0;
+
+    @Override
+    public synchronized void onBytesReceived(int nBytes, byte[] buffer) {
+      if (inBlock) {
+        blockArena.write(buffer, 0, nBytes);
+      } else {
+        send(buffer, 0, nBytes);
+      }
+    }
+
+    private void send(byte[] buffer, int offset, int count) {
+      if (outage) {
+        if (keepDuringOutage(count)) {
+          outageArena.write(buffer, offset, count);
+        }
+        return;
+      }
+      write(buffer, offset, count);
+    }
+
+    // Once the outage buffer overflows, everything is dropped until the end of the outage, so the
+    // buffer holds a gapless prefix of the output and no running status message is kept after its
+    // status byte was dropped.
+    private boolean keepDuringOutage(int count) {
+      if (!outageFull && outageArena.size() + count <= outageCapacity) {
+        return true;
+      }
+      outageFull = true;
+      droppedBytes += count;
+      return false;
+    }
+
+    @Override
+    public synchronized boolean beginBlock() {
+      blockArena.reset();
+      inBlock = true;
+      return true;
+    }
+
+    @Override
+    public synchronized void endBlock() {
+      if (!inBlock) {
+        throw new IllegalStateException("Not in block mode");
+      }
+      inBlock = false;
+      if (outage) {
+        // Blocks are kept or dropped as a whole, regardless of page boundaries.
+        if (keepDuringOutage(blockArena.size())) {
+          for (int i = 0; i < blockArena.getPageCount(); ++i) {
+            outageArena.write(blockArena.getPage(i), 0, blockArena.getPageLength(i));
+          }
+        }
+      } else {
+        for (int i = 0; i < blockArena.getPageCount(); ++i) {
+          send(blockArena.getPage(i), 0, blockArena.getPageLength(i));
+        }
+      }
+      blockArena.reset();
+    }
+
+    private synchronized void beginOutage() {
+      outage = true;
+      outageFull = false;
+    }
+
+    private synchronized void cancelOutage() {
+      outage = false;
+      outageFull = false;
+      outageArena.reset();
+    }
+
+    // Lets output through again, but keeps the buffered output for flushOutage.
+    private synchronized void endOutage() {
+      outage = false;
+    }
+
+    // Sends the buffered output and returns true if some output was dropped.
+    private synchronized boolean flushOutage() {
+      for (int i = 0; i < outageArena.getPageCount(); ++i) {
+        send(outageArena.getPage(i), 0, outageArena.getPageLength(i));
+      }
+      outageArena.reset();
+      boolean dropped = outageFull;
+      outageFull = false;
+      return dropped;
+    }
+  }
+
+  /**
+   * Writes bytes to the link; only called while there is no outage.
+   */
+  protected abstract void write(byte[] buffer, int offset, int count);
+
+  /**
+   * @return the MIDI receiver that sends messages to the link
+   */
+  MidiReceiver getMidiOut() {
+    return stateTracker;
+  }
+
+  /**
+   * Forgets the tracked state and any buffered output, e.g., before connecting to a new device.
+   */
+  void reset() {
+    toWire.resetRunningStatus();
+    stateTracker.reset();
+    sender.cancelOutage();
+  }
+
+  void setRunningStatus(boolean enabled) {
+    toWire.setRunningStatus(enabled);
+  }
+
+  long getBytesSaved() {
+    return toWire.getBytesSaved();
+  }
+
+  /**
+   * @param capacity max number of bytes to hold during an outage; 0 drops all output
+   */
+  void setOutageCapacity(int capacity) {
+    synchronized (sender) {
+      sender.outageCapacity = capacity;
+    }
+  }
+
+  /**
+   * @return number of bytes dropped during outages because the outage buffer was full
+   */
+  long getDroppedBytes() {
+    synchronized (sender) {
+      return sender.droppedBytes;
+    }
+  }
+
+  /**
+   * Starts holding output in the outage buffer.
+   */
+  void beginOutage() {
+    // The first message held for the resumed link must carry its status byte. Lock order matches
+    // that of regular output: converter first, then sender.
+    synchronized (toWire) {
+      synchronized (sender) {
+        toWire.resetRunningStatus();
+        sender.beginOutage();
+      }
+    }
+  }
+
+  /**
+   * Resumes output after an outage. Notes that were sounding when the link went down may have lost
+   * their note offs, so all notes are released first. Then the tracked state goes out, so that
+   * buffered notes play with the right programs and controllers on a device that was reset during
+   * the outage, followed by the buffered output. If some output was dropped, notes are released
+   * and the state is restored once more, since the buffered output ends with stale state and
+   * possibly with notes whose note offs are lost.
+   */
+  void endOutage() {
+    synchronized (toWire) {
+      synchronized (sender) {
+        sender.endOutage();
+        releaseNotesAndRestoreState();
+        if (sender.flushOutage()) {
+          releaseNotesAndRestoreState();
+        }
+        toWire.resetRunningStatus(); // The buffered output went past the converter.
+      }
+    }
+  }
+
+  private void releaseNotesAndRestoreState() {
+    toWire.resetRunningStatus();
+    for (int ch = 0; ch < 16; ++ch) {
+      toWire.onControlChange(ch, ALL_NOTES_OFF, 0);
+    }
+    stateTracker.replay(toWire);
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Growable, reusable byte buffer made up of fixed-size pages. Pages are allocated on demand and
+ * kept across calls to {@link #reset()}, so that a steady stream of blocks of similar size produces
+ * no garbage. Since pages are never copied, they can be handed to transports as they are, e.g., one
+ * USB bulk transfer per page if the page size equals the max packet size of the endpoint.
+ * 
+ * This class is not thread-safe.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class ByteArena {
+
+  private final int pageSize;
+  private final List<byte[]> pages = new ArrayList<byte[]>();
+  private int size = 0;
+
+  /**
+   * Constructor.
+   * 
+   * @param pageSize size of each page in bytes
+   */
+  public ByteArena(int pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+    }
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * Discards the contents of the arena but keeps its pages for reuse.
+   */
+  public void reset() {
+    size = 0;
+  }
+
+  /**
+   * @return number of bytes in the arena
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return size of each page in bytes
+   */
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  /**
+   * Appends one byte.
+   * 
+   * @param value to be appended
+   */
+  public void write(byte value) {
+    int index = size / pageSize;
+    if (index == pages.size()) {
+      pages.add(new byte[pageSize]);
+    }
+    pages.get(index)[size % pageSize] = value;
+    ++size;
+  }
+
+  /**
+   * Appends a slice of the given buffer.
+   * 
+   * @param buffer holding the bytes to be appended
+   * @param offset index of the first byte to be appended
+   * @param length number of bytes to be appended
+   */
+  public void write(byte[] buffer, int offset, int length) {
+    while (length > 0) {
+      int pageOffset = size % pageSize;
+      int index = size / pageSize;
+      if (index == pages.size()) {
+        pages.add(new byte[pageSize]);
+      }
+      int n = Math.min(length, pageSize - pageOffset);
+      System.arraycopy(buffer, offset, pages.get(index), pageOffset, n);
+      size += n;
+      offset += n;
+      length -= n;
+    }
+  }
+
+  /**
+   * @return number of pages holding content
+   */
+  public int getPageCount() {
+    return (size + pageSize - 1) / pageSize;
+  }
+
+  /**
+   * Returns the page with the given index. The array remains owned by the arena and will be
+   * overwritten once the arena is reset and reused.
+   * 
+   * @param index of the page, ranging from 0 to getPageCount() - 1
+   * @return page holding content
+   */
+  public byte[] getPage(int index) {
+    return pages.get(index);
+  }
+
+  /**
+   * @param index of the page, ranging from 0 to getPageCount() - 1
+   * @return number of bytes of content in the given page
+   */
+  public int getPageLength(int index) {
+    return Math.min(pageSize, size - index * pageSize);
+  }
+}
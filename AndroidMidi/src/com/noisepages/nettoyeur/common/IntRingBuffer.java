@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue of int values that supports any number of concurrent producers and
+ * consumers. The implementation follows Dmitry Vyukov's bounded MPMC queue: every slot carries a
+ * sequence number that tells producers and consumers whether the slot is ready for them, so the
+ * only contention is a compare-and-set on the head or tail counter. Neither offering nor polling
+ * allocates.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class IntRingBuffer {
+
+  private final int mask;
+  private final int[] values;
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong(0); // Next position to write to.
+  private final AtomicLong head = new AtomicLong(0); // Next position to read from.
+
+  /**
+   * Constructor.
+   * 
+   * @param capacity minimum capacity of the queue; will be rounded up to a power of two
+   */
+  public IntRingBuffer(int capacity) {
+    if (capacity < 1 || capacity > (1 << 30)) {
+      throw new IllegalArgumentException("Capacity out of range: " + capacity);
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    mask = size - 1;
+    values = new int[size];
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; ++i) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * @return the capacity of the queue
+   */
+  public int capacity() {
+    return values.length;
+  }
+
+  /**
+   * @return the number of values in the queue; only an estimate if other threads are active
+   */
+  public int size() {
+    long size = tail.get() - head.get();
+    return (int) Math.max(0, Math.min(size, values.length));
+  }
+
+  /**
+   * @return true if the queue is empty; only an estimate if other threads are active
+   */
+  public boolean isEmpty() {
+    return tail.get() <= head.get();
+  }
+
+  /**
+   * Adds a value to the queue if there is room.
+   * 
+   * @param value to be added
+   * @return true if the value was added, false if the queue was full
+   */
+  public boolean offer(int value) {
+    long pos = tail.get();
+    while (true) {
+      int index = (int) pos & mask;
+      long diff = sequences.get(index) - pos;
+      if (diff == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          values[index] = value;
+          sequences.set(index, pos + 1); // Publishes the value.
+          return true;
+        }
+        pos = tail.get();
+      } else if (diff < 0) {
+        return false;
+      } else {
+        pos = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Removes up to max values from the queue and writes them to the given array.
+   * 
+   * @param dest array receiving the values, starting at index 0
+   * @param max maximum number of values to be removed
+   * @return number of values removed
+   */
+  public int drainTo(int[] dest, int max) {
+    int n = 0;
+    while (n < max) {
+      long pos = head.get();
+      int index = (int) pos & mask;
+      long diff = sequences.get(index) - (pos + 1);
+      if (diff == 0) {
+        if (head.compareAndSet(pos, pos + 1)) {
+          dest[n++] = values[index];
+          sequences.set(index, pos + values.length); // Frees the slot for the next round.
+        }
+      } else if (diff < 0) {
+        break;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Removes the oldest value from the queue, if any.
+   * 
+   * @return true if a value was removed
+   */
+  public boolean discard() {
+    while (true) {
+      long pos = head.get();
+      int index = (int) pos & mask;
+      long diff = sequences.get(index) - (pos + 1);
+      if (diff == 0) {
+        if (head.compareAndSet(pos, pos + 1)) {
+          sequences.set(index, pos + values.length);
+          return true;
+        }
+      } else if (diff < 0) {
+        return false;
+      }
+    }
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.common;
+
+/**
+ * Policies for handling writes to a bounded output queue that is full.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public enum OverflowPolicy {
+  /**
+   * Block the writing thread until there is room in the queue.
+   */
+  BLOCK,
+
+  /**
+   * Discard the oldest entry in the queue to make room for the new one.
+   */
+  DROP_OLDEST,
+
+  /**
+   * Discard the new entry.
+   */
+  DROP_NEWEST
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.common;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Adapter that makes a basic {@link RawByteReceiver} look like a {@link RawByteSliceReceiver}.
+ * Slices that don't start at the beginning of their array are copied into a reusable scratch
+ * buffer, so the adapter allocates only when it encounters a slice that is larger than any slice
+ * it has seen before.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class RawByteSliceAdapter implements RawByteSliceReceiver {
+
+  private final RawByteReceiver receiver;
+  private byte[] scratch = new byte[16];
+
+  /**
+   * Returns the given receiver if it already implements {@link RawByteSliceReceiver}; wraps it in
+   * an adapter otherwise.
+   * 
+   * @param receiver to be adapted
+   * @return receiver that accepts slices and NIO buffers
+   */
+  public static RawByteSliceReceiver adapt(RawByteReceiver receiver) {
+    return (receiver instanceof RawByteSliceReceiver) ? (RawByteSliceReceiver) receiver
+        : new RawByteSliceAdapter(receiver);
+  }
+
+  public RawByteSliceAdapter(RawByteReceiver receiver) {
+    this.receiver = receiver;
+  }
+
+  @Override
+  public void onBytesReceived(int nBytes, byte[] buffer) {
+    receiver.onBytesReceived(nBytes, buffer);
+  }
+
+  @Override
+  public void onBytesReceived(byte[] buffer, int offset, int length) {
+    if (offset == 0) {
+      receiver.onBytesReceived(length, buffer);
+    } else {
+      ensureCapacity(length);
+      System.arraycopy(buffer, offset, scratch, 0, length);
+      receiver.onBytesReceived(length, scratch);
+    }
+  }
+
+  @Override
+  public void onBytesReceived(ByteBuffer buffer) {
+    int length = buffer.remaining();
+    if (buffer.hasArray()) {
+      onBytesReceived(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+      buffer.position(buffer.limit());
+    } else {
+      ensureCapacity(length);
+      buffer.get(scratch, 0, length);
+      receiver.onBytesReceived(length, scratch);
+    }
+  }
+
+  private void ensureCapacity(int length) {
+    if (scratch.length < length) {
+      scratch = new byte[length];
+    }
+  }
+
+  @Override
+  public boolean beginBlock() {
+    return receiver.beginBlock();
+  }
+
+  @Override
+  public void endBlock() {
+    receiver.endBlock();
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.common;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Extension of {@link RawByteReceiver} that accepts arbitrary slices of byte arrays as well as NIO
+ * buffers, so that input threads can hand their native read buffers straight through without
+ * copying. Use {@link RawByteSliceAdapter#adapt(RawByteReceiver)} to obtain an instance of this
+ * interface for receivers that only implement the basic interface.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public interface RawByteSliceReceiver extends RawByteReceiver {
+
+  /**
+   * Processes a slice of the given buffer.
+   * 
+   * @param buffer buffer to be processed
+   * @param offset index of the first byte to be processed
+   * @param length number of bytes to be processed
+   */
+  void onBytesReceived(byte[] buffer, int offset, int length);
+
+  /**
+   * Processes the remaining bytes of the given buffer, i.e., the bytes between its position and its
+   * limit. When this method returns, the position of the buffer will be equal to its limit.
+   * 
+   * @param buffer buffer to be processed; may be a heap buffer or a direct buffer
+   */
+  void onBytesReceived(ByteBuffer buffer);
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.noisepages.nettoyeur.common;
+
+
+/**
+ * Callback for raw bytes that are to be sent at a given time rather than right away, e.g., by an
+ * output stage that holds messages until they are due.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public interface TimestampedRawByteReceiver {
+
+  /**
+   * Processes the given buffer. Timestamps of successive calls must not decrease.
+   * 
+   * @param nBytes number of bytes to be processed, starting at the beginning of the buffer
+   * @param buffer buffer to be processed; only valid for the duration of the call
+   * @param timestampNanos time at which the bytes are due, in terms of System.nanoTime
+   */
+  void onBytesReceived(int nBytes, byte[] buffer, long timestampNanos);
+
+  /**
+   * Discards all bytes that have been received but not yet sent.
+   */
+  void discardPending();
+}
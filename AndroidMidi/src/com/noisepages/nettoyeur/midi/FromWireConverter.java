@@ -14,24 +14,22 @@
 
 package com.noisepages.nettoyeur.midi;
 
-import com.noisepages.nettoyeur.common.RawByteReceiver;
+import java.nio.ByteBuffer;
+
+import com.noisepages.nettoyeur.common.RawByteSliceReceiver;
 
 
 /**
- * Converter from MIDI wire format to MIDI events.
+ * Converter from MIDI wire format to MIDI events. Decoding is done by a {@link PackedMidiDecoder},
+ * so this class never allocates, and running status is kept across interleaved system real-time
+ * bytes. Input may come as slices of arrays or as NIO buffers, so that callers don't need to copy.
  * 
  * @author Peter Brinkmann (peter.brinkmann@gmail.com)
  */
-public class FromWireConverter implements RawByteReceiver {
-
-  private static enum State {
-    NOTE_OFF, NOTE_ON, POLY_TOUCH, CONTROL_CHANGE, PROGRAM_CHANGE, AFTERTOUCH, PITCH_BEND, NONE
-  }
+public class FromWireConverter implements RawByteSliceReceiver {
 
   private final MidiReceiver midiReceiver;
-  private State midiState = State.NONE;
-  private int channel;
-  private int firstByte;
+  private final PackedMidiDecoder decoder = new PackedMidiDecoder();
 
   public FromWireConverter(MidiReceiver midiReceiver) {
     this.midiReceiver = midiReceiver;
@@ -39,75 +37,35 @@ public class FromWireConverter implements RawByteReceiver {
 
   @Override
   public void onBytesReceived(int nBytes, byte[] buffer) {
-    for (int i = 0; i < nBytes; i++) {
+    onBytesReceived(buffer, 0, nBytes);
+  }
+
+  @Override
+  public void onBytesReceived(byte[] buffer, int offset, int length) {
+    for (int i = offset, end = offset + length; i < end; i++) {
       processByte(buffer[i]);
     }
   }
 
-  private void processByte(int b) {
-    if (b < 0) {
-      midiState = State.values()[(b >> 4) & 0x07];
-      if (midiState != State.NONE) {
-        channel = b & 0x0f;
-        firstByte = -1;
-      } else {
-        midiReceiver.onRawByte((byte) b);
-      }
+  @Override
+  public void onBytesReceived(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      onBytesReceived(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      buffer.position(buffer.limit());
     } else {
-      switch (midiState) {
-        case NOTE_OFF:
-          if (firstByte < 0) {
-            firstByte = b;
-          } else {
-            midiReceiver.onNoteOff(channel, firstByte, b);
-            firstByte = -1;
-          }
-          break;
-        case NOTE_ON:
-          if (firstByte < 0) {
-            firstByte = b;
-          } else {
-            midiReceiver.onNoteOn(channel, firstByte, b);
-            firstByte = -1;
-          }
-          break;
-        case POLY_TOUCH:
-          if (firstByte < 0) {
-            firstByte = b;
-          } else {
-            midiReceiver.onPolyAftertouch(channel, firstByte, b);
-            firstByte = -1;
-          }
-          break;
-        case CONTROL_CHANGE:
-          if (firstByte < 0) {
-            firstByte = b;
-          } else {
-            midiReceiver.onControlChange(channel, firstByte, b);
-            firstByte = -1;
-          }
-          break;
-        case PROGRAM_CHANGE:
-          midiReceiver.onProgramChange(channel, b);
-          break;
-        case AFTERTOUCH:
-          midiReceiver.onAftertouch(channel, b);
-          break;
-        case PITCH_BEND:
-          if (firstByte < 0) {
-            firstByte = b;
-          } else {
-            midiReceiver.onPitchBend(channel, ((b << 7) | firstByte) - 8192);
-            firstByte = -1;
-          }
-          break;
-        default /* State.NONE */:
-          midiReceiver.onRawByte((byte) b);
-          break;
+      while (buffer.hasRemaining()) {
+        processByte(buffer.get());
       }
     }
   }
 
+  private void processByte(byte b) {
+    int msg = decoder.decodeByte(b);
+    if (msg != PackedMidiDecoder.NO_MESSAGE) {
+      PackedMidiDecoder.dispatch(msg, midiReceiver);
+    }
+  }
+
   @Override
   public boolean beginBlock() {
     return midiReceiver.beginBlock();
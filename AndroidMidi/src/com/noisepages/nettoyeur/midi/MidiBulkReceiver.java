@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.noisepages.nettoyeur.midi;
+
+/**
+ * Extension of {@link MidiReceiver} for receivers that can take a sequence of raw MIDI bytes in one
+ * call, e.g., the payload of a large sysex message. Senders should check for this interface and use
+ * {@link Util#sendRawBytes(MidiReceiver, byte[], int, int)}, which falls back to individual onRawByte
+ * calls for plain MIDI receivers.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public interface MidiBulkReceiver extends MidiReceiver {
+
+  /**
+   * Handles a sequence of raw MIDI bytes; equivalent to calling onRawByte for each byte.
+   * 
+   * @param buffer holding the bytes; only valid for the duration of the call
+   * @param offset index of the first byte
+   * @param count number of bytes
+   */
+  void onRawBytes(byte[] buffer, int offset, int count);
+
+  /**
+   * Helper for sending raw bytes to any MIDI receiver.
+   */
+  public static class Util {
+
+    private Util() {}
+
+    /**
+     * Sends raw bytes to the given receiver, in one call if it is a bulk receiver and one byte at a
+     * time otherwise.
+     */
+    public static void sendRawBytes(MidiReceiver receiver, byte[] buffer, int offset, int count) {
+      if (receiver instanceof MidiBulkReceiver) {
+        ((MidiBulkReceiver) receiver).onRawBytes(buffer, offset, count);
+      } else {
+        for (int i = offset; i < offset + count; ++i) {
+          receiver.onRawByte(buffer[i]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.midi;
+
+import java.nio.ByteBuffer;
+
+import com.noisepages.nettoyeur.common.RawByteSliceReceiver;
+
+
+/**
+ * Converter from MIDI wire format to batches of packed MIDI messages. Each incoming buffer results
+ * in at most one callback, no matter how many messages it contains.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class PackedFromWireConverter implements RawByteSliceReceiver {
+
+  private final PackedMidiReceiver packedReceiver;
+  private final PackedMidiDecoder decoder = new PackedMidiDecoder();
+  private int[] messages;
+
+  public PackedFromWireConverter(PackedMidiReceiver packedReceiver) {
+    this(packedReceiver, 64);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param packedReceiver receiving batches of packed messages
+   * @param initialCapacity initial size of the message array; it will grow if a larger buffer comes
+   *        in
+   */
+  public PackedFromWireConverter(PackedMidiReceiver packedReceiver, int initialCapacity) {
+    this.packedReceiver = packedReceiver;
+    messages = new int[initialCapacity];
+  }
+
+  @Override
+  public void onBytesReceived(int nBytes, byte[] buffer) {
+    onBytesReceived(buffer, 0, nBytes);
+  }
+
+  @Override
+  public void onBytesReceived(byte[] buffer, int offset, int length) {
+    ensureCapacity(length);
+    deliver(decoder.decode(buffer, offset, length, messages));
+  }
+
+  @Override
+  public void onBytesReceived(ByteBuffer buffer) {
+    ensureCapacity(buffer.remaining());
+    deliver(decoder.decode(buffer, messages));
+  }
+
+  private void ensureCapacity(int length) {
+    if (messages.length < length) {
+      messages = new int[length];
+    }
+  }
+
+  private void deliver(int count) {
+    if (count > 0) {
+      packedReceiver.onMessagesReceived(count, messages);
+    }
+  }
+
+  @Override
+  public boolean beginBlock() {
+    return packedReceiver.beginBlock();
+  }
+
+  @Override
+  public void endBlock() {
+    packedReceiver.endBlock();
+  }
+}
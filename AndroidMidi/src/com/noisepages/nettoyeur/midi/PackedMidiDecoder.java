@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.midi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocation-free decoder from MIDI wire format to packed MIDI messages. Channel messages are packed
+ * like the short messages of a standard MIDI file, i.e., status | (data1 << 8) | (data2 << 16), with
+ * data bytes exactly as they appear on the wire. All other bytes (system messages, real-time
+ * messages, and stray data bytes) are passed through individually as raw bytes, i.e., as the byte
+ * value with the {@link #RAW_BYTE} flag set.
+ * 
+ * Decoding is driven by a table of data lengths indexed by the upper nibble of the status byte.
+ * Running status is kept across system real-time bytes (0xf8-0xff), which may legally appear
+ * anywhere in the stream, and it is cancelled by system common and system exclusive bytes
+ * (0xf0-0xf7).
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class PackedMidiDecoder {
+
+  /**
+   * Flag marking a packed value as a single raw byte rather than a channel message.
+   */
+  public static final int RAW_BYTE = 0x01000000;
+
+  /**
+   * Return value of {@link #decodeByte(byte)} if the byte did not complete a message.
+   */
+  public static final int NO_MESSAGE = -1;
+
+  // Number of data bytes by upper nibble of the status byte; zero means no channel message.
+  private static final int[] dataLength = new int[] {
+  /* 0x0_ - 0x7_ */0, 0, 0, 0, 0, 0, 0, 0, // Data bytes
+      /* 0x8_ */2, /* 0x9_ */2, /* 0xa_ */2, /* 0xb_ */2, /* 0xc_ */1, /* 0xd_ */1, /* 0xe_ */2, // Channel
+      /* 0xf_ */0 // System messages
+      };
+
+  private int status = 0; // Current running status, or 0 if there is none.
+  private int firstByte = -1;
+
+  /**
+   * Decodes a buffer in one pass. Since every message consumes at least one byte, the message array
+   * needs to hold at least as many entries as there are bytes to be decoded.
+   * 
+   * @param buffer holding MIDI bytes in wire format
+   * @param offset index of the first byte to be decoded
+   * @param length number of bytes to be decoded
+   * @param messages array receiving the packed messages, starting at index 0
+   * @return number of packed messages written to the message array
+   */
+  public int decode(byte[] buffer, int offset, int length, int[] messages) {
+    if (messages.length < length) {
+      throw new IllegalArgumentException("Message array too small: " + messages.length + " < "
+          + length);
+    }
+    int count = 0;
+    for (int i = offset, end = offset + length; i < end; ++i) {
+      int msg = decodeByte(buffer[i]);
+      if (msg != NO_MESSAGE) {
+        messages[count++] = msg;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Decodes the remaining bytes of an NIO buffer in one pass; see
+   * {@link #decode(byte[], int, int, int[])}. When this method returns, the position of the buffer
+   * will be equal to its limit.
+   * 
+   * @param buffer holding MIDI bytes in wire format; may be a heap buffer or a direct buffer
+   * @param messages array receiving the packed messages, starting at index 0
+   * @return number of packed messages written to the message array
+   */
+  public int decode(ByteBuffer buffer, int[] messages) {
+    int length = buffer.remaining();
+    if (buffer.hasArray()) {
+      int count =
+          decode(buffer.array(), buffer.arrayOffset() + buffer.position(), length, messages);
+      buffer.position(buffer.limit());
+      return count;
+    }
+    if (messages.length < length) {
+      throw new IllegalArgumentException("Message array too small: " + messages.length + " < "
+          + length);
+    }
+    int count = 0;
+    while (buffer.hasRemaining()) {
+      int msg = decodeByte(buffer.get());
+      if (msg != NO_MESSAGE) {
+        messages[count++] = msg;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Decodes a single byte.
+   * 
+   * @param value MIDI byte in wire format
+   * @return packed message if the byte completed one, {@link #NO_MESSAGE} otherwise
+   */
+  public int decodeByte(byte value) {
+    int b = value & 0xff;
+    if (b >= 0x80) {
+      if (b >= 0xf8) {
+        // System real-time messages may be interleaved with anything, including running status.
+        return RAW_BYTE | b;
+      }
+      firstByte = -1;
+      if (dataLength[b >> 4] > 0) {
+        status = b;
+        return NO_MESSAGE;
+      } else {
+        status = 0;
+        return RAW_BYTE | b;
+      }
+    } else if (status == 0) {
+      return RAW_BYTE | b;
+    } else if (dataLength[status >> 4] == 1) {
+      return status | (b << 8);
+    } else if (firstByte < 0) {
+      firstByte = b;
+      return NO_MESSAGE;
+    } else {
+      int msg = status | (firstByte << 8) | (b << 16);
+      firstByte = -1;
+      return msg;
+    }
+  }
+
+  /**
+   * Cancels running status and discards any partial message.
+   */
+  public void reset() {
+    status = 0;
+    firstByte = -1;
+  }
+
+  /**
+   * @param msg packed message
+   * @return true if the packed message holds a single raw byte
+   */
+  public static boolean isRawByte(int msg) {
+    return (msg & RAW_BYTE) != 0;
+  }
+
+  /**
+   * @param msg packed message
+   * @return status byte of a channel message, or the value of a raw byte
+   */
+  public static int getStatus(int msg) {
+    return msg & 0xff;
+  }
+
+  /**
+   * @param msg packed message
+   * @return first data byte
+   */
+  public static int getData1(int msg) {
+    return (msg >> 8) & 0xff;
+  }
+
+  /**
+   * @param msg packed message
+   * @return second data byte
+   */
+  public static int getData2(int msg) {
+    return (msg >> 16) & 0xff;
+  }
+
+  /**
+   * Dispatches a packed message to a MIDI receiver.
+   * 
+   * @param msg packed message
+   * @param receiver to be invoked
+   */
+  public static void dispatch(int msg, MidiReceiver receiver) {
+    int status = msg & 0xff;
+    if ((msg & RAW_BYTE) != 0) {
+      receiver.onRawByte((byte) status);
+      return;
+    }
+    int channel = status & 0x0f;
+    int data1 = (msg >> 8) & 0xff;
+    int data2 = (msg >> 16) & 0xff;
+    switch (status >> 4) {
+      case 0x08:
+        receiver.onNoteOff(channel, data1, data2);
+        break;
+      case 0x09:
+        receiver.onNoteOn(channel, data1, data2);
+        break;
+      case 0x0a:
+        receiver.onPolyAftertouch(channel, data1, data2);
+        break;
+      case 0x0b:
+        receiver.onControlChange(channel, data1, data2);
+        break;
+      case 0x0c:
+        receiver.onProgramChange(channel, data1);
+        break;
+      case 0x0d:
+        receiver.onAftertouch(channel, data1);
+        break;
+      default /* 0x0e */:
+        receiver.onPitchBend(channel, ((data2 << 7) | data1) - 8192);
+        break;
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.midi;
+
+/**
+ * Callback for handling batches of packed MIDI messages, as produced by {@link PackedMidiDecoder}.
+ * Batches let client code process a whole USB or Bluetooth read in one tight loop instead of paying
+ * one callback per message.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public interface PackedMidiReceiver {
+
+  /**
+   * Handles a batch of packed messages. The message array is owned by the caller and will be reused,
+   * so implementations must not hold on to it.
+   * 
+   * @param count number of messages, starting at the beginning of the array
+   * @param messages packed messages; see {@link PackedMidiDecoder} for the format
+   */
+  void onMessagesReceived(int count, int[] messages);
+
+  /**
+   * Begin assembling subsequent batches into one block; see {@link MidiReceiver#beginBlock()}.
+   * 
+   * @return true if block mode is supported
+   */
+  boolean beginBlock();
+
+  /**
+   * Optionally concludes a block of batches; see {@link MidiReceiver#endBlock()}.
+   */
+  void endBlock();
+}
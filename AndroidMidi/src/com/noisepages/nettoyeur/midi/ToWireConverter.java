@@ -18,82 +18,216 @@ import com.noisepages.nettoyeur.common.RawByteReceiver;
 
 
 /**
- * Converter from MIDI events to MIDI wire format.
+ * Converter from MIDI events to MIDI wire format. The converter never allocates; outside of block
+ * mode, each message is written to the raw receiver in a preallocated array of exactly the right
+ * size, and in block mode, messages are collected in a per-converter buffer that is flushed in bulk
+ * at the end of the block (or when it fills up).
+ * 
+ * Optionally, the converter omits status bytes that are equal to the status byte of the previous
+ * channel message (running status). This saves up to a third of the bandwidth for dense streams of
+ * notes or controllers on slow serial links. Running status is cancelled by system common and
+ * system exclusive bytes as well as at the beginning and end of each block, so that every block is
+ * self-contained and a receiver can resynchronize at the next block if a write is lost. System
+ * real-time bytes don't affect running status.
+ * 
+ * Sequences of raw bytes, such as the payload of a sysex message, can be passed in bulk; outside of
+ * block mode, they go to the raw receiver without copying, and in block mode, they are copied into
+ * the block buffer in pieces of up to its size.
  * 
  * @author Peter Brinkmann (peter.brinkmann@gmail.com)
  */
-public class ToWireConverter implements MidiReceiver {
+public class ToWireConverter implements MidiBulkReceiver {
+
+  private static final int BLOCK_BUFFER_SIZE = 256;
 
   private final RawByteReceiver rawReceiver;
+  // Indexed by message length, so that each message goes out in an array of exactly its size.
+  private final byte[][] messageBuffers = new byte[][] {null, new byte[1], new byte[2], new byte[3]};
+  private final byte[] blockBuffer = new byte[BLOCK_BUFFER_SIZE];
+  private int blockSize = 0;
+  private boolean inBlock = false;
+  private boolean useRunningStatus = false;
+  private int runningStatus = 0;
+  private long bytesSaved = 0;
 
   public ToWireConverter(RawByteReceiver rawReceiver) {
     this.rawReceiver = rawReceiver;
   }
 
+  /**
+   * Enables or disables running status compression; disabled by default.
+   * 
+   * @param enabled true if repeated status bytes are to be omitted
+   */
+  public synchronized void setRunningStatus(boolean enabled) {
+    useRunningStatus = enabled;
+    runningStatus = 0;
+  }
+
+  /**
+   * Cancels running status, i.e., the next channel message will be sent with its status byte. This
+   * needs to be called whenever the receiving end may have lost track of the status, e.g., after a
+   * reconnect.
+   */
+  public synchronized void resetRunningStatus() {
+    runningStatus = 0;
+  }
+
+  /**
+   * @return number of status bytes omitted due to running status
+   */
+  public synchronized long getBytesSaved() {
+    return bytesSaved;
+  }
+
   @Override
-  public void onNoteOff(int ch, int note, int vel) {
+  public synchronized void onNoteOff(int ch, int note, int vel) {
     write(0x80, ch, note, vel);
   }
 
   @Override
-  public void onNoteOn(int ch, int note, int vel) {
+  public synchronized void onNoteOn(int ch, int note, int vel) {
     write(0x90, ch, note, vel);
   }
 
   @Override
-  public void onPolyAftertouch(int ch, int note, int vel) {
+  public synchronized void onPolyAftertouch(int ch, int note, int vel) {
     write(0xa0, ch, note, vel);
   }
 
   @Override
-  public void onControlChange(int ch, int ctl, int val) {
+  public synchronized void onControlChange(int ch, int ctl, int val) {
     write(0xb0, ch, ctl, val);
   }
 
   @Override
-  public void onProgramChange(int ch, int pgm) {
+  public synchronized void onProgramChange(int ch, int pgm) {
     write(0xc0, ch, pgm);
   }
 
   @Override
-  public void onAftertouch(int ch, int vel) {
+  public synchronized void onAftertouch(int ch, int vel) {
     write(0xd0, ch, vel);
   }
 
   @Override
-  public void onPitchBend(int ch, int val) {
+  public synchronized void onPitchBend(int ch, int val) {
     val += 8192;
     write(0xe0, ch, (val & 0x7f), (val >> 7));
   }
 
   @Override
-  public void onRawByte(byte value) {
-    writeBytes(value);
+  public synchronized void onRawByte(byte value) {
+    if ((value & 0xf8) == 0xf0) {
+      runningStatus = 0; // System common or system exclusive.
+    }
+    writeBytes(1, value, (byte) 0, (byte) 0);
+  }
+
+  @Override
+  public synchronized void onRawBytes(byte[] buffer, int offset, int count) {
+    for (int i = offset; i < offset + count; ++i) {
+      if ((buffer[i] & 0xf8) == 0xf0) {
+        runningStatus = 0;
+        break;
+      }
+    }
+    if (!inBlock) {
+      if (count == 0) return;
+      if (offset == 0) {
+        rawReceiver.onBytesReceived(count, buffer);
+        return;
+      }
+    }
+    while (count > 0) {
+      if (blockSize == blockBuffer.length) {
+        flushBlock();
+      }
+      int n = Math.min(count, blockBuffer.length - blockSize);
+      System.arraycopy(buffer, offset, blockBuffer, blockSize, n);
+      blockSize += n;
+      offset += n;
+      count -= n;
+    }
+    if (!inBlock) {
+      flushBlock();
+    }
   }
 
   private void write(int msg, int ch, int a) {
-    writeBytes(firstByte(msg, ch), (byte) a);
+    byte status = firstByte(msg, ch);
+    if (omitStatus(status)) {
+      writeBytes(1, (byte) a, (byte) 0, (byte) 0);
+    } else {
+      writeBytes(2, status, (byte) a, (byte) 0);
+    }
   }
 
   private void write(int msg, int ch, int a, int b) {
-    writeBytes(firstByte(msg, ch), (byte) a, (byte) b);
+    byte status = firstByte(msg, ch);
+    if (omitStatus(status)) {
+      writeBytes(2, (byte) a, (byte) b, (byte) 0);
+    } else {
+      writeBytes(3, status, (byte) a, (byte) b);
+    }
+  }
+
+  private boolean omitStatus(byte status) {
+    if (!useRunningStatus) return false;
+    if (status == runningStatus) {
+      ++bytesSaved;
+      return true;
+    }
+    runningStatus = status;
+    return false;
   }
 
   private byte firstByte(int msg, int ch) {
     return (byte) (msg | (ch & 0x0f));
   }
 
-  private void writeBytes(byte... out) {
-    rawReceiver.onBytesReceived(out.length, out);
+  private void writeBytes(int n, byte b0, byte b1, byte b2) {
+    byte[] out;
+    int i;
+    if (inBlock) {
+      if (blockSize + n > blockBuffer.length) {
+        flushBlock();
+      }
+      out = blockBuffer;
+      i = blockSize;
+      blockSize += n;
+    } else {
+      out = messageBuffers[n];
+      i = 0;
+    }
+    out[i] = b0;
+    if (n > 1) out[i + 1] = b1;
+    if (n > 2) out[i + 2] = b2;
+    if (!inBlock) {
+      rawReceiver.onBytesReceived(n, out);
+    }
+  }
+
+  private void flushBlock() {
+    if (blockSize > 0) {
+      rawReceiver.onBytesReceived(blockSize, blockBuffer);
+      blockSize = 0;
+    }
   }
 
   @Override
-  public boolean beginBlock() {
+  public synchronized boolean beginBlock() {
+    flushBlock();
+    inBlock = true;
+    runningStatus = 0;
     return rawReceiver.beginBlock();
   }
 
   @Override
-  public void endBlock() {
+  public synchronized void endBlock() {
+    flushBlock();
+    inBlock = false;
+    runningStatus = 0;
     rawReceiver.endBlock();
   }
 }
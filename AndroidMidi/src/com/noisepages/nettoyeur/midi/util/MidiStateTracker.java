@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.midi.util;
+
+import java.util.Arrays;
+
+import com.noisepages.nettoyeur.midi.MidiBulkReceiver;
+import com.noisepages.nettoyeur.midi.MidiReceiver;
+
+/**
+ * Tracks the controller state of all 16 MIDI channels, i.e., programs, control changes (including
+ * bank select and sustain) and pitch bend, and replays it on demand. Typical uses include restoring
+ * the state of a synthesizer after a lost connection has been reestablished, and chasing
+ * controllers when a sequence is played from an arbitrary position. Note events are forwarded but
+ * not tracked.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class MidiStateTracker implements MidiBulkReceiver {
+
+  private static final int UNKNOWN = Integer.MIN_VALUE;
+  private static final int RESET_ALL_CONTROLLERS = 121;
+  private static final int FIRST_CHANNEL_MODE_MESSAGE = 120;
+
+  private final MidiReceiver next;
+  private final int[] programs = new int[16];
+  private final int[] pitchBends = new int[16];
+  private final int[][] controllers = new int[16][FIRST_CHANNEL_MODE_MESSAGE];
+
+  /**
+   * Constructor for a tracker that doesn't forward any events.
+   */
+  public MidiStateTracker() {
+    this(null);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param next receiver that all events are forwarded to after they have been tracked; may be null
+   */
+  public MidiStateTracker(MidiReceiver next) {
+    this.next = next;
+    reset();
+  }
+
+  /**
+   * Forgets all tracked state.
+   */
+  public synchronized void reset() {
+    Arrays.fill(programs, UNKNOWN);
+    Arrays.fill(pitchBends, UNKNOWN);
+    for (int[] c : controllers) {
+      Arrays.fill(c, UNKNOWN);
+    }
+  }
+
+  /**
+   * Sends the tracked state of all channels to the given receiver: bank select, program, the
+   * remaining controllers, and pitch bend, in this order. Channels and controllers without tracked
+   * values are skipped.
+   * 
+   * @param receiver to send the state to
+   */
+  public synchronized void replay(MidiReceiver receiver) {
+    for (int ch = 0; ch < 16; ++ch) {
+      int[] c = controllers[ch];
+      replayController(receiver, ch, 0); // Bank select needs to precede program changes.
+      replayController(receiver, ch, 32);
+      if (programs[ch] != UNKNOWN) {
+        receiver.onProgramChange(ch, programs[ch]);
+      }
+      for (int i = 0; i < c.length; ++i) {
+        if (i != 0 && i != 32) {
+          replayController(receiver, ch, i);
+        }
+      }
+      if (pitchBends[ch] != UNKNOWN) {
+        receiver.onPitchBend(ch, pitchBends[ch]);
+      }
+    }
+  }
+
+  private void replayController(MidiReceiver receiver, int ch, int controller) {
+    int value = controllers[ch][controller];
+    if (value != UNKNOWN) {
+      receiver.onControlChange(ch, controller, value);
+    }
+  }
+
+  /**
+   * @return the current program of the given channel, or -1 if unknown
+   */
+  public synchronized int getProgram(int channel) {
+    return (programs[channel] != UNKNOWN) ? programs[channel] : -1;
+  }
+
+  /**
+   * @return the current value of the given controller, or -1 if unknown
+   */
+  public synchronized int getController(int channel, int controller) {
+    if (controller >= FIRST_CHANNEL_MODE_MESSAGE) return -1;
+    int value = controllers[channel][controller];
+    return (value != UNKNOWN) ? value : -1;
+  }
+
+  /**
+   * @return the current pitch bend of the given channel, centered at 0; 0 if unknown
+   */
+  public synchronized int getPitchBend(int channel) {
+    return (pitchBends[channel] != UNKNOWN) ? pitchBends[channel] : 0;
+  }
+
+  @Override
+  public void onNoteOff(int channel, int key, int velocity) {
+    if (next != null) {
+      next.onNoteOff(channel, key, velocity);
+    }
+  }
+
+  @Override
+  public void onNoteOn(int channel, int key, int velocity) {
+    if (next != null) {
+      next.onNoteOn(channel, key, velocity);
+    }
+  }
+
+  @Override
+  public void onPolyAftertouch(int channel, int key, int velocity) {
+    if (next != null) {
+      next.onPolyAftertouch(channel, key, velocity);
+    }
+  }
+
+  @Override
+  public void onControlChange(int channel, int controller, int value) {
+    synchronized (this) {
+      if (controller < FIRST_CHANNEL_MODE_MESSAGE) {
+        controllers[channel][controller] = value;
+      } else if (controller == RESET_ALL_CONTROLLERS) {
+        Arrays.fill(controllers[channel], UNKNOWN);
+        pitchBends[channel] = UNKNOWN;
+      }
+    }
+    if (next != null) {
+      next.onControlChange(channel, controller, value);
+    }
+  }
+
+  @Override
+  public void onProgramChange(int channel, int program) {
+    synchronized (this) {
+      programs[channel] = program;
+    }
+    if (next != null) {
+      next.onProgramChange(channel, program);
+    }
+  }
+
+  @Override
+  public void onAftertouch(int channel, int velocity) {
+    if (next != null) {
+      next.onAftertouch(channel, velocity);
+    }
+  }
+
+  @Override
+  public void onPitchBend(int channel, int value) {
+    synchronized (this) {
+      pitchBends[channel] = value;
+    }
+    if (next != null) {
+      next.onPitchBend(channel, value);
+    }
+  }
+
+  @Override
+  public void onRawByte(byte value) {
+    if (next != null) {
+      next.onRawByte(value);
+    }
+  }
+
+  @Override
+  public void onRawBytes(byte[] buffer, int offset, int count) {
+    if (next != null) {
+      MidiBulkReceiver.Util.sendRawBytes(next, buffer, offset, count);
+    }
+  }
+
+  @Override
+  public boolean beginBlock() {
+    return (next != null) ? next.beginBlock() : false;
+  }
+
+  @Override
+  public void endBlock() {
+    if (next != null) {
+      next.endBlock();
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.noisepages.nettoyeur.midi.util;
+
+/**
+ * Interface for handling system exclusive messages as a stream of chunks, so that large dumps can
+ * be forwarded or processed without holding the entire message in memory.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public interface SysexStreamReceiver {
+
+  /**
+   * Called when a sysex message begins, i.e., after an 0xf0 byte.
+   */
+  void onSysexBegin();
+
+  /**
+   * Handles the next chunk of the payload of the current sysex message. The buffer is reused for
+   * subsequent chunks and must not be retained after this call returns.
+   * 
+   * @param buffer holding the chunk
+   * @param offset index of the first byte of the chunk
+   * @param length number of bytes in the chunk
+   */
+  void onSysexChunk(byte[] buffer, int offset, int length);
+
+  /**
+   * Called when the current sysex message is complete, i.e., after an 0xf7 byte.
+   */
+  void onSysexEnd();
+
+  /**
+   * Called when the current sysex message is abandoned, either because another status byte
+   * interrupted it or because it exceeded the size limit of the decoder. The chunks received so far
+   * are incomplete and should be discarded.
+   */
+  void onSysexAborted();
+}
@@ -20,21 +20,73 @@ import java.io.ByteArrayOutputStream;
  * Utility class for decoding MIDI system messages. Instances of this class parse an incoming stream
  * of MIDI bytes, e.g., from the onRawByte method of MidiReceiver, and extract system messages.
  * 
+ * By default, sysex messages are collected in memory and delivered as a whole. Alternatively, they
+ * can be streamed to a {@link SysexStreamReceiver} in chunks of a fixed size, which keeps memory use
+ * constant regardless of the size of the message. In either mode, an optional size limit aborts
+ * runaway messages; the remaining bytes of an aborted message are consumed without callbacks.
+ * 
  * @author Peter Brinkmann (peter.brinkmann@gmail.com)
  */
 public class SystemMessageDecoder {
 
+  /**
+   * Default size of the chunks handed to a {@link SysexStreamReceiver}.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 256;
+
   private enum State {
-    SYSTEM_EXCLUSIVE, TIME_CODE, SONG_POSITION, SONG_SELECT, NONE
+    SYSTEM_EXCLUSIVE, SYSEX_DISCARD, TIME_CODE, SONG_POSITION, SONG_SELECT, NONE
   };
 
   private final SystemMessageReceiver receiver;
+  private final SysexStreamReceiver sysexReceiver;
+  private final int maxSysexLength;
   private State state = State.NONE;
   private int firstByte = -1;
-  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+  private int sysexLength = 0;
+  private final ByteArrayOutputStream buffer;
+  private final byte[] chunk;
+  private int chunkLength = 0;
 
   public SystemMessageDecoder(SystemMessageReceiver receiver) {
+    this(receiver, 0);
+  }
+
+  /**
+   * Constructor for a decoder that delivers sysex messages as a whole.
+   * 
+   * @param receiver for handling system messages
+   * @param maxSysexLength max payload size of sysex messages; longer messages will be dropped; 0
+   *        means no limit
+   */
+  public SystemMessageDecoder(SystemMessageReceiver receiver, int maxSysexLength) {
+    this.receiver = receiver;
+    this.sysexReceiver = null;
+    this.maxSysexLength = maxSysexLength;
+    buffer = new ByteArrayOutputStream();
+    chunk = null;
+  }
+
+  /**
+   * Constructor for a decoder that streams sysex messages in chunks. The onSystemExclusive method
+   * of the system message receiver will not be called.
+   * 
+   * @param receiver for handling system messages other than sysex
+   * @param sysexReceiver for handling sysex messages
+   * @param chunkSize max number of bytes per chunk
+   * @param maxSysexLength max payload size of sysex messages; longer messages will be aborted; 0
+   *        means no limit
+   */
+  public SystemMessageDecoder(SystemMessageReceiver receiver, SysexStreamReceiver sysexReceiver,
+      int chunkSize, int maxSysexLength) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+    }
     this.receiver = receiver;
+    this.sysexReceiver = sysexReceiver;
+    this.maxSysexLength = maxSysexLength;
+    buffer = null;
+    chunk = new byte[chunkSize];
   }
 
   /**
@@ -45,10 +97,15 @@ public class SystemMessageDecoder {
    */
   public boolean decodeByte(byte value) {
     boolean byteHandled = true;
+    if (state == State.SYSTEM_EXCLUSIVE && value < 0 && value != (byte) 0xf7
+        && (value & 0xf8) != 0xf8) {
+      // Any status byte other than real time messages terminates a sysex message.
+      abortSysex();
+    }
     switch (value) {
     // Handle system common messages.
       case (byte) 0xf0:
-        buffer.reset();
+        beginSysex();
         state = State.SYSTEM_EXCLUSIVE;
         break;
       case (byte) 0xf1:
@@ -67,7 +124,7 @@ public class SystemMessageDecoder {
         break;
       case (byte) 0xf7:
         if (state == State.SYSTEM_EXCLUSIVE) {
-          receiver.onSystemExclusive(buffer.toByteArray());
+          endSysex();
         }
         state = State.NONE;
         break;
@@ -95,7 +152,9 @@ public class SystemMessageDecoder {
         if (value >= 0) {
           switch (state) {
             case SYSTEM_EXCLUSIVE:
-              buffer.write(value);
+              appendSysex(value);
+              break;
+            case SYSEX_DISCARD:
               break;
             case TIME_CODE:
               receiver.onTimeCode(value);
@@ -125,4 +184,54 @@ public class SystemMessageDecoder {
     }
     return byteHandled;
   }
+
+  private void beginSysex() {
+    sysexLength = 0;
+    if (sysexReceiver != null) {
+      chunkLength = 0;
+      sysexReceiver.onSysexBegin();
+    } else {
+      buffer.reset();
+    }
+  }
+
+  private void appendSysex(byte value) {
+    if (maxSysexLength > 0 && sysexLength >= maxSysexLength) {
+      abortSysex();
+      state = State.SYSEX_DISCARD;
+      return;
+    }
+    sysexLength++;
+    if (sysexReceiver != null) {
+      chunk[chunkLength++] = value;
+      if (chunkLength == chunk.length) {
+        sysexReceiver.onSysexChunk(chunk, 0, chunkLength);
+        chunkLength = 0;
+      }
+    } else {
+      buffer.write(value);
+    }
+  }
+
+  private void endSysex() {
+    if (sysexReceiver != null) {
+      if (chunkLength > 0) {
+        sysexReceiver.onSysexChunk(chunk, 0, chunkLength);
+        chunkLength = 0;
+      }
+      sysexReceiver.onSysexEnd();
+    } else {
+      receiver.onSystemExclusive(buffer.toByteArray());
+      buffer.reset();
+    }
+  }
+
+  private void abortSysex() {
+    if (sysexReceiver != null) {
+      chunkLength = 0;
+      sysexReceiver.onSysexAborted();
+    } else {
+      buffer.reset();
+    }
+  }
 }
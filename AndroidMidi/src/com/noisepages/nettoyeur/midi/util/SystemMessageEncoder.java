@@ -14,6 +14,7 @@
 
 package com.noisepages.nettoyeur.midi.util;
 
+import com.noisepages.nettoyeur.midi.MidiBulkReceiver;
 import com.noisepages.nettoyeur.midi.MidiReceiver;
 
 public class SystemMessageEncoder implements SystemMessageReceiver {
@@ -28,9 +29,7 @@ public class SystemMessageEncoder implements SystemMessageReceiver {
   public void onSystemExclusive(byte[] sysex) {
     receiver.beginBlock();
     receiver.onRawByte((byte) 0xf0);
-    for (byte b : sysex) {
-      receiver.onRawByte(b);
-    }
+    MidiBulkReceiver.Util.sendRawBytes(receiver, sysex, 0, sysex.length);
     receiver.onRawByte((byte) 0xf7);
     receiver.endBlock();
   }
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.transport;
+
+import java.util.Arrays;
+
+/**
+ * Event-driven input engine for bulk-in transports. Each stream keeps several read requests in
+ * flight, so that the transport always has a buffer to fill while the engine delivers the previous
+ * one, and a single engine thread services all streams of a transport. The thread only runs while
+ * requests are in flight; it starts when the first stream is added and exits once the last stream
+ * has been closed and all of its requests have come back.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class BulkInEngine {
+
+  /**
+   * Callback for data arriving on a stream. Handlers run on the engine thread and must not block.
+   */
+  public interface Handler {
+
+    /**
+     * @param buffer holding incoming data, starting at index 0; only valid for the duration of the
+     *        call
+     * @param length number of bytes in the buffer
+     */
+    void onBytesReceived(byte[] buffer, int length);
+  }
+
+  /**
+   * Handle for a group of requests delivering to one handler, typically all requests on one
+   * endpoint.
+   */
+  public class Stream {
+    private final BulkInRequest[] requests;
+    private final Handler handler;
+    private boolean active = true;
+    private int inFlight = 0;
+
+    private Stream(BulkInRequest[] requests, Handler handler) {
+      this.requests = requests;
+      this.handler = handler;
+    }
+
+    /**
+     * Cancels all requests of this stream and waits until the transport has returned them, unless
+     * called from a handler on the engine thread. Requests are closed once they have come back.
+     */
+    public void close() {
+      synchronized (BulkInEngine.this) {
+        if (!active) return;
+        active = false;
+        for (BulkInRequest request : requests) {
+          request.cancel();
+        }
+        if (Thread.currentThread() == engineThread) return;
+        boolean interrupted = false;
+        while (inFlight > 0 && engineThread != null) {
+          try {
+            BulkInEngine.this.wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    /**
+     * @return the number of requests of this stream that are currently queued
+     */
+    public int getRequestsInFlight() {
+      synchronized (BulkInEngine.this) {
+        return inFlight;
+      }
+    }
+  }
+
+  private final BulkInTransport transport;
+  private final String name;
+  private Thread engineThread = null;
+  private int inFlight = 0;
+
+  /**
+   * Constructor.
+   * 
+   * @param transport the transport whose completions this engine will service
+   * @param name name of the engine thread
+   */
+  public BulkInEngine(BulkInTransport transport, String name) {
+    this.transport = transport;
+    this.name = name;
+  }
+
+  /**
+   * Queues all given requests and starts delivering completed reads to the handler. The requests
+   * must belong to the transport of this engine; their buffers are zeroed before they are queued.
+   * 
+   * @param requests read requests for the new stream, typically two or three per endpoint
+   * @param handler callback for incoming data
+   * @return handle for the new stream, or null if none of the requests could be queued
+   */
+  public synchronized Stream addStream(BulkInRequest[] requests, Handler handler) {
+    Stream stream = new Stream(requests.clone(), handler);
+    for (BulkInRequest request : stream.requests) {
+      request.setClientData(stream);
+      Arrays.fill(request.getBuffer(), (byte) 0);
+      if (request.queue()) {
+        stream.inFlight++;
+        inFlight++;
+      } else {
+        request.close();
+      }
+    }
+    if (stream.inFlight == 0) {
+      return null;
+    }
+    if (engineThread == null) {
+      engineThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          serviceRequests();
+        }
+      }, name);
+      engineThread.start();
+    }
+    return stream;
+  }
+
+  /**
+   * @return true if and only if the engine thread is running
+   */
+  public synchronized boolean isRunning() {
+    return engineThread != null;
+  }
+
+  /**
+   * @return the total number of requests currently queued with the transport
+   */
+  public synchronized int getRequestsInFlight() {
+    return inFlight;
+  }
+
+  private void serviceRequests() {
+    while (true) {
+      BulkInRequest request = transport.awaitRequest();
+      if (request == null) {
+        abort();
+        return;
+      }
+      Stream stream = (Stream) request.getClientData();
+      if (stream == null) continue;
+      boolean deliver;
+      synchronized (this) {
+        deliver = stream.active;
+      }
+      byte[] buffer = request.getBuffer();
+      if (deliver) {
+        stream.handler.onBytesReceived(buffer, request.getLength());
+      }
+      Arrays.fill(buffer, (byte) 0);
+      synchronized (this) {
+        if (stream.active && request.queue()) continue;
+        request.close();
+        stream.inFlight--;
+        inFlight--;
+        notifyAll();
+        if (inFlight == 0) {
+          engineThread = null;
+          return;
+        }
+      }
+    }
+  }
+
+  private synchronized void abort() {
+    // The transport is gone, and so are any requests still queued with it.
+    inFlight = 0;
+    engineThread = null;
+    notifyAll();
+  }
+}
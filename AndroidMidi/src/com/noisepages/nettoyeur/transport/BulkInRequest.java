@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.transport;
+
+/**
+ * Asynchronous read request on a bulk-in endpoint, modeled after android.hardware.usb.UsbRequest. A
+ * request owns its buffer; once queued, the request belongs to the transport until the transport
+ * returns it from {@link BulkInTransport#awaitRequest()}.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public interface BulkInRequest {
+
+  /**
+   * @return the buffer that this request reads into
+   */
+  byte[] getBuffer();
+
+  /**
+   * @return the number of valid bytes after completion; transports that cannot report the length of
+   *         a transfer return the length of the buffer, and clients must zero the buffer before
+   *         queuing it again
+   */
+  int getLength();
+
+  /**
+   * Queues this request for an asynchronous read.
+   * 
+   * @return true on success
+   */
+  boolean queue();
+
+  /**
+   * Cancels this request if it is queued. A canceled request will still be returned by
+   * {@link BulkInTransport#awaitRequest()}.
+   * 
+   * @return true on success
+   */
+  boolean cancel();
+
+  /**
+   * Releases the resources held by this request.
+   */
+  void close();
+
+  /**
+   * @param data arbitrary client data to associate with this request
+   */
+  void setClientData(Object data);
+
+  /**
+   * @return the client data associated with this request
+   */
+  Object getClientData();
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.transport;
+
+/**
+ * Completion queue for asynchronous bulk-in requests, modeled after the requestWait method of
+ * android.hardware.usb.UsbDeviceConnection. One transport may serve requests on several endpoints.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public interface BulkInTransport {
+
+  /**
+   * Blocks until one of the queued requests completes or is canceled.
+   * 
+   * @return the completed request, or null if the transport failed
+   */
+  BulkInRequest awaitRequest();
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.transport;
+
+/**
+ * Synchronous bulk-out transport, modeled after the bulkTransfer method of
+ * android.hardware.usb.UsbDeviceConnection.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public interface BulkOutTransport {
+
+  /**
+   * @return the max packet size of the endpoint; transfers larger than this go out as several
+   *         packets
+   */
+  int getMaxPacketSize();
+
+  /**
+   * Writes a buffer to the endpoint, blocking until the transfer completes or times out.
+   * 
+   * @param buffer holding the data to be sent, starting at index 0
+   * @param length number of bytes to be sent
+   * @param timeout in milliseconds; 0 means no timeout
+   * @return number of bytes transferred, or a negative value on failure
+   */
+  int write(byte[] buffer, int length, int timeout);
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.transport;
+
+import java.util.LinkedList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-process bulk transport whose output is connected to its input: Each write completes pending
+ * read requests in the order in which they were queued, one request per max packet size of data.
+ * Intended for load tests and benchmarks of USB code paths on a plain JVM.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class LoopbackBulkTransport implements BulkInTransport, BulkOutTransport {
+
+  private final int maxPacketSize;
+  private final LinkedList<Request> pending = new LinkedList<Request>();
+  private final BlockingQueue<Request> completed = new LinkedBlockingQueue<Request>();
+  private final Request closedMarker = new Request(0);
+  private boolean closed = false;
+
+  private class Request implements BulkInRequest {
+    private final byte[] buffer;
+    private int length = 0;
+    private Object clientData = null;
+    private boolean released = false;
+
+    private Request(int size) {
+      buffer = new byte[size];
+    }
+
+    @Override
+    public byte[] getBuffer() {
+      return buffer;
+    }
+
+    @Override
+    public int getLength() {
+      return length;
+    }
+
+    @Override
+    public boolean queue() {
+      synchronized (LoopbackBulkTransport.this) {
+        if (closed || released) return false;
+        length = 0;
+        pending.add(this);
+        LoopbackBulkTransport.this.notifyAll();
+        return true;
+      }
+    }
+
+    @Override
+    public boolean cancel() {
+      synchronized (LoopbackBulkTransport.this) {
+        if (!pending.remove(this)) return false;
+      }
+      completed.add(this);
+      return true;
+    }
+
+    @Override
+    public void close() {
+      synchronized (LoopbackBulkTransport.this) {
+        released = true;
+      }
+    }
+
+    @Override
+    public void setClientData(Object data) {
+      clientData = data;
+    }
+
+    @Override
+    public Object getClientData() {
+      return clientData;
+    }
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param maxPacketSize max packet size of the simulated endpoint
+   */
+  public LoopbackBulkTransport(int maxPacketSize) {
+    this.maxPacketSize = maxPacketSize;
+  }
+
+  /**
+   * Creates a new read request.
+   * 
+   * @param size size of the request buffer, typically the max packet size
+   * @return the new request
+   */
+  public BulkInRequest newRequest(int size) {
+    return new Request(size);
+  }
+
+  /**
+   * @return the number of read requests currently queued
+   */
+  public synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Closes this transport. Pending writes fail, and {@link #awaitRequest()} returns null.
+   */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    completed.add(closedMarker);
+  }
+
+  @Override
+  public int getMaxPacketSize() {
+    return maxPacketSize;
+  }
+
+  @Override
+  public int write(byte[] buffer, int length, int timeout) {
+    long deadline = System.currentTimeMillis() + timeout;
+    int offset = 0;
+    while (offset < length) {
+      Request request;
+      synchronized (this) {
+        while (pending.isEmpty() && !closed) {
+          long delay = (timeout > 0) ? deadline - System.currentTimeMillis() : 0;
+          if (timeout > 0 && delay <= 0) {
+            return offset > 0 ? offset : -1;
+          }
+          try {
+            wait(delay);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+          }
+        }
+        if (closed) return -1;
+        request = pending.removeFirst();
+      }
+      int n = Math.min(Math.min(length - offset, maxPacketSize), request.buffer.length);
+      System.arraycopy(buffer, offset, request.buffer, 0, n);
+      request.length = n;
+      completed.add(request);
+      offset += n;
+    }
+    return length;
+  }
+
+  @Override
+  public BulkInRequest awaitRequest() {
+    try {
+      Request request = completed.take();
+      if (request == closedMarker) {
+        completed.add(closedMarker); // Leave the marker for subsequent calls.
+        return null;
+      }
+      return request;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * In-process stream transport. Pipes come in connected pairs; whatever is written to one end can be
+ * read from the other. Unlike java.io.PipedInputStream, pipes don't care which threads read or
+ * write. Like sockets, a closed transport fails on reads, while the other end reaches the end of
+ * the stream. Intended for load tests and benchmarks of stream code paths on a plain JVM.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class PipeStreamTransport implements StreamTransport {
+
+  private final Pipe in;
+  private final Pipe out;
+
+  /**
+   * Bounded, blocking byte queue.
+   */
+  private static class Pipe {
+    private final byte[] buffer;
+    private int readIndex = 0;
+    private int size = 0;
+    private boolean readerClosed = false;
+    private boolean writerClosed = false;
+
+    private Pipe(int capacity) {
+      buffer = new byte[capacity];
+    }
+
+    private synchronized int read(byte[] b, int offset, int length) throws IOException {
+      if (length == 0) return 0;
+      while (size == 0 && !writerClosed && !readerClosed) {
+        await();
+      }
+      if (readerClosed) {
+        throw new IOException("Pipe closed");
+      }
+      if (size == 0) return -1; // End of stream.
+      int n = Math.min(length, size);
+      for (int i = 0; i < n; i++) {
+        b[offset + i] = buffer[readIndex];
+        readIndex = (readIndex + 1) % buffer.length;
+      }
+      size -= n;
+      notifyAll();
+      return n;
+    }
+
+    private synchronized int available() {
+      return size;
+    }
+
+    private synchronized void write(byte[] b, int offset, int length) throws IOException {
+      while (length > 0) {
+        while (size == buffer.length && !readerClosed && !writerClosed) {
+          await();
+        }
+        if (readerClosed || writerClosed) {
+          throw new IOException("Pipe closed");
+        }
+        int n = Math.min(length, buffer.length - size);
+        for (int i = 0; i < n; i++) {
+          buffer[(readIndex + size + i) % buffer.length] = b[offset + i];
+        }
+        size += n;
+        offset += n;
+        length -= n;
+        notifyAll();
+      }
+    }
+
+    private synchronized void closeReader() {
+      readerClosed = true;
+      notifyAll();
+    }
+
+    private synchronized void closeWriter() {
+      writerClosed = true;
+      notifyAll();
+    }
+
+    private void await() throws InterruptedIOException {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  private final InputStream inStream = new InputStream() {
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return (in.read(b, 0, 1) > 0) ? (b[0] & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+      return in.read(b, offset, length);
+    }
+
+    @Override
+    public int available() {
+      return in.available();
+    }
+
+    @Override
+    public void close() {
+      in.closeReader();
+    }
+  };
+
+  private final OutputStream outStream = new OutputStream() {
+    @Override
+    public void write(int b) throws IOException {
+      out.write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+      out.write(b, offset, length);
+    }
+
+    @Override
+    public void close() {
+      out.closeWriter();
+    }
+  };
+
+  private PipeStreamTransport(Pipe in, Pipe out) {
+    this.in = in;
+    this.out = out;
+  }
+
+  /**
+   * Creates a connected pair of pipe transports.
+   * 
+   * @param capacity capacity of each direction, in bytes
+   * @return array containing the two ends of the connection
+   */
+  public static PipeStreamTransport[] createPair(int capacity) {
+    Pipe a = new Pipe(capacity);
+    Pipe b = new Pipe(capacity);
+    return new PipeStreamTransport[] {new PipeStreamTransport(a, b), new PipeStreamTransport(b, a)};
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return inStream;
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return outStream;
+  }
+
+  @Override
+  public void close() {
+    in.closeReader();
+    out.closeWriter();
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Stream transport on top of a TCP socket. Together with {@link #createLocalPair()}, this allows
+ * stream code paths to be exercised through the network stack of the host.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class SocketStreamTransport implements StreamTransport {
+
+  private final Socket socket;
+
+  /**
+   * Constructor.
+   * 
+   * @param socket connected socket
+   */
+  public SocketStreamTransport(Socket socket) {
+    this.socket = socket;
+  }
+
+  /**
+   * Creates a connected pair of TCP transports on the loopback interface, with Nagle's algorithm
+   * disabled.
+   * 
+   * @return array containing the client and server ends of the connection
+   * @throws IOException
+   */
+  public static SocketStreamTransport[] createLocalPair() throws IOException {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName(null));
+    try {
+      Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+      Socket accepted = server.accept();
+      client.setTcpNoDelay(true);
+      accepted.setTcpNoDelay(true);
+      return new SocketStreamTransport[] {new SocketStreamTransport(client),
+          new SocketStreamTransport(accepted)};
+    } finally {
+      server.close();
+    }
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return socket.getInputStream();
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    return socket.getOutputStream();
+  }
+
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.LockSupport;
+
+import com.noisepages.nettoyeur.common.RawByteSliceReceiver;
+
+/**
+ * Read loop that forwards the contents of an input stream to a raw byte receiver, as used for SPP
+ * connections. The read buffer adapts to the observed burst length: It doubles whenever a read
+ * fills it, up to the maximum size, and it halves when reads have been using less than a quarter of
+ * it for a while. Optionally, the reader coalesces reads that arrive within a short time window
+ * into one callback, trading a little latency for fewer callbacks.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class StreamReader {
+
+  private static final int SHRINK_AFTER = 64; // Number of short reads before the buffer shrinks.
+  private static final long POLL_INTERVAL = 100000L; // Nanoseconds.
+
+  private final InputStream inStream;
+  private final RawByteSliceReceiver receiver;
+  private final int minBufferSize;
+  private final int maxBufferSize;
+  private final long coalescingWindow; // Nanoseconds.
+  private byte[] buffer;
+  private int averageLength8 = 0; // Moving average of read lengths, times eight.
+  private int shortReads = 0;
+
+  private volatile long bytesRead = 0;
+  private volatile long readCount = 0;
+  private volatile long callbackCount = 0;
+  private volatile int bufferSize;
+
+  /**
+   * Constructor for a reader with a fixed buffer size and no coalescing.
+   * 
+   * @param inStream input stream to read from
+   * @param receiver handling incoming data
+   * @param bufferSize size of the read buffer
+   */
+  public StreamReader(InputStream inStream, RawByteSliceReceiver receiver, int bufferSize) {
+    this(inStream, receiver, bufferSize, bufferSize, 0);
+  }
+
+  /**
+   * Constructor for a reader with an adaptive buffer size.
+   * 
+   * @param inStream input stream to read from
+   * @param receiver handling incoming data
+   * @param minBufferSize initial and minimum size of the read buffer
+   * @param maxBufferSize maximum size of the read buffer
+   * @param coalescingWindowMicros time window for collecting further reads before invoking the
+   *        receiver; 0 means that each read goes to the receiver right away
+   */
+  public StreamReader(InputStream inStream, RawByteSliceReceiver receiver, int minBufferSize,
+      int maxBufferSize, long coalescingWindowMicros) {
+    if (minBufferSize <= 0 || maxBufferSize < minBufferSize) {
+      throw new IllegalArgumentException("Invalid buffer sizes");
+    }
+    this.inStream = inStream;
+    this.receiver = receiver;
+    this.minBufferSize = minBufferSize;
+    this.maxBufferSize = maxBufferSize;
+    coalescingWindow = coalescingWindowMicros * 1000L;
+    buffer = new byte[minBufferSize];
+    bufferSize = minBufferSize;
+  }
+
+  /**
+   * Reads from the input stream and forwards incoming data to the receiver, until the stream ends
+   * or fails.
+   * 
+   * @throws IOException when the input stream fails, e.g., because the connection was closed
+   */
+  public void readAll() throws IOException {
+    while (true) {
+      int n = inStream.read(buffer, 0, buffer.length);
+      if (n < 0) return;
+      readCount++;
+      boolean endOfStream = false;
+      if (coalescingWindow > 0) {
+        long deadline = System.nanoTime() + coalescingWindow;
+        while (n < buffer.length) {
+          int available = inStream.available();
+          if (available > 0) {
+            int m = inStream.read(buffer, n, Math.min(available, buffer.length - n));
+            if (m < 0) {
+              endOfStream = true;
+              break;
+            }
+            n += m;
+            readCount++;
+          } else {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) break;
+            LockSupport.parkNanos(Math.min(remaining, POLL_INTERVAL));
+          }
+        }
+      }
+      if (n > 0) {
+        callbackCount++;
+        bytesRead += n;
+        receiver.onBytesReceived(buffer, 0, n);
+      }
+      if (endOfStream) return;
+      adaptBufferSize(n);
+    }
+  }
+
+  private void adaptBufferSize(int n) {
+    averageLength8 += n - (averageLength8 >> 3);
+    if (n == buffer.length && buffer.length < maxBufferSize) {
+      resize(Math.min(buffer.length * 2, maxBufferSize));
+    } else if (buffer.length > minBufferSize && (averageLength8 >> 1) < buffer.length) {
+      if (++shortReads >= SHRINK_AFTER) {
+        resize(Math.max(buffer.length / 2, minBufferSize));
+      }
+    } else {
+      shortReads = 0;
+    }
+  }
+
+  private void resize(int size) {
+    buffer = new byte[size];
+    bufferSize = size;
+    shortReads = 0;
+  }
+
+  /**
+   * @return total number of bytes delivered to the receiver
+   */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  /**
+   * @return total number of reads from the input stream
+   */
+  public long getReadCount() {
+    return readCount;
+  }
+
+  /**
+   * @return total number of callbacks to the receiver
+   */
+  public long getCallbackCount() {
+    return callbackCount;
+  }
+
+  /**
+   * @return current size of the read buffer
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+}
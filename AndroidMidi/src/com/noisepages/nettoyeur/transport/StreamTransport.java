@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Connected, bidirectional byte stream, such as an RFCOMM socket or a TCP connection.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public interface StreamTransport {
+
+  /**
+   * @return the input stream of this connection
+   * @throws IOException
+   */
+  InputStream getInputStream() throws IOException;
+
+  /**
+   * @return the output stream of this connection
+   * @throws IOException
+   */
+  OutputStream getOutputStream() throws IOException;
+
+  /**
+   * Closes the connection; threads blocked on reads will receive an exception or the end of the
+   * stream.
+   * 
+   * @throws IOException
+   */
+  void close() throws IOException;
+}
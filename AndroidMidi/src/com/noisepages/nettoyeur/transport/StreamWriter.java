@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.noisepages.nettoyeur.common.OverflowPolicy;
+
+/**
+ * Asynchronous writer for output streams. Writes go into a bounded ring buffer that a dedicated
+ * writer thread drains, so that a congested connection stalls the writer thread rather than the
+ * thread that sends data. The writer thread coalesces queued bytes into socket writes of up to one
+ * chunk; with a positive flush deadline, it also holds back small writes for up to the deadline in
+ * order to collect more data.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class StreamWriter {
+
+  private static final long STATISTICS_INTERVAL = 1000000000L; // Nanoseconds.
+
+  private final OutputStream outStream;
+  private final OverflowPolicy policy;
+  private final long flushDeadline; // Nanoseconds.
+  private final byte[] ring;
+  private final byte[] chunk;
+  private final Thread writerThread;
+  private int readIndex = 0;
+  private int size = 0;
+  private long firstQueued = 0; // Time when the oldest queued byte was written.
+  private boolean writing = false;
+  private boolean largeWrite = false; // True while a write larger than the queue is in progress.
+  private boolean running = true;
+  private IOException exception = null;
+  private StreamWriterObserver observer = null;
+
+  private long dropped = 0;
+  private long bytesWritten = 0;
+  private long maxStall = 0;
+  private long intervalStart = 0;
+  private long intervalBytes = 0;
+  private long intervalMaxStall = 0;
+
+  /**
+   * Constructor. Starts the writer thread.
+   * 
+   * @param outStream output stream to write to
+   * @param capacity capacity of the ring buffer, in bytes
+   * @param chunkSize max number of bytes per write to the output stream
+   * @param flushDeadlineMillis max time that queued bytes wait for more data before they go out; 0
+   *        means that they go out as soon as the writer thread gets to them
+   * @param policy either BLOCK or DROP_NEWEST; a dropped write is dropped as a whole, so that MIDI
+   *        messages remain intact
+   */
+  public StreamWriter(OutputStream outStream, int capacity, int chunkSize,
+      long flushDeadlineMillis, OverflowPolicy policy) {
+    if (policy == OverflowPolicy.DROP_OLDEST) {
+      throw new IllegalArgumentException("Unsupported policy for byte streams: " + policy);
+    }
+    this.outStream = outStream;
+    this.policy = policy;
+    flushDeadline = flushDeadlineMillis * 1000000L;
+    ring = new byte[capacity];
+    chunk = new byte[Math.min(chunkSize, capacity)];
+    writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, "StreamWriter");
+    writerThread.start();
+  }
+
+  /**
+   * @param observer to receive statistics about once per second while data is flowing; may be null
+   */
+  public synchronized void setObserver(StreamWriterObserver observer) {
+    this.observer = observer;
+  }
+
+  /**
+   * Queues bytes for writing. The bytes of one call are never interleaved with those of another,
+   * even if they exceed the capacity of the queue.
+   * 
+   * @param buffer containing the bytes to be sent
+   * @param offset index of first byte to be sent
+   * @param count number of bytes to be sent
+   * @return true if the bytes were queued, false if they were dropped
+   * @throws IOException if the writer has been closed or the output stream has failed
+   */
+  public synchronized boolean write(byte[] buffer, int offset, int count) throws IOException {
+    checkState();
+    if (policy == OverflowPolicy.DROP_NEWEST && ring.length - size < count) {
+      dropped++;
+      return false;
+    }
+    // Keep out of the way of a large write so that its pieces stay contiguous.
+    while (largeWrite) {
+      await();
+      checkState();
+    }
+    if (count <= ring.length) {
+      while (ring.length - size < count) {
+        await();
+        checkState();
+      }
+      enqueue(buffer, offset, count);
+      return true;
+    }
+    // Writes that exceed the capacity of the queue go in as several pieces, and other writers
+    // wait until the last piece is queued.
+    largeWrite = true;
+    try {
+      while (count > 0) {
+        int n = Math.min(count, ring.length);
+        while (ring.length - size < n) {
+          await();
+          checkState();
+        }
+        enqueue(buffer, offset, n);
+        offset += n;
+        count -= n;
+      }
+    } finally {
+      largeWrite = false;
+      notifyAll();
+    }
+    return true;
+  }
+
+  private void enqueue(byte[] buffer, int offset, int count) {
+    if (size == 0) {
+      firstQueued = System.nanoTime();
+    }
+    int writeIndex = (readIndex + size) % ring.length;
+    int n = Math.min(count, ring.length - writeIndex);
+    System.arraycopy(buffer, offset, ring, writeIndex, n);
+    System.arraycopy(buffer, offset + n, ring, 0, count - n);
+    size += count;
+    notifyAll();
+  }
+
+  /**
+   * Blocks until all queued bytes have been written to the output stream.
+   * 
+   * @throws IOException if the writer has been closed or the output stream has failed
+   */
+  public synchronized void flush() throws IOException {
+    checkState();
+    while (size > 0 || writing) {
+      await();
+      checkState();
+    }
+  }
+
+  /**
+   * Stops the writer thread. Bytes that are still queued will be discarded.
+   */
+  public void close() {
+    synchronized (this) {
+      running = false;
+      notifyAll();
+    }
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Preserve interrupt flag in case the caller needs it.
+    }
+  }
+
+  /**
+   * @return number of bytes currently queued
+   */
+  public synchronized int getQueueDepth() {
+    return size;
+  }
+
+  /**
+   * @return longest time that a single write to the output stream has taken so far, in nanoseconds
+   */
+  public synchronized long getMaxStallNanos() {
+    return maxStall;
+  }
+
+  /**
+   * @return total number of bytes written to the output stream
+   */
+  public synchronized long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * @return number of writes dropped because the queue was full
+   */
+  public synchronized long getDroppedCount() {
+    return dropped;
+  }
+
+  private void checkState() throws IOException {
+    if (exception != null) {
+      throw exception;
+    }
+    if (!running) {
+      throw new IOException("Writer closed");
+    }
+  }
+
+  private void await() throws IOException {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for queue");
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      int n;
+      synchronized (this) {
+        try {
+          while (running && !isReady()) {
+            if (size == 0) {
+              wait();
+            } else {
+              long delay = firstQueued + flushDeadline - System.nanoTime();
+              if (delay > 0) {
+                wait(delay / 1000000L, (int) (delay % 1000000L));
+              }
+            }
+          }
+        } catch (InterruptedException e) {
+          running = false;
+        }
+        if (!running) {
+          notifyAll();
+          return;
+        }
+        n = Math.min(size, chunk.length);
+        int m = Math.min(n, ring.length - readIndex);
+        System.arraycopy(ring, readIndex, chunk, 0, m);
+        System.arraycopy(ring, 0, chunk, m, n - m);
+        readIndex = (readIndex + n) % ring.length;
+        size -= n; // Any remaining bytes are overdue and will go out right away.
+        writing = true;
+        notifyAll();
+      }
+      long start = System.nanoTime();
+      IOException failure = null;
+      try {
+        outStream.write(chunk, 0, n);
+        outStream.flush();
+      } catch (IOException e) {
+        failure = e;
+      }
+      long end = System.nanoTime();
+      StreamWriterObserver currentObserver = null;
+      int depth = 0;
+      long intervalBytesPerSecond = 0;
+      long intervalStall = 0;
+      synchronized (this) {
+        writing = false;
+        notifyAll();
+        if (failure != null) {
+          exception = failure;
+          running = false;
+          return;
+        }
+        long stall = end - start;
+        maxStall = Math.max(maxStall, stall);
+        intervalMaxStall = Math.max(intervalMaxStall, stall);
+        bytesWritten += n;
+        intervalBytes += n;
+        if (intervalStart == 0) {
+          intervalStart = start;
+        } else if (end - intervalStart >= STATISTICS_INTERVAL && observer != null) {
+          currentObserver = observer;
+          depth = size;
+          intervalBytesPerSecond = intervalBytes * 1000000000L / (end - intervalStart);
+          intervalStall = intervalMaxStall;
+          intervalStart = end;
+          intervalBytes = 0;
+          intervalMaxStall = 0;
+        }
+      }
+      if (currentObserver != null) {
+        currentObserver.onWriterStatistics(depth, intervalStall / 1000000L, intervalBytesPerSecond);
+      }
+    }
+  }
+
+  private boolean isReady() {
+    return size >= chunk.length
+        || (size > 0 && System.nanoTime() - firstQueued >= flushDeadline);
+  }
+}
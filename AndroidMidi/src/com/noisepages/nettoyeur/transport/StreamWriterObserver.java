@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.transport;
+
+/**
+ * Callback for monitoring the performance of a {@link StreamWriter}. Invoked on the writer thread;
+ * implementations must not block.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public interface StreamWriterObserver {
+
+  /**
+   * Reports statistics for the time since the last report.
+   * 
+   * @param queueDepth number of bytes currently queued
+   * @param maxStallMillis longest time that a single write to the output stream has taken
+   * @param bytesPerSecond throughput of the output stream
+   */
+  void onWriterStatistics(int queueDepth, long maxStallMillis, long bytesPerSecond);
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.noisepages.nettoyeur.transport;
+
+import com.noisepages.nettoyeur.common.RawByteReceiver;
+import com.noisepages.nettoyeur.common.TimestampedRawByteReceiver;
+
+/**
+ * Output stage that holds timestamped messages until they are due and then releases them to a raw
+ * byte receiver on a dedicated thread. A producer such as a sequencer can push messages some time
+ * ahead, so that its own scheduling jitter doesn't reach the output. With latency compensation,
+ * messages are released early by a running estimate of how long the receiver takes to write them,
+ * which takes most of the transport latency off the musical timeline.
+ * 
+ * Messages are queued in a bounded ring buffer; producers block while it is full.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class TimedReleaseQueue implements TimestampedRawByteReceiver {
+
+  private static final long WAKEUP_MARGIN_NANOS = 500000L; // Spin for the last 500us.
+
+  private final RawByteReceiver receiver;
+  private final byte[] ring;
+  private final byte[] out;
+  private final long[] timestamps;
+  private final int[] lengths;
+  private final Thread releaseThread;
+  private int readIndex = 0;
+  private int size = 0;
+  private int head = 0;
+  private int count = 0;
+  private boolean running = true;
+  private boolean compensateLatency = false;
+  private long writeLatency = 0;
+  private long maxLateness = 0;
+  private long releasedCount = 0;
+
+  /**
+   * Constructor. Starts the release thread.
+   * 
+   * @param receiver to release messages to
+   * @param capacity capacity of the queue in bytes, which is also the max size of a single message
+   * @param maxMessages max number of messages in the queue
+   */
+  public TimedReleaseQueue(RawByteReceiver receiver, int capacity, int maxMessages) {
+    this.receiver = receiver;
+    ring = new byte[capacity];
+    out = new byte[capacity];
+    timestamps = new long[maxMessages];
+    lengths = new int[maxMessages];
+    releaseThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        releaseMessages();
+      }
+    }, "TimedReleaseQueue");
+    releaseThread.start();
+  }
+
+  /**
+   * Enables or disables latency compensation; disabled by default.
+   * 
+   * @param enabled true if messages are to be released early by the measured write latency
+   */
+  public synchronized void setLatencyCompensation(boolean enabled) {
+    compensateLatency = enabled;
+  }
+
+  @Override
+  public synchronized void onBytesReceived(int nBytes, byte[] buffer, long timestampNanos) {
+    if (nBytes > ring.length) {
+      throw new IllegalArgumentException("Message exceeds queue capacity: " + nBytes);
+    }
+    while (running && (ring.length - size < nBytes || count == timestamps.length)) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    if (!running) return;
+    int writeIndex = (readIndex + size) % ring.length;
+    int n = Math.min(nBytes, ring.length - writeIndex);
+    System.arraycopy(buffer, 0, ring, writeIndex, n);
+    System.arraycopy(buffer, n, ring, 0, nBytes - n);
+    size += nBytes;
+    int tail = (head + count) % timestamps.length;
+    timestamps[tail] = timestampNanos;
+    lengths[tail] = nBytes;
+    ++count;
+    notifyAll();
+  }
+
+  @Override
+  public synchronized void discardPending() {
+    readIndex = 0;
+    size = 0;
+    head = 0;
+    count = 0;
+    notifyAll();
+  }
+
+  /**
+   * Stops the release thread. Messages that are already due, such as a final all-notes-off, are
+   * released first; later messages will be discarded.
+   */
+  public void close() {
+    synchronized (this) {
+      running = false;
+      notifyAll();
+    }
+    try {
+      releaseThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Preserve interrupt flag in case the caller needs it.
+    }
+  }
+
+  /**
+   * @return number of messages waiting to be released
+   */
+  public synchronized int getPendingCount() {
+    return count;
+  }
+
+  /**
+   * @return number of messages released so far
+   */
+  public synchronized long getReleasedCount() {
+    return releasedCount;
+  }
+
+  /**
+   * @return running estimate of the time that the receiver takes to write a message, in nanoseconds
+   */
+  public synchronized long getWriteLatencyNanos() {
+    return writeLatency;
+  }
+
+  /**
+   * @return largest delay so far between the scheduled and the actual release time of a message, in
+   *         nanoseconds
+   */
+  public synchronized long getMaxLatenessNanos() {
+    return maxLateness;
+  }
+
+  private void releaseMessages() {
+    while (true) {
+      int n;
+      long due;
+      synchronized (this) {
+        try {
+          while (true) {
+            if (count > 0) {
+              due = timestamps[head] - (compensateLatency ? writeLatency : 0);
+              long delay = due - System.nanoTime() - WAKEUP_MARGIN_NANOS;
+              if (delay <= 0) break;
+              if (!running) return;
+              wait(delay / 1000000L, (int) (delay % 1000000L));
+            } else {
+              if (!running) return;
+              wait();
+            }
+          }
+        } catch (InterruptedException e) {
+          return;
+        }
+        n = lengths[head];
+        int m = Math.min(n, ring.length - readIndex);
+        System.arraycopy(ring, readIndex, out, 0, m);
+        System.arraycopy(ring, 0, out, m, n - m);
+        readIndex = (readIndex + n) % ring.length;
+        size -= n;
+        head = (head + 1) % timestamps.length;
+        --count;
+        notifyAll();
+      }
+      while (System.nanoTime() < due) {
+        // Spin.
+      }
+      long start = System.nanoTime();
+      receiver.beginBlock();
+      receiver.onBytesReceived(n, out);
+      receiver.endBlock();
+      long end = System.nanoTime();
+      synchronized (this) {
+        writeLatency += (end - start - writeLatency) / 8;
+        maxLateness = Math.max(maxLateness, start - due);
+        ++releasedCount;
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.usb;
+
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
+
+import com.noisepages.nettoyeur.transport.BulkInRequest;
+import com.noisepages.nettoyeur.transport.BulkInTransport;
+
+/**
+ * Bulk-in transport on top of {@link UsbRequest} and {@link UsbDeviceConnection#requestWait()}.
+ * Older versions of Android don't report the number of bytes transferred by a request, and so
+ * requests always report the full length of their buffer.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
+public class UsbBulkInTransport implements BulkInTransport {
+
+  private final UsbDeviceConnection connection;
+
+  private static class Request implements BulkInRequest {
+    private final UsbRequest request;
+    private final byte[] buffer;
+    private final ByteBuffer byteBuffer;
+    private Object clientData = null;
+
+    private Request(UsbRequest request, int size) {
+      this.request = request;
+      buffer = new byte[size];
+      byteBuffer = ByteBuffer.wrap(buffer);
+      request.setClientData(this);
+    }
+
+    @Override
+    public byte[] getBuffer() {
+      return buffer;
+    }
+
+    @Override
+    public int getLength() {
+      return buffer.length;
+    }
+
+    @Override
+    public boolean queue() {
+      byteBuffer.clear();
+      return request.queue(byteBuffer, buffer.length);
+    }
+
+    @Override
+    public boolean cancel() {
+      return request.cancel();
+    }
+
+    @Override
+    public void close() {
+      request.close();
+    }
+
+    @Override
+    public void setClientData(Object data) {
+      clientData = data;
+    }
+
+    @Override
+    public Object getClientData() {
+      return clientData;
+    }
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param connection open connection to the USB device
+   */
+  public UsbBulkInTransport(UsbDeviceConnection connection) {
+    this.connection = connection;
+  }
+
+  /**
+   * Creates a new read request for the given endpoint.
+   * 
+   * @param endpoint bulk-in endpoint belonging to the connection of this transport
+   * @param size size of the request buffer, typically the max packet size of the endpoint
+   * @return the new request, or null if the request could not be initialized
+   */
+  public BulkInRequest newRequest(UsbEndpoint endpoint, int size) {
+    UsbRequest request = new UsbRequest();
+    if (!request.initialize(connection, endpoint)) {
+      return null;
+    }
+    return new Request(request, size);
+  }
+
+  @Override
+  public BulkInRequest awaitRequest() {
+    UsbRequest request = connection.requestWait();
+    return (request != null) ? (Request) request.getClientData() : null;
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.usb.midi;
+
+import com.noisepages.nettoyeur.midi.FromWireConverter;
+import com.noisepages.nettoyeur.midi.MidiReceiver;
+
+/**
+ * Routes the payload of incoming USB MIDI event packets to per-cable converters. Converters live
+ * in a copy-on-write array with one slot per virtual cable plus one slot for receivers that listen
+ * to all cables, so dispatching a packet costs two array loads instead of two hash lookups with
+ * autoboxed keys. Changes of receivers are published safely through a volatile reference, and the
+ * input thread reads that reference once per transfer.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+class CableDispatcher {
+
+  /**
+   * Slot for the converter that receives events from all cables.
+   */
+  static final int ALL_CABLES = 16;
+
+  // USB payload size by Code Index Number.
+  static final int[] midiPayloadSize = new int[] {
+  /* 0x00 */-1, /* 0x01 */-1, // Reserved for future extensions; currently unused
+      /* 0x02 */2, /* 0x03 */3, // System common
+      /* 0x04 */3, /* 0x05 */1, /* 0x06 */2, /* 0x07 */3, // System exclusive
+      /* 0x08 */3, /* 0x09 */3, /* 0x0a */3, /* 0x0b */3, /* 0x0c */2, /* 0x0d */2, /* 0x0e */3, // Channel
+                                                                                                 // messages
+      /* 0x0f */1 // MIDI byte
+      };
+
+  private volatile FromWireConverter[] converters = new FromWireConverter[ALL_CABLES + 1];
+
+  /**
+   * Sets the receiver for a given slot.
+   * 
+   * @param slot cable number ranging from 0x00 to 0x0f, or ALL_CABLES
+   * @param receiver MIDI receiver for the given slot; may be null
+   */
+  synchronized void setReceiver(int slot, MidiReceiver receiver) {
+    FromWireConverter[] updated = converters.clone();
+    updated[slot] = (receiver != null) ? new FromWireConverter(receiver) : null;
+    converters = updated;
+  }
+
+  /**
+   * Dispatches a buffer of USB MIDI event packets.
+   * 
+   * @param buffer holding USB MIDI event packets
+   * @param nBytes number of bytes in the buffer, starting at index 0
+   */
+  void dispatch(byte[] buffer, int nBytes) {
+    FromWireConverter[] current = converters;
+    FromWireConverter all = current[ALL_CABLES];
+    for (int i = 0; i + 3 < nBytes; i += 4) {
+      int b = buffer[i];
+      int n = midiPayloadSize[b & 0x0f];
+      if (n < 0) continue;
+      if (all != null) {
+        all.onBytesReceived(buffer, i + 1, n); // Call converter for all cables, if any.
+      }
+      FromWireConverter converter = current[(b >> 4) & 0x0f];
+      if (converter != null) {
+        converter.onBytesReceived(buffer, i + 1, n);
+      }
+    }
+  }
+}
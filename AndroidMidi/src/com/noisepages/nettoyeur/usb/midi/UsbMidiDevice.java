@@ -14,12 +14,11 @@
 
 package com.noisepages.nettoyeur.usb.midi;
 
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import android.annotation.TargetApi;
 import android.content.Context;
@@ -30,14 +29,18 @@ import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
 
-import com.noisepages.nettoyeur.common.RawByteReceiver;
-import com.noisepages.nettoyeur.midi.FromWireConverter;
+import com.noisepages.nettoyeur.common.IntRingBuffer;
+import com.noisepages.nettoyeur.common.OverflowPolicy;
 import com.noisepages.nettoyeur.midi.MidiDevice;
 import com.noisepages.nettoyeur.midi.MidiReceiver;
 import com.noisepages.nettoyeur.midi.ToWireConverter;
+import com.noisepages.nettoyeur.transport.BulkInEngine;
+import com.noisepages.nettoyeur.transport.BulkInRequest;
+import com.noisepages.nettoyeur.transport.BulkOutTransport;
 import com.noisepages.nettoyeur.usb.ConnectionFailedException;
 import com.noisepages.nettoyeur.usb.DeviceNotConnectedException;
 import com.noisepages.nettoyeur.usb.InterfaceNotAvailableException;
+import com.noisepages.nettoyeur.usb.UsbBulkInTransport;
 import com.noisepages.nettoyeur.usb.UsbDeviceWithInfo;
 
 /**
@@ -58,18 +61,13 @@ import com.noisepages.nettoyeur.usb.UsbDeviceWithInfo;
 @TargetApi(12)
 public class UsbMidiDevice extends UsbDeviceWithInfo implements MidiDevice {
 
-  // USB payload size by Code Index Number.
-  private static final int[] midiPayloadSize = new int[] {
-  /* 0x00 */-1, /* 0x01 */-1, // Reserved for future extensions; currently unused
-      /* 0x02 */2, /* 0x03 */3, // System common
-      /* 0x04 */3, /* 0x05 */1, /* 0x06 */2, /* 0x07 */3, // System exclusive
-      /* 0x08 */3, /* 0x09 */3, /* 0x0a */3, /* 0x0b */3, /* 0x0c */2, /* 0x0d */2, /* 0x0e */3, // Channel
-                                                                                                 // messages
-      /* 0x0f */1 // MIDI byte
-      };
+  // Number of read requests in flight per input endpoint.
+  private static final int REQUESTS_PER_ENDPOINT = 3;
 
   private final List<UsbMidiInterface> interfaces = new ArrayList<UsbMidiDevice.UsbMidiInterface>();
   private UsbDeviceConnection connection = null;
+  private UsbBulkInTransport inputTransport = null;
+  private BulkInEngine inputEngine = null;
 
   /**
    * MIDI-specific wrapper for USB interfaces within a USB devices. This class doesn't do much and
@@ -110,12 +108,16 @@ public class UsbMidiDevice extends UsbDeviceWithInfo implements MidiDevice {
     }
 
     /**
-     * Stops listening threads on all MIDI inputs belonging to this interface.
+     * Stops listening threads on all MIDI inputs and writer threads on all MIDI outputs belonging to
+     * this interface.
      */
     public void stop() {
       for (UsbMidiInput input : inputs) {
         input.stop();
       }
+      for (UsbMidiOutput output : outputs) {
+        output.stopAsync();
+      }
     }
   }
 
@@ -125,9 +127,8 @@ public class UsbMidiDevice extends UsbDeviceWithInfo implements MidiDevice {
   public class UsbMidiInput {
     private final UsbInterface iface;
     private final UsbEndpoint inputEndpoint;
-    private final ConcurrentMap<Integer, FromWireConverter> converters =
-        new ConcurrentHashMap<Integer, FromWireConverter>();
-    private volatile Thread inputThread = null;
+    private final CableDispatcher dispatcher = new CableDispatcher();
+    private volatile BulkInEngine.Stream inputStream = null;
 
     private UsbMidiInput(UsbInterface iface, UsbEndpoint endpoint) {
       this.iface = iface;
@@ -145,7 +146,7 @@ public class UsbMidiDevice extends UsbDeviceWithInfo implements MidiDevice {
      * @param receiver MIDI receiver for all cables; may be null
      */
     public void setReceiver(MidiReceiver receiver) {
-      setReceiverInternal(-1, receiver);
+      dispatcher.setReceiver(CableDispatcher.ALL_CABLES, receiver);
     }
 
     /**
@@ -158,15 +159,7 @@ public class UsbMidiDevice extends UsbDeviceWithInfo implements MidiDevice {
       if (cable < 0x00 || cable > 0x0f) {
         throw new IllegalArgumentException("Cable number out of range");
       }
-      setReceiverInternal(cable, receiver);
-    }
-
-    private void setReceiverInternal(int cable, MidiReceiver receiver) {
-      if (receiver != null) {
-        converters.put(cable, new FromWireConverter(receiver));
-      } else {
-        converters.remove(cable);
-      }
+      dispatcher.setReceiver(cable, receiver);
     }
 
     /**
@@ -183,139 +176,172 @@ public class UsbMidiDevice extends UsbDeviceWithInfo implements MidiDevice {
       if (!connection.claimInterface(iface, true)) {
         throw new InterfaceNotAvailableException();
       }
-      inputThread = new Thread() {
-        private final byte[] inputBuffer = new byte[inputEndpoint.getMaxPacketSize()];
-        private final byte[] tmpBuffer = new byte[3];
-
+      BulkInRequest[] requests = new BulkInRequest[REQUESTS_PER_ENDPOINT];
+      for (int i = 0; i < requests.length; i++) {
+        requests[i] = inputTransport.newRequest(inputEndpoint, inputEndpoint.getMaxPacketSize());
+        if (requests[i] == null) {
+          closeRequests(requests);
+          throw new InterfaceNotAvailableException();
+        }
+      }
+      inputStream = inputEngine.addStream(requests, new BulkInEngine.Handler() {
         @Override
-        public void run() {
-          while (!interrupted()) {
-            int nRead = connection.bulkTransfer(inputEndpoint, inputBuffer, inputBuffer.length, 50);
-            for (int i = 0; i < nRead; i += 4) {
-              int b = inputBuffer[i];
-              int cable = (b >> 4) & 0x0f;
-              int n = midiPayloadSize[b & 0x0f];
-              if (n < 0) continue;
-              for (int j = 0; j < n; ++j) {
-                tmpBuffer[j] = inputBuffer[i + j + 1];
-              }
-              convertBytes(converters.get(-1), n); // Call converter for all cables, if any.
-              convertBytes(converters.get(cable), n);
-            }
-          }
+        public void onBytesReceived(byte[] buffer, int length) {
+          dispatcher.dispatch(buffer, length);
         }
+      });
+      if (inputStream == null) {
+        throw new InterfaceNotAvailableException();
+      }
+    }
 
-        private void convertBytes(FromWireConverter converter, int n) {
-          if (converter != null) {
-            converter.onBytesReceived(n, tmpBuffer);
-          }
+    private void closeRequests(BulkInRequest[] requests) {
+      for (BulkInRequest request : requests) {
+        if (request != null) {
+          request.close();
         }
-      };
-      inputThread.start();
+      }
     }
 
     /**
      * Stops listening to this input.
      */
     public void stop() {
-      if (inputThread != null) {
-        inputThread.interrupt();
-        try {
-          inputThread.join();
-        } catch (InterruptedException e) {
-          Thread.currentThread().interrupt(); // Preserve interrupt flag in case the caller needs
-                                              // it.
-        }
-        inputThread = null;
+      if (inputStream != null) {
+        inputStream.close();
+        inputStream = null;
       }
     }
   }
 
   /**
-   * Wrapper for USB MIDI output endpoints.
+   * Wrapper for USB MIDI output endpoints. By default, output is synchronous, i.e., MIDI events are
+   * transferred to the device on the thread that sends them. Alternatively, an asynchronous output
+   * will queue USB MIDI packets in a bounded lock-free queue that is drained by a dedicated writer
+   * thread, so that a slow device cannot stall the sending thread.
    */
   public class UsbMidiOutput {
+    private static final int ASYNC_TRANSFER_TIMEOUT = 250; // Milliseconds.
+
     private final UsbInterface iface;
     private final UsbEndpoint outputEndpoint;
-    private final byte[] outBuffer;
+    private final BulkOutTransport outTransport;
+    private final UsbMidiPacketWriter packetWriter;
+    private final ToWireConverter toWire;
     private volatile int cable;
+    private volatile AsyncWriter asyncWriter = null;
 
-    private final ToWireConverter toWire = new ToWireConverter(new RawByteReceiver() {
-      private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-      private boolean inBlock = false;
-      int writeIndex = 0;
+    /**
+     * Queue of USB MIDI event packets plus the thread that drains it. Each packet is stored as one
+     * int, with the header in the lowest byte.
+     */
+    private class AsyncWriter extends UsbMidiPacketizer implements Runnable {
+      private final IntRingBuffer queue;
+      private final OverflowPolicy policy;
+      private final ToWireConverter asyncToWire = new ToWireConverter(this);
+      private final AtomicLong dropped = new AtomicLong(0);
+      private final Thread writerThread = new Thread(this, "UsbMidiWriter");
+      private volatile boolean running = true;
+      private volatile boolean writerWaiting = false;
+
+      private AsyncWriter(int capacity, OverflowPolicy policy) {
+        queue = new IntRingBuffer(capacity);
+        this.policy = policy;
+      }
 
       @Override
-      public synchronized void onBytesReceived(int nBytes, byte[] buffer) {
-        if (connection == null) return;
-        for (int start = 0, end; start < nBytes; start = end) {
-          for (end = start + 1; end < nBytes && (buffer[end] == (byte) 0xf7 || buffer[end] >= 0); ++end);
-          processChunk(buffer, start, end);
-        }
-        transfer();
+      public void onBytesReceived(int nBytes, byte[] buffer) {
+        packetize(nBytes, buffer, cable);
       }
 
-      private void processChunk(byte[] buffer, int start, int end) {
-        int cin = (buffer[start] >> 4) & 0x0f;
-        if (cin >= 0x08 && cin < 0x0f && end - start == midiPayloadSize[cin]) {
-          // The most common case: Correctly formed MIDI channel message.
-          outBuffer[writeIndex++] = (byte) (cable | cin);
-          while (start < end) {
-            outBuffer[writeIndex++] = buffer[start++];
-          }
-          while ((writeIndex & 0x03) != 0) {
-            outBuffer[writeIndex++] = 0;
-          }
-          transferIfFull();
-        } else {
-          // No channel message? Just dump single bytes.
-          while (start < end) {
-            outBuffer[writeIndex++] = (byte) (cable | 0x0f);
-            outBuffer[writeIndex++] = buffer[start++];
-            outBuffer[writeIndex++] = 0;
-            outBuffer[writeIndex++] = 0;
-            transferIfFull();
+      @Override
+      protected void writePacket(byte header, byte b1, byte b2, byte b3) {
+        int packet = (header & 0xff) | ((b1 & 0xff) << 8) | ((b2 & 0xff) << 16) | (b3 << 24);
+        while (!queue.offer(packet)) {
+          if (!running || policy == OverflowPolicy.DROP_NEWEST) {
+            dropped.incrementAndGet();
+            return;
+          } else if (policy == OverflowPolicy.DROP_OLDEST) {
+            if (queue.discard()) {
+              dropped.incrementAndGet();
+            }
+          } else {
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(100000);
           }
         }
-      }
-
-      private void transferIfFull() {
-        if (writeIndex >= outBuffer.length) {
-          transfer();
+        if (writerWaiting) {
+          LockSupport.unpark(writerThread);
         }
       }
 
-      private void transfer() {
-        if (inBlock) {
-          outputStream.write(outBuffer, 0, writeIndex);
-        } else {
-          connection.bulkTransfer(outputEndpoint, outBuffer, writeIndex, 0);
-        }
-        writeIndex = 0;
-      }
-
       @Override
       public boolean beginBlock() {
-        outputStream.reset();
-        inBlock = true;
+        // Nothing to do here; the writer thread coalesces packets anyway.
         return true;
       }
 
       @Override
-      public void endBlock() {
-        if (inBlock) {
-          connection.bulkTransfer(outputEndpoint, outputStream.toByteArray(), outputStream.size(),
-              0);
-        } else {
-          throw new IllegalStateException("Not in block mode");
+      public void endBlock() {}
+
+      @Override
+      public void run() {
+        byte[] buffer = new byte[outputEndpoint.getMaxPacketSize()];
+        int[] packets = new int[buffer.length / 4];
+        while (running) {
+          int n = queue.drainTo(packets, packets.length);
+          if (n == 0) {
+            writerWaiting = true;
+            if (queue.isEmpty() && running) {
+              LockSupport.park(this);
+            }
+            writerWaiting = false;
+            continue;
+          }
+          for (int i = 0, j = 0; i < n; ++i) {
+            int packet = packets[i];
+            buffer[j++] = (byte) packet;
+            buffer[j++] = (byte) (packet >> 8);
+            buffer[j++] = (byte) (packet >> 16);
+            buffer[j++] = (byte) (packet >> 24);
+          }
+          int written = outTransport.write(buffer, n * 4, ASYNC_TRANSFER_TIMEOUT);
+          if (written < n * 4) {
+            // Failed, timed out, or short; count every packet that didn't go out in full.
+            dropped.addAndGet(n - Math.max(written, 0) / 4);
+          }
         }
       }
-    });
+
+      private void stop() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+          writerThread.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt(); // Preserve interrupt flag in case the caller needs
+                                              // it.
+        }
+      }
+    }
 
     private UsbMidiOutput(UsbInterface iface, UsbEndpoint ep) {
       this.iface = iface;
       outputEndpoint = ep;
-      outBuffer = new byte[ep.getMaxPacketSize()];
+      outTransport = new BulkOutTransport() {
+        @Override
+        public int getMaxPacketSize() {
+          return outputEndpoint.getMaxPacketSize();
+        }
+
+        @Override
+        public int write(byte[] buffer, int length, int timeout) {
+          UsbDeviceConnection c = connection;
+          return (c != null) ? c.bulkTransfer(outputEndpoint, buffer, length, timeout) : -1;
+        }
+      };
+      packetWriter = new UsbMidiPacketWriter(outTransport);
+      toWire = new ToWireConverter(packetWriter);
       setVirtualCable(0);
     }
 
@@ -331,6 +357,7 @@ public class UsbMidiDevice extends UsbDeviceWithInfo implements MidiDevice {
      */
     public void setVirtualCable(int c) {
       cable = (c << 4) & 0xf0;
+      packetWriter.setVirtualCable(c);
     }
 
     /**
@@ -343,13 +370,70 @@ public class UsbMidiDevice extends UsbDeviceWithInfo implements MidiDevice {
      */
     public MidiReceiver getMidiOut() throws DeviceNotConnectedException,
         InterfaceNotAvailableException {
+      claimInterface();
+      return toWire;
+    }
+
+    /**
+     * Returns a non-blocking MidiReceiver instance associated with this endpoint. MIDI events sent
+     * to this receiver are queued as USB MIDI packets, and a dedicated writer thread coalesces them
+     * into transfers of up to the max packet size of the endpoint. The writer thread is started on
+     * the first invocation of this method and runs until {@link #stopAsync()} is called or the
+     * device is closed; subsequent invocations return the same receiver and ignore their
+     * parameters. Requires that the enclosing USB MIDI device be connected.
+     * 
+     * @param capacity capacity of the packet queue, in USB MIDI packets
+     * @param policy policy for handling events when the queue is full
+     * @return MidiReceiver instance to write MIDI events to
+     * @throws DeviceNotConnectedException if the USB MIDI device is not connected
+     * @throws InterfaceNotAvailableException
+     */
+    public synchronized MidiReceiver getAsyncMidiOut(int capacity, OverflowPolicy policy)
+        throws DeviceNotConnectedException, InterfaceNotAvailableException {
+      claimInterface();
+      if (asyncWriter == null) {
+        asyncWriter = new AsyncWriter(capacity, policy);
+        asyncWriter.writerThread.start();
+      }
+      return asyncWriter.asyncToWire;
+    }
+
+    /**
+     * Stops the writer thread of the asynchronous output, if any. Packets that are still queued
+     * will be discarded.
+     */
+    public synchronized void stopAsync() {
+      if (asyncWriter != null) {
+        asyncWriter.stop();
+        asyncWriter = null;
+      }
+    }
+
+    /**
+     * @return number of USB MIDI packets in the queue of the asynchronous output
+     */
+    public int getQueueDepth() {
+      AsyncWriter writer = asyncWriter;
+      return (writer != null) ? writer.queue.size() : 0;
+    }
+
+    /**
+     * @return number of USB MIDI packets that the asynchronous output has dropped due to overflow
+     *         or failed transfers
+     */
+    public long getDroppedCount() {
+      AsyncWriter writer = asyncWriter;
+      return (writer != null) ? writer.dropped.get() : 0;
+    }
+
+    private void claimInterface() throws DeviceNotConnectedException,
+        InterfaceNotAvailableException {
       if (connection == null) {
         throw new DeviceNotConnectedException();
       }
       if (!connection.claimInterface(iface, true)) {
         throw new InterfaceNotAvailableException();
       }
-      return toWire;
     }
   }
 
@@ -448,6 +532,8 @@ public class UsbMidiDevice extends UsbDeviceWithInfo implements MidiDevice {
     if (connection == null) {
       throw new ConnectionFailedException();
     }
+    inputTransport = new UsbBulkInTransport(connection);
+    inputEngine = new BulkInEngine(inputTransport, "UsbMidiReader");
   }
 
   /**
@@ -462,6 +548,8 @@ public class UsbMidiDevice extends UsbDeviceWithInfo implements MidiDevice {
     }
     connection.close();
     connection = null;
+    inputTransport = null;
+    inputEngine = null;
   }
 
   /**
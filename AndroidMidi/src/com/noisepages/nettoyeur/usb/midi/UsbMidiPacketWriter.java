@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.usb.midi;
+
+import com.noisepages.nettoyeur.common.ByteArena;
+import com.noisepages.nettoyeur.transport.BulkOutTransport;
+
+/**
+ * Synchronous writer of USB MIDI event packets. Outside of block mode, each buffer of MIDI bytes
+ * goes out as soon as it has been packetized; in block mode, packets accumulate in pages of the max
+ * packet size of the endpoint and go out at the end of the block.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public class UsbMidiPacketWriter extends UsbMidiPacketizer {
+
+  private final BulkOutTransport transport;
+  private final byte[] outBuffer;
+  private ByteArena blockArena = null; // Created on demand, pages of max packet size.
+  private boolean inBlock = false;
+  private int writeIndex = 0;
+  private volatile int cable = 0;
+
+  /**
+   * Constructor.
+   * 
+   * @param transport bulk-out transport to write packets to
+   */
+  public UsbMidiPacketWriter(BulkOutTransport transport) {
+    this.transport = transport;
+    outBuffer = new byte[transport.getMaxPacketSize()];
+  }
+
+  /**
+   * Sets the virtual cable to write to; the default is 0.
+   * 
+   * @param c virtual cable number
+   */
+  public void setVirtualCable(int c) {
+    cable = (c << 4) & 0xf0;
+  }
+
+  @Override
+  public synchronized void onBytesReceived(int nBytes, byte[] buffer) {
+    packetize(nBytes, buffer, cable);
+    if (!inBlock) {
+      transfer();
+    }
+  }
+
+  @Override
+  protected void writePacket(byte header, byte b1, byte b2, byte b3) {
+    if (inBlock) {
+      blockArena.write(header);
+      blockArena.write(b1);
+      blockArena.write(b2);
+      blockArena.write(b3);
+      return;
+    }
+    outBuffer[writeIndex++] = header;
+    outBuffer[writeIndex++] = b1;
+    outBuffer[writeIndex++] = b2;
+    outBuffer[writeIndex++] = b3;
+    if (writeIndex >= outBuffer.length) {
+      transfer();
+    }
+  }
+
+  private void transfer() {
+    if (writeIndex > 0) {
+      transport.write(outBuffer, writeIndex, 0);
+      writeIndex = 0;
+    }
+  }
+
+  @Override
+  public synchronized boolean beginBlock() {
+    if (blockArena == null) {
+      blockArena = new ByteArena(outBuffer.length);
+    }
+    blockArena.reset();
+    inBlock = true;
+    return true;
+  }
+
+  @Override
+  public synchronized void endBlock() {
+    if (!inBlock) {
+      throw new IllegalStateException("Not in block mode");
+    }
+    inBlock = false;
+    // Pages have the max packet size of the endpoint, so they go out without copying.
+    for (int i = 0; i < blockArena.getPageCount(); ++i) {
+      transport.write(blockArena.getPage(i), blockArena.getPageLength(i), 0);
+    }
+    blockArena.reset();
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.usb.midi;
+
+import com.noisepages.nettoyeur.common.RawByteReceiver;
+
+/**
+ * Converter from MIDI wire format to USB MIDI event packets. Channel messages are packed into one
+ * packet each; everything else goes out one byte at a time.
+ * 
+ * @author Peter Brinkmann (peter.brinkmann@gmail.com)
+ */
+public abstract class UsbMidiPacketizer implements RawByteReceiver {
+
+  /**
+   * Splits a buffer of MIDI bytes into USB MIDI event packets.
+   * 
+   * @param nBytes number of bytes in the buffer
+   * @param buffer holding MIDI bytes in wire format
+   * @param cable virtual cable number in the high nibble of the packet header, i.e., 0x00 to 0xf0
+   */
+  protected void packetize(int nBytes, byte[] buffer, int cable) {
+    for (int start = 0, end; start < nBytes; start = end) {
+      for (end = start + 1; end < nBytes && (buffer[end] == (byte) 0xf7 || buffer[end] >= 0); ++end);
+      processChunk(buffer, start, end, cable);
+    }
+  }
+
+  private void processChunk(byte[] buffer, int start, int end, int cable) {
+    int cin = (buffer[start] >> 4) & 0x0f;
+    if (cin >= 0x08 && cin < 0x0f && end - start == CableDispatcher.midiPayloadSize[cin]) {
+      // The most common case: Correctly formed MIDI channel message.
+      writePacket((byte) (cable | cin), buffer[start], buffer[start + 1],
+          (end - start > 2) ? buffer[start + 2] : 0);
+    } else {
+      // No channel message? Just dump single bytes.
+      while (start < end) {
+        writePacket((byte) (cable | 0x0f), buffer[start++], (byte) 0, (byte) 0);
+      }
+    }
+  }
+
+  /**
+   * Handles one USB MIDI event packet.
+   */
+  protected abstract void writePacket(byte header, byte b1, byte b2, byte b3);
+}
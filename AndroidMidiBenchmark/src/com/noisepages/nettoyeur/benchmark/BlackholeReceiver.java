@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.benchmark;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.noisepages.nettoyeur.common.RawByteReceiver;
+import com.noisepages.nettoyeur.midi.MidiReceiver;
+import com.noisepages.nettoyeur.midi.PackedMidiReceiver;
+
+/**
+ * Receiver that feeds everything it gets into a JMH blackhole and counts messages, so that the
+ * benchmarks can report messages per second.
+ */
+public class BlackholeReceiver implements MidiReceiver, PackedMidiReceiver, RawByteReceiver {
+
+  private final Blackhole blackhole;
+  public long messages = 0;
+  public long bytes = 0;
+
+  public BlackholeReceiver(Blackhole blackhole) {
+    this.blackhole = blackhole;
+  }
+
+  private void consume(int channel, int a, int b) {
+    blackhole.consume(channel ^ (a << 4) ^ (b << 11));
+    messages++;
+  }
+
+  @Override
+  public void onNoteOff(int channel, int key, int velocity) {
+    consume(channel, key, velocity);
+  }
+
+  @Override
+  public void onNoteOn(int channel, int key, int velocity) {
+    consume(channel, key, velocity);
+  }
+
+  @Override
+  public void onPolyAftertouch(int channel, int key, int velocity) {
+    consume(channel, key, velocity);
+  }
+
+  @Override
+  public void onControlChange(int channel, int controller, int value) {
+    consume(channel, controller, value);
+  }
+
+  @Override
+  public void onProgramChange(int channel, int program) {
+    consume(channel, program, 0);
+  }
+
+  @Override
+  public void onAftertouch(int channel, int velocity) {
+    consume(channel, velocity, 0);
+  }
+
+  @Override
+  public void onPitchBend(int channel, int value) {
+    consume(channel, value, 0);
+  }
+
+  @Override
+  public void onRawByte(byte value) {
+    consume(value, 0, 0);
+  }
+
+  @Override
+  public void onMessagesReceived(int count, int[] packed) {
+    for (int i = 0; i < count; i++) {
+      blackhole.consume(packed[i]);
+    }
+    messages += count;
+  }
+
+  @Override
+  public void onBytesReceived(int nBytes, byte[] buffer) {
+    blackhole.consume(buffer);
+    bytes += nBytes;
+  }
+
+  @Override
+  public boolean beginBlock() {
+    return true;
+  }
+
+  @Override
+  public void endBlock() {}
+}
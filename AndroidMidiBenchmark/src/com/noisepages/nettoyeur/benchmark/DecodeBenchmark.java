@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.noisepages.nettoyeur.midi.FromWireConverter;
+import com.noisepages.nettoyeur.midi.PackedFromWireConverter;
+import com.noisepages.nettoyeur.midi.PackedMidiDecoder;
+
+/**
+ * Decode throughput of the wire format decoders. Besides operations (i.e., buffers) per second,
+ * each benchmark reports bytes and messages per second as secondary results.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+
+  /**
+   * Size of the buffers handed to the decoders; 64 is typical of USB and Bluetooth reads.
+   */
+  @Param({"64", "4096"})
+  public int bufferSize;
+
+  private byte[] stream;
+  private int[] messages;
+  private BlackholeReceiver receiver;
+  private FromWireConverter fromWire;
+  private PackedFromWireConverter packedFromWire;
+  private PackedMidiDecoder decoder;
+
+  /**
+   * Secondary results, normalized to seconds like the primary result.
+   */
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public long bytes;
+    public long messages;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytes = 0;
+      messages = 0;
+    }
+  }
+
+  @Setup
+  public void setUp(Blackhole blackhole) {
+    stream = MidiData.wireStream(bufferSize);
+    messages = new int[bufferSize + 16];
+    receiver = new BlackholeReceiver(blackhole);
+    fromWire = new FromWireConverter(receiver);
+    packedFromWire = new PackedFromWireConverter(receiver);
+    decoder = new PackedMidiDecoder();
+  }
+
+  private void count(Counters counters, long before) {
+    counters.bytes += stream.length;
+    counters.messages += receiver.messages - before;
+  }
+
+  @Benchmark
+  public void fromWireConverter(Counters counters) {
+    long before = receiver.messages;
+    fromWire.onBytesReceived(stream.length, stream);
+    count(counters, before);
+  }
+
+  @Benchmark
+  public void packedFromWireConverter(Counters counters) {
+    long before = receiver.messages;
+    packedFromWire.onBytesReceived(stream.length, stream);
+    count(counters, before);
+  }
+
+  @Benchmark
+  public int packedMidiDecoder(Counters counters) {
+    int n = decoder.decode(stream, 0, stream.length, messages);
+    counters.bytes += stream.length;
+    counters.messages += n;
+    return n;
+  }
+}
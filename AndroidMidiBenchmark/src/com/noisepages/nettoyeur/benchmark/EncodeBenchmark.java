@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.noisepages.nettoyeur.midi.ToWireConverter;
+import com.noisepages.nettoyeur.midi.util.SystemMessageEncoder;
+
+/**
+ * Cost of encoding MIDI events to wire format. The jmh task runs with the GC profiler, so the
+ * report includes the allocation rate per operation (gc.alloc.rate.norm, in bytes/op), which ought
+ * to be zero.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodeBenchmark {
+
+  @Param({"false", "true"})
+  public boolean runningStatus;
+
+  private ToWireConverter toWire;
+  private SystemMessageEncoder sysexEncoder;
+  private final byte[] patchBank = new byte[65536];
+  private int key = 0;
+
+  @Setup
+  public void setUp(Blackhole blackhole) {
+    toWire = new ToWireConverter(new BlackholeReceiver(blackhole));
+    toWire.setRunningStatus(runningStatus);
+    sysexEncoder = new SystemMessageEncoder(toWire);
+    for (int i = 0; i < patchBank.length; i++) {
+      patchBank[i] = (byte) (i & 0x7f);
+    }
+  }
+
+  @Benchmark
+  public void noteOn() {
+    key = (key + 1) & 0x7f;
+    toWire.onNoteOn(0, key, 100);
+  }
+
+  @Benchmark
+  public void mixedMessages() {
+    key = (key + 1) & 0x7f;
+    toWire.onNoteOn(0, key, 100);
+    toWire.onControlChange(0, 1, key);
+    toWire.onPitchBend(0, key << 6);
+    toWire.onProgramChange(1, key);
+  }
+
+  /**
+   * A chord of 16 notes, sent in block mode.
+   */
+  @Benchmark
+  public void block() {
+    key = (key + 1) & 0x3f;
+    toWire.beginBlock();
+    for (int i = 0; i < 16; i++) {
+      toWire.onNoteOn(0, key + i, 100);
+    }
+    toWire.endBlock();
+  }
+
+  /**
+   * A 64 KB sysex message, e.g., a patch bank dump.
+   */
+  @Benchmark
+  public void sysex() {
+    sysexEncoder.onSystemExclusive(patchBank);
+  }
+}
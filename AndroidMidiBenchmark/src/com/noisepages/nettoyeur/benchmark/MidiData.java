@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Deterministic test data for the benchmarks: MIDI byte streams in wire format and Standard MIDI
+ * Files of various shapes.
+ */
+public class MidiData {
+
+  private MidiData() {}
+
+  /**
+   * Creates a stream of MIDI bytes that resembles the output of a keyboard: mostly notes and
+   * controllers, partly in running status, with occasional pitch bends, program changes, real-time
+   * bytes and short sysex messages.
+   * 
+   * @param size minimum number of bytes
+   * @return MIDI bytes in wire format
+   */
+  public static byte[] wireStream(int size) {
+    Random random = new Random(42);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(size + 16);
+    int status = 0;
+    while (out.size() < size) {
+      int r = random.nextInt(100);
+      if (r < 2) {
+        out.write(0xf8); // Clock; leaves running status intact.
+      } else if (r < 3) {
+        out.write(0xf0);
+        for (int i = 0; i < 8; i++) {
+          out.write(random.nextInt(128));
+        }
+        out.write(0xf7);
+        status = 0;
+      } else {
+        int s;
+        if (r < 60) {
+          s = (random.nextBoolean() ? 0x90 : 0x80) | random.nextInt(4);
+        } else if (r < 85) {
+          s = 0xb0 | random.nextInt(4);
+        } else if (r < 95) {
+          s = 0xe0 | random.nextInt(4);
+        } else {
+          s = 0xc0 | random.nextInt(4);
+        }
+        if (s != status || random.nextInt(4) == 0) {
+          out.write(s);
+        }
+        status = s;
+        out.write(random.nextInt(128));
+        if ((s & 0xf0) != 0xc0) {
+          out.write(random.nextInt(128));
+        }
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Creates a format 1 Standard MIDI File with a tempo track and the given number of note tracks.
+   * 
+   * @param tracks number of note tracks
+   * @param notesPerTrack number of notes per track, each one made up of a note on and a note off
+   * @param tempoChanges number of tempo changes in the tempo track
+   * @param maxDelta maximum delta time between events, in ticks; large values lead to long variable
+   *        length quantities
+   * @param runningStatus whether to use running status within tracks
+   * @return contents of the file
+   */
+  public static byte[] standardMidiFile(int tracks, int notesPerTrack, int tempoChanges,
+      int maxDelta, boolean runningStatus) {
+    Random random = new Random(tracks * 31 + notesPerTrack);
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    writeAscii(file, "MThd");
+    writeInt(file, 6);
+    writeShort(file, 1);
+    writeShort(file, tracks + 1);
+    writeShort(file, 480);
+
+    ByteArrayOutputStream track = new ByteArrayOutputStream();
+    for (int i = 0; i < tempoChanges; i++) {
+      writeVarInt(track, random.nextInt(maxDelta + 1));
+      int tempo = 300000 + random.nextInt(400000);
+      track.write(0xff);
+      track.write(0x51);
+      track.write(3);
+      track.write(tempo >> 16);
+      track.write(tempo >> 8);
+      track.write(tempo);
+    }
+    writeTrack(file, track);
+
+    for (int t = 0; t < tracks; t++) {
+      track.reset();
+      int channel = t & 0x0f;
+      int status = 0;
+      for (int i = 0; i < notesPerTrack; i++) {
+        int key = 24 + random.nextInt(80);
+        status = writeEvent(track, random.nextInt(maxDelta + 1), 0x90 | channel, key,
+            1 + random.nextInt(127), status, runningStatus);
+        status = writeEvent(track, random.nextInt(maxDelta + 1), 0x80 | channel, key, 64, status,
+            runningStatus);
+      }
+      writeTrack(file, track);
+    }
+    return file.toByteArray();
+  }
+
+  private static int writeEvent(ByteArrayOutputStream track, int delta, int status, int data1,
+      int data2, int previousStatus, boolean runningStatus) {
+    writeVarInt(track, delta);
+    if (!runningStatus || status != previousStatus) {
+      track.write(status);
+    }
+    track.write(data1);
+    track.write(data2);
+    return status;
+  }
+
+  private static void writeTrack(ByteArrayOutputStream file, ByteArrayOutputStream track) {
+    track.write(0); // End of track.
+    track.write(0xff);
+    track.write(0x2f);
+    track.write(0);
+    writeAscii(file, "MTrk");
+    writeInt(file, track.size());
+    byte[] bytes = track.toByteArray();
+    file.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, int value) {
+    int shift = 28;
+    while (shift > 0 && (value >> shift) == 0) {
+      shift -= 7;
+    }
+    for (; shift > 0; shift -= 7) {
+      out.write(0x80 | ((value >> shift) & 0x7f));
+    }
+    out.write(value & 0x7f);
+  }
+
+  private static void writeAscii(ByteArrayOutputStream out, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      out.write(s.charAt(i));
+    }
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int value) {
+    writeShort(out, value >> 16);
+    writeShort(out, value);
+  }
+
+  private static void writeShort(ByteArrayOutputStream out, int value) {
+    out.write(value >> 8);
+    out.write(value);
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.noisepages.nettoyeur.midi.file.InvalidMidiDataException;
+import com.noisepages.nettoyeur.midi.file.MidiFileParser;
+import com.noisepages.nettoyeur.midi.file.MidiFileVisitor;
+import com.noisepages.nettoyeur.midi.file.Sequence;
+import com.noisepages.nettoyeur.midi.file.StandardMidiFileReader;
+import com.noisepages.nettoyeur.midi.player.MidiSequence;
+import com.noisepages.nettoyeur.midi.player.MidiSequenceObserver;
+
+/**
+ * Time to parse Standard MIDI Files and to build playable sequences from them, compared with the
+ * time to load the same sequences in compiled format. Run with -prof gc to compare allocation
+ * rates, e.g., of getSequence and parse.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MidiFileBenchmark {
+
+  /**
+   * small: a short song with one note track. large: 16 note tracks with 5000 notes each.
+   * pathological: one long track with thousands of tempo changes, long delta times, and no
+   * running status.
+   */
+  @Param({"small", "large", "pathological"})
+  public String file;
+
+  private byte[] contents;
+  private File compiled;
+
+  private static final MidiSequenceObserver observer = new MidiSequenceObserver() {
+    @Override
+    public void onPlaybackFinished(MidiSequence sequence) {}
+  };
+
+  /**
+   * Visitor that only folds the events into a checksum, so that the cost of parsing is all that
+   * gets measured.
+   */
+  private static class ChecksumVisitor implements MidiFileVisitor {
+    private int checksum = 0;
+
+    @Override
+    public void onTrackStart(int track) {}
+
+    @Override
+    public void onChannelMessage(int track, long tick, int status, int data1, int data2) {
+      checksum = 31 * checksum + (int) tick + status + data1 + data2;
+    }
+
+    @Override
+    public void onSysex(int track, long tick, int status, ByteBuffer buffer, int offset,
+        int length) {
+      checksum = 31 * checksum + (int) tick + length;
+    }
+
+    @Override
+    public void onMeta(int track, long tick, int type, ByteBuffer buffer, int offset, int length) {
+      checksum = 31 * checksum + (int) tick + type;
+    }
+
+    @Override
+    public void onTrackEnd(int track, long tick) {}
+  }
+
+  @Setup
+  public void setUp() {
+    if ("small".equals(file)) {
+      contents = MidiData.standardMidiFile(1, 200, 1, 240, true);
+    } else if ("large".equals(file)) {
+      contents = MidiData.standardMidiFile(16, 5000, 10, 240, true);
+    } else if ("pathological".equals(file)) {
+      contents = MidiData.standardMidiFile(1, 20000, 5000, 1 << 20, false);
+    } else {
+      throw new IllegalArgumentException("Unknown file: " + file);
+    }
+    try {
+      compiled = File.createTempFile("benchmark", ".mseq");
+      new MidiSequence(new ByteArrayInputStream(contents), observer).save(compiled);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    compiled.delete();
+  }
+
+  @Benchmark
+  public Sequence getSequence() throws InvalidMidiDataException, IOException {
+    return new StandardMidiFileReader().getSequence(new ByteArrayInputStream(contents));
+  }
+
+  @Benchmark
+  public int parse() throws InvalidMidiDataException, IOException {
+    ChecksumVisitor visitor = new ChecksumVisitor();
+    new MidiFileParser(ByteBuffer.wrap(contents)).parse(visitor);
+    return visitor.checksum;
+  }
+
+  @Benchmark
+  public MidiSequence midiSequence() throws InvalidMidiDataException, IOException {
+    return new MidiSequence(new ByteArrayInputStream(contents), observer);
+  }
+
+  @Benchmark
+  public MidiSequence loadCompiled() throws IOException {
+    return MidiSequence.load(compiled, observer);
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.usb.midi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.noisepages.nettoyeur.benchmark.BlackholeReceiver;
+import com.noisepages.nettoyeur.midi.FromWireConverter;
+
+/**
+ * Compares the former ConcurrentHashMap lookup of per-cable converters with the array-based
+ * {@link CableDispatcher}, on full bulk transfers of note events for four cables. Lives in the
+ * package of the dispatcher since the dispatcher is package private.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CableDispatchBenchmark {
+
+  private static final int PACKETS_PER_TRANSFER = 16;
+
+  private final byte[] buffer = new byte[PACKETS_PER_TRANSFER * 4];
+  private final ConcurrentMap<Integer, FromWireConverter> converters =
+      new ConcurrentHashMap<Integer, FromWireConverter>();
+  private final CableDispatcher dispatcher = new CableDispatcher();
+
+  @Setup
+  public void setUp(Blackhole blackhole) {
+    for (int i = 0; i < PACKETS_PER_TRANSFER; i++) {
+      buffer[4 * i] = (byte) (((i % 4) << 4) | 0x09);
+      buffer[4 * i + 1] = (byte) 0x90;
+      buffer[4 * i + 2] = (byte) (i + 36);
+      buffer[4 * i + 3] = 100;
+    }
+    BlackholeReceiver receiver = new BlackholeReceiver(blackhole);
+    for (int cable = 0; cable < 4; cable++) {
+      converters.put(cable, new FromWireConverter(receiver));
+      dispatcher.setReceiver(cable, receiver);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PACKETS_PER_TRANSFER)
+  public void map() {
+    for (int i = 0; i < buffer.length; i += 4) {
+      int b = buffer[i];
+      int n = CableDispatcher.midiPayloadSize[b & 0x0f];
+      if (n < 0) continue;
+      FromWireConverter converter = converters.get(-1);
+      if (converter != null) converter.onBytesReceived(buffer, i + 1, n);
+      converter = converters.get((b >> 4) & 0x0f);
+      if (converter != null) converter.onBytesReceived(buffer, i + 1, n);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PACKETS_PER_TRANSFER)
+  public void array() {
+    dispatcher.dispatch(buffer, buffer.length);
+  }
+}
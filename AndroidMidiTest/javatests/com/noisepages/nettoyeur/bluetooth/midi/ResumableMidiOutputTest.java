@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.bluetooth.midi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.midi.FromWireConverter;
+import com.noisepages.nettoyeur.midi.MidiReceiver;
+import com.noisepages.nettoyeur.midi.util.MidiStateTracker;
+
+public class ResumableMidiOutputTest {
+
+  private static class RecordingOutput extends ResumableMidiOutput {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    @Override
+    protected void write(byte[] buffer, int offset, int count) {
+      bytes.write(buffer, offset, count);
+    }
+  }
+
+  /**
+   * Plays the part of the remote device: keeps track of the notes that are sounding and logs
+   * program changes and notes, decoding the wire format without any prior state.
+   */
+  private static class Device extends MidiReceiver.DummyReceiver {
+    private final Set<Integer> notes = new TreeSet<Integer>();
+    private final List<String> log = new ArrayList<String>();
+    private final MidiStateTracker state = new MidiStateTracker(this);
+
+    private Device(byte[] wire) {
+      new FromWireConverter(state).onBytesReceived(wire.length, wire);
+    }
+
+    @Override
+    public void onNoteOn(int channel, int key, int velocity) {
+      if (velocity > 0) {
+        notes.add(channel * 128 + key);
+        log.add("note " + channel + " " + key);
+      } else {
+        notes.remove(channel * 128 + key);
+      }
+    }
+
+    @Override
+    public void onNoteOff(int channel, int key, int velocity) {
+      notes.remove(channel * 128 + key);
+    }
+
+    @Override
+    public void onControlChange(int channel, int controller, int value) {
+      if (controller == 123) {
+        for (int key = 0; key < 128; ++key) {
+          notes.remove(channel * 128 + key);
+        }
+      }
+    }
+
+    @Override
+    public void onProgramChange(int channel, int program) {
+      log.add("program " + channel + " " + program);
+    }
+  }
+
+  private static byte[] since(RecordingOutput output, int start) {
+    byte[] all = output.bytes.toByteArray();
+    byte[] result = new byte[all.length - start];
+    System.arraycopy(all, start, result, 0, result.length);
+    return result;
+  }
+
+  @Test
+  public void testReleasesNotesWhoseNoteOffsWereDropped() {
+    RecordingOutput output = new RecordingOutput();
+    MidiReceiver out = output.getMidiOut();
+    out.onNoteOn(0, 60, 100);
+    out.onNoteOn(3, 64, 100);
+    Device before = new Device(since(output, 0));
+    assertEquals(2, before.notes.size());
+
+    output.beginOutage();
+    out.onNoteOff(0, 60, 0);
+    out.onNoteOff(3, 64, 0);
+    assertEquals(6, output.getDroppedBytes());
+    int start = output.bytes.size();
+    output.endOutage();
+    assertTrue(new Device(since(output, 0)).notes.isEmpty());
+    assertTrue(new Device(since(output, start)).notes.isEmpty());
+  }
+
+  @Test
+  public void testStateGoesOutBeforeBufferedOutput() {
+    RecordingOutput output = new RecordingOutput();
+    output.setOutageCapacity(1024);
+    output.setRunningStatus(true);
+    MidiReceiver out = output.getMidiOut();
+    out.onProgramChange(1, 5);
+    out.onControlChange(1, 7, 100);
+    out.onControlChange(1, 7, 90); // Running status.
+
+    output.beginOutage();
+    out.onControlChange(1, 7, 80);
+    out.onNoteOn(1, 62, 100);
+    out.onProgramChange(1, 7);
+    out.onNoteOn(1, 67, 100);
+    assertEquals(0, output.getDroppedBytes());
+    int start = output.bytes.size();
+    output.endOutage();
+    out.onNoteOn(1, 69, 100); // Must carry its status byte.
+
+    // A device that was reset during the outage.
+    Device device = new Device(since(output, start));
+    assertEquals("[program 1 7, note 1 62, program 1 7, note 1 67, note 1 69]",
+        device.log.toString());
+    assertEquals(3, device.notes.size());
+    assertEquals(7, device.state.getProgram(1));
+    assertEquals(80, device.state.getController(1, 7));
+  }
+
+  @Test
+  public void testOverflowReleasesNotesAndRestoresFinalState() {
+    RecordingOutput output = new RecordingOutput();
+    output.setOutageCapacity(6);
+    output.setRunningStatus(true);
+    MidiReceiver out = output.getMidiOut();
+    out.onControlChange(0, 7, 100);
+
+    output.beginOutage();
+    out.onNoteOn(0, 60, 100); // Kept, with its status byte.
+    out.onNoteOn(0, 61, 100); // Kept, running status.
+    out.onControlChange(0, 7, 10); // Doesn't fit.
+    out.onNoteOn(0, 62, 1); // Would fit, but everything after an overflow is dropped.
+    out.onNoteOff(0, 60, 0);
+    out.onNoteOff(0, 61, 0);
+    assertEquals(11, output.getDroppedBytes());
+    int start = output.bytes.size();
+    output.endOutage();
+
+    Device device = new Device(since(output, start));
+    assertTrue(device.log.contains("note 0 60"));
+    assertTrue(device.log.contains("note 0 61"));
+    assertTrue(!device.log.contains("note 0 62"));
+    assertTrue(device.notes.isEmpty());
+    assertEquals(10, device.state.getController(0, 7));
+  }
+
+  @Test
+  public void testBlocksAreKeptOrDroppedAsAWhole() {
+    RecordingOutput output = new RecordingOutput();
+    output.setOutageCapacity(8);
+    MidiReceiver out = output.getMidiOut();
+
+    output.beginOutage();
+    out.beginBlock();
+    out.onNoteOn(0, 60, 100);
+    out.onNoteOn(0, 61, 100);
+    out.onNoteOn(0, 62, 100);
+    out.endBlock();
+    assertEquals(9, output.getDroppedBytes());
+    int start = output.bytes.size();
+    output.endOutage();
+    assertTrue(new Device(since(output, start)).log.isEmpty());
+  }
+}
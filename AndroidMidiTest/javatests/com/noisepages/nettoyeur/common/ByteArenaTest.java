@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class ByteArenaTest {
+
+  @Test
+  public void testPages() {
+    ByteArena arena = new ByteArena(4);
+    assertEquals(0, arena.getPageCount());
+    arena.write(new byte[] {0, 1, 2, 3, 4, 5}, 1, 5);
+    arena.write((byte) 6);
+    assertEquals(6, arena.size());
+    assertEquals(2, arena.getPageCount());
+    assertEquals(4, arena.getPageLength(0));
+    assertEquals(2, arena.getPageLength(1));
+    assertEquals(1, arena.getPage(0)[0]);
+    assertEquals(4, arena.getPage(0)[3]);
+    assertEquals(5, arena.getPage(1)[0]);
+    assertEquals(6, arena.getPage(1)[1]);
+  }
+
+  @Test
+  public void testReuse() {
+    ByteArena arena = new ByteArena(4);
+    arena.write(new byte[10], 0, 10);
+    byte[] first = arena.getPage(0);
+    byte[] last = arena.getPage(2);
+    arena.reset();
+    assertEquals(0, arena.size());
+    assertEquals(0, arena.getPageCount());
+    arena.write(new byte[12], 0, 12);
+    assertSame(first, arena.getPage(0));
+    assertSame(last, arena.getPage(2));
+    assertEquals(4, arena.getPageLength(2));
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class IntRingBufferTest {
+
+  @Test
+  public void testCapacity() {
+    assertEquals(1, new IntRingBuffer(1).capacity());
+    assertEquals(8, new IntRingBuffer(5).capacity());
+    assertEquals(64, new IntRingBuffer(64).capacity());
+  }
+
+  @Test
+  public void testOfferAndDrain() {
+    IntRingBuffer queue = new IntRingBuffer(4);
+    assertTrue(queue.isEmpty());
+    for (int i = 0; i < 4; ++i) {
+      assertTrue(queue.offer(i));
+    }
+    assertFalse(queue.offer(4));
+    assertEquals(4, queue.size());
+    int[] values = new int[8];
+    assertEquals(3, queue.drainTo(values, 3));
+    assertEquals(0, values[0]);
+    assertEquals(2, values[2]);
+    assertTrue(queue.offer(5));
+    assertTrue(queue.discard());
+    assertEquals(1, queue.drainTo(values, 8));
+    assertEquals(5, values[0]);
+    assertFalse(queue.discard());
+    assertEquals(0, queue.drainTo(values, 8));
+  }
+
+  @Test
+  public void testConcurrentProducers() throws InterruptedException {
+    final IntRingBuffer queue = new IntRingBuffer(64);
+    final int perThread = 100000;
+    Thread[] producers = new Thread[4];
+    for (int t = 0; t < producers.length; ++t) {
+      final int base = t * perThread;
+      producers[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < perThread; ++i) {
+            while (!queue.offer(base + i)) {
+              Thread.yield();
+            }
+          }
+        }
+      };
+      producers[t].start();
+    }
+    int[] last = new int[] {-1, -1, -1, -1};
+    int[] values = new int[16];
+    int received = 0;
+    while (received < producers.length * perThread) {
+      int n = queue.drainTo(values, values.length);
+      for (int i = 0; i < n; ++i) {
+        int t = values[i] / perThread;
+        assertTrue(values[i] > last[t]); // Values from each producer arrive in order.
+        last[t] = values[i];
+      }
+      received += n;
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    assertTrue(queue.isEmpty());
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.midi.FromWireConverter;
+import com.noisepages.nettoyeur.midi.MidiReceiver;
+
+public class RawByteSliceAdapterTest {
+
+  private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+  private byte[] lastBuffer;
+  private RawByteSliceReceiver adapter;
+
+  @Before
+  public void setUp() {
+    adapter = RawByteSliceAdapter.adapt(new RawByteReceiver() {
+      @Override
+      public void onBytesReceived(int nBytes, byte[] buffer) {
+        lastBuffer = buffer;
+        received.write(buffer, 0, nBytes);
+      }
+
+      @Override
+      public boolean beginBlock() {
+        return false;
+      }
+
+      @Override
+      public void endBlock() {}
+    });
+  }
+
+  @Test
+  public void testAdaptSliceReceiver() {
+    RawByteSliceReceiver converter = new FromWireConverter(new MidiReceiver.DummyReceiver());
+    assertSame(converter, RawByteSliceAdapter.adapt(converter));
+  }
+
+  @Test
+  public void testSlices() {
+    byte[] buffer = new byte[] {0x01, 0x02, 0x03, 0x04, 0x05};
+    adapter.onBytesReceived(buffer, 0, 3);
+    assertSame(buffer, lastBuffer); // No copy for slices at the beginning of the array.
+    adapter.onBytesReceived(buffer, 2, 2);
+    assertArrayEquals(new byte[] {0x01, 0x02, 0x03, 0x03, 0x04}, received.toByteArray());
+  }
+
+  @Test
+  public void testByteBuffers() {
+    ByteBuffer heap = ByteBuffer.wrap(new byte[] {0x01, 0x02, 0x03, 0x04, 0x05}, 1, 3);
+    adapter.onBytesReceived(heap);
+    assertEquals(heap.limit(), heap.position());
+    ByteBuffer direct = ByteBuffer.allocateDirect(4);
+    direct.put((byte) 0x06).put((byte) 0x07).flip();
+    adapter.onBytesReceived(direct);
+    assertEquals(direct.limit(), direct.position());
+    assertArrayEquals(new byte[] {0x02, 0x03, 0x04, 0x06, 0x07}, received.toByteArray());
+  }
+}
@@ -14,6 +14,8 @@
 
 package com.noisepages.nettoyeur.midi;
 
+import java.nio.ByteBuffer;
+
 import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
@@ -181,6 +183,51 @@ public class FromWireConverterTest {
     EasyMock.verify(receiver);
   }
 
+  @Test
+  public void testRealTimeInterleaving() {
+    receiver.onNoteOn(0x02, 0x40, 0x64);
+    receiver.onRawByte((byte) 0xf8);
+    receiver.onNoteOn(0x02, 0x41, 0x65);
+    receiver.onRawByte((byte) 0xfe);
+    receiver.onNoteOn(0x02, 0x42, 0x66);
+    receiver.onRawByte((byte) 0xf8);
+    receiver.onControlChange(0x05, 0x07, 0x10);
+    EasyMock.replay(receiver);
+    // Clock and active sensing bytes between and within messages must not break running status.
+    byte[] msg =
+        new byte[] {(byte) 0x92, 0x40, 0x64, (byte) 0xf8, 0x41, 0x65, 0x42, (byte) 0xfe, 0x66,
+            (byte) 0xb5, (byte) 0xf8, 0x07, 0x10};
+    converter.onBytesReceived(msg.length, msg);
+    EasyMock.verify(receiver);
+  }
+
+  @Test
+  public void testSystemCommonCancelsRunningStatus() {
+    receiver.onNoteOn(0x00, 0x40, 0x64);
+    receiver.onRawByte((byte) 0xf3);
+    receiver.onRawByte((byte) 0x01);
+    receiver.onRawByte((byte) 0x41);
+    receiver.onRawByte((byte) 0x65);
+    EasyMock.replay(receiver);
+    byte[] msg = new byte[] {(byte) 0x90, 0x40, 0x64, (byte) 0xf3, 0x01, 0x41, 0x65};
+    converter.onBytesReceived(msg.length, msg);
+    EasyMock.verify(receiver);
+  }
+
+  @Test
+  public void testSlices() {
+    receiver.onNoteOn(0x01, 0x60, 0x0f);
+    receiver.onControlChange(0x02, 0x07, 0x7f);
+    receiver.onProgramChange(0x03, 0x11);
+    EasyMock.replay(receiver);
+    byte[] msg = new byte[] {0x00, 0x00, (byte) 0x91, 0x60, 0x0f, 0x00};
+    converter.onBytesReceived(msg, 2, 3);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(8);
+    buffer.put(new byte[] {(byte) 0xb2, 0x07, 0x7f, (byte) 0xc3, 0x11}).flip();
+    converter.onBytesReceived(buffer);
+    EasyMock.verify(receiver);
+  }
+
   @Test
   public void testIdentity() { // Somewhat redundant, but it's satisfying to see this work.
     ToWireConverter identity = new ToWireConverter(converter);
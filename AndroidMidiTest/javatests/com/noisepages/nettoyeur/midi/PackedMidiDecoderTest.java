@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.midi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackedMidiDecoderTest {
+
+  private PackedMidiDecoder decoder;
+  private int[] messages;
+
+  @Before
+  public void setUp() {
+    decoder = new PackedMidiDecoder();
+    messages = new int[64];
+  }
+
+  private int[] decode(byte[] buffer, int offset, int length) {
+    int count = decoder.decode(buffer, offset, length, messages);
+    return Arrays.copyOf(messages, count);
+  }
+
+  @Test
+  public void testChannelMessages() {
+    byte[] msg =
+        new byte[] {(byte) 0x93, 0x48, 0x7f, (byte) 0xc1, 0x60, (byte) 0xe0, 0x7e, 0x3f,
+            (byte) 0xd2, 0x10};
+    assertArrayEquals(new int[] {0x7f4893, 0x60c1, 0x3f7ee0, 0x10d2}, decode(msg, 0, msg.length));
+  }
+
+  @Test
+  public void testRunningStatusAcrossBuffers() {
+    byte[] msg = new byte[] {(byte) 0xb0, 0x07, 0x10, 0x07};
+    assertArrayEquals(new int[] {0x1007b0}, decode(msg, 0, msg.length));
+    msg = new byte[] {0x11, 0x07, 0x12};
+    assertArrayEquals(new int[] {0x1107b0, 0x1207b0}, decode(msg, 0, msg.length));
+  }
+
+  @Test
+  public void testRawBytes() {
+    byte[] msg = new byte[] {(byte) 0x90, 0x40, (byte) 0xf8, 0x64, (byte) 0xf0, 0x01, (byte) 0xf7};
+    int raw = PackedMidiDecoder.RAW_BYTE;
+    assertArrayEquals(new int[] {raw | 0xf8, 0x644090, raw | 0xf0, raw | 0x01, raw | 0xf7},
+        decode(msg, 0, msg.length));
+  }
+
+  @Test
+  public void testOffset() {
+    byte[] msg = new byte[] {0x00, 0x00, (byte) 0x80, 0x3c, 0x00, 0x00};
+    assertArrayEquals(new int[] {0x3c80}, decode(msg, 2, 3));
+  }
+
+  @Test
+  public void testAccessors() {
+    int msg = 0x3f7ee0;
+    assertEquals(0xe0, PackedMidiDecoder.getStatus(msg));
+    assertEquals(0x7e, PackedMidiDecoder.getData1(msg));
+    assertEquals(0x3f, PackedMidiDecoder.getData2(msg));
+    assertEquals(false, PackedMidiDecoder.isRawByte(msg));
+    assertEquals(true, PackedMidiDecoder.isRawByte(PackedMidiDecoder.RAW_BYTE | 0xf8));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMessageArrayTooSmall() {
+    decoder.decode(new byte[4], 0, 4, new int[3]);
+  }
+}
@@ -14,6 +14,12 @@
 
 package com.noisepages.nettoyeur.midi;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.easymock.Capture;
 import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
@@ -166,6 +172,169 @@ public class ToWireConverterTest {
     EasyMock.verify(receiver);
   }
 
+  @Test
+  public void testBlock() {
+    Capture<byte[]> block = new Capture<byte[]>();
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
+    receiver.onBytesReceived(EasyMock.eq(8), EasyMock.capture(block));
+    receiver.endBlock();
+    EasyMock.replay(receiver);
+    converter.beginBlock();
+    converter.onNoteOn(0x01, 0x60, 0x0f);
+    converter.onProgramChange(0x02, 0x11);
+    converter.onRawByte((byte) 0xf8);
+    converter.onAftertouch(0x03, 0x40);
+    converter.endBlock();
+    EasyMock.verify(receiver);
+    assertArrayEquals(new byte[] {(byte) 0x91, 0x60, 0x0f, (byte) 0xc2, 0x11, (byte) 0xf8,
+        (byte) 0xd3, 0x40}, Arrays.copyOf(block.getValue(), 8));
+  }
+
+  @Test
+  public void testLargeBlock() {
+    Capture<byte[]> block = new Capture<byte[]>();
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
+    receiver.onBytesReceived(EasyMock.eq(255), EasyMock.capture(block));
+    receiver.onBytesReceived(EasyMock.eq(45), EasyMock.capture(block));
+    receiver.endBlock();
+    EasyMock.replay(receiver);
+    converter.beginBlock();
+    for (int i = 0; i < 100; ++i) {
+      converter.onControlChange(0x00, 0x07, i);
+    }
+    converter.endBlock();
+    EasyMock.verify(receiver);
+  }
+
+  @Test
+  public void testRawBytes() {
+    byte[] sysex = new byte[] {(byte) 0xf0, 0x01, 0x02, 0x03, (byte) 0xf7};
+    Capture<byte[]> copy = new Capture<byte[]>();
+    receiver.onBytesReceived(EasyMock.eq(5), EasyMock.same(sysex));
+    receiver.onBytesReceived(EasyMock.eq(3), EasyMock.capture(copy));
+    EasyMock.replay(receiver);
+    converter.onRawBytes(sysex, 0, 5);
+    converter.onRawBytes(sysex, 1, 3);
+    converter.onRawBytes(sysex, 0, 0);
+    EasyMock.verify(receiver);
+    assertArrayEquals(new byte[] {0x01, 0x02, 0x03}, Arrays.copyOf(copy.getValue(), 3));
+  }
+
+  @Test
+  public void testRawBytesInBlock() {
+    byte[] payload = new byte[600];
+    for (int i = 0; i < payload.length; ++i) {
+      payload[i] = (byte) (i & 0x7f);
+    }
+    Capture<byte[]> block = new Capture<byte[]>();
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
+    receiver.onBytesReceived(EasyMock.eq(256), EasyMock.capture(block));
+    receiver.onBytesReceived(EasyMock.eq(256), EasyMock.capture(block));
+    receiver.onBytesReceived(EasyMock.eq(90), EasyMock.capture(block));
+    receiver.endBlock();
+    EasyMock.replay(receiver);
+    converter.beginBlock();
+    converter.onRawByte((byte) 0xf0);
+    converter.onRawBytes(payload, 0, payload.length);
+    converter.onRawByte((byte) 0xf7);
+    converter.endBlock();
+    EasyMock.verify(receiver);
+    assertEquals((byte) 0xf7, block.getValue()[89]);
+    assertEquals((byte) (599 & 0x7f), block.getValue()[88]);
+  }
+
+  @Test
+  public void testRawBytesCancelRunningStatus() {
+    converter.setRunningStatus(true);
+    byte[] msg = new byte[] {(byte) 0x90, 0x40, 0x7f};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    byte[] tuneRequest = new byte[] {(byte) 0xf6};
+    receiver.onBytesReceived(EasyMock.eq(1), EasyMock.same(tuneRequest));
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    EasyMock.replay(receiver);
+    converter.onNoteOn(0x00, 0x40, 0x7f);
+    converter.onRawBytes(tuneRequest, 0, 1);
+    converter.onNoteOn(0x00, 0x40, 0x7f);
+    EasyMock.verify(receiver);
+  }
+
+  @Test
+  public void testRunningStatus() {
+    converter.setRunningStatus(true);
+    byte[] msg = new byte[] {(byte) 0x90, 0x40, 0x64};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {0x41, 0x65};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {(byte) 0xf8};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {0x42, 0x00};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {(byte) 0xc1, 0x05};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {0x06};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {(byte) 0xf6};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    msg = new byte[] {(byte) 0xc1, 0x07};
+    receiver.onBytesReceived(EasyMock.eq(msg.length), EasyMock.aryEq(msg));
+    EasyMock.replay(receiver);
+    converter.onNoteOn(0x00, 0x40, 0x64);
+    converter.onNoteOn(0x00, 0x41, 0x65);
+    converter.onRawByte((byte) 0xf8); // Real-time bytes don't cancel running status.
+    converter.onNoteOn(0x00, 0x42, 0x00);
+    converter.onProgramChange(0x01, 0x05);
+    converter.onProgramChange(0x01, 0x06);
+    converter.onRawByte((byte) 0xf6); // System common bytes do.
+    converter.onProgramChange(0x01, 0x07);
+    EasyMock.verify(receiver);
+    assertEquals(3, converter.getBytesSaved());
+  }
+
+  @Test
+  public void testRunningStatusBlocks() {
+    converter.setRunningStatus(true);
+    Capture<byte[]> block = new Capture<byte[]>();
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
+    receiver.onBytesReceived(EasyMock.eq(5), EasyMock.capture(block));
+    receiver.endBlock();
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
+    receiver.onBytesReceived(EasyMock.eq(3), EasyMock.capture(block));
+    receiver.endBlock();
+    EasyMock.replay(receiver);
+    converter.beginBlock();
+    converter.onControlChange(0x00, 0x07, 0x10);
+    converter.onControlChange(0x00, 0x07, 0x11);
+    converter.endBlock();
+    converter.beginBlock();
+    converter.onControlChange(0x00, 0x07, 0x12);
+    converter.endBlock();
+    EasyMock.verify(receiver);
+    assertArrayEquals(new byte[] {(byte) 0xb0, 0x07, 0x12}, Arrays.copyOf(block.getValue(), 3));
+    assertEquals(1, converter.getBytesSaved());
+  }
+
+  @Test
+  public void testRunningStatusIdentity() {
+    MidiReceiver midiReceiver = EasyMock.createStrictMock(MidiReceiver.class);
+    ToWireConverter compressor = new ToWireConverter(new FromWireConverter(midiReceiver));
+    compressor.setRunningStatus(true);
+    midiReceiver.onNoteOn(0x03, 0x40, 0x64);
+    midiReceiver.onNoteOn(0x03, 0x41, 0x65);
+    midiReceiver.onRawByte((byte) 0xf8);
+    midiReceiver.onNoteOn(0x03, 0x40, 0x00);
+    midiReceiver.onPitchBend(0x03, -1);
+    midiReceiver.onPitchBend(0x03, 5);
+    EasyMock.replay(midiReceiver);
+    compressor.onNoteOn(0x03, 0x40, 0x64);
+    compressor.onNoteOn(0x03, 0x41, 0x65);
+    compressor.onRawByte((byte) 0xf8);
+    compressor.onNoteOn(0x03, 0x40, 0x00);
+    compressor.onPitchBend(0x03, -1);
+    compressor.onPitchBend(0x03, 5);
+    EasyMock.verify(midiReceiver);
+    assertEquals(3, compressor.getBytesSaved());
+  }
+
   @Test
   public void testIdentity() { // Somewhat redundant, but it's satisfying to see this work.
     FromWireConverter identity = new FromWireConverter(converter);
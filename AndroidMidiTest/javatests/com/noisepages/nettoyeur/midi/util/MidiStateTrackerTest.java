@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.noisepages.nettoyeur.midi.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.midi.MidiReceiver;
+
+public class MidiStateTrackerTest {
+
+  private MidiStateTracker tracker;
+  private MidiReceiver next;
+  private MidiReceiver target;
+
+  @Before
+  public void setUp() {
+    next = EasyMock.createStrictMock(MidiReceiver.class);
+    target = EasyMock.createStrictMock(MidiReceiver.class);
+    tracker = new MidiStateTracker(next);
+  }
+
+  @Test
+  public void testForwarding() {
+    next.onNoteOn(0, 60, 100);
+    next.onControlChange(1, 7, 90);
+    next.onProgramChange(2, 5);
+    next.onPitchBend(3, -200);
+    next.onNoteOff(0, 60, 0);
+    EasyMock.replay(next);
+    tracker.onNoteOn(0, 60, 100);
+    tracker.onControlChange(1, 7, 90);
+    tracker.onProgramChange(2, 5);
+    tracker.onPitchBend(3, -200);
+    tracker.onNoteOff(0, 60, 0);
+    EasyMock.verify(next);
+  }
+
+  @Test
+  public void testGetters() {
+    tracker = new MidiStateTracker();
+    assertEquals(-1, tracker.getProgram(0));
+    assertEquals(-1, tracker.getController(0, 7));
+    assertEquals(0, tracker.getPitchBend(0));
+    tracker.onProgramChange(0, 12);
+    tracker.onControlChange(0, 7, 100);
+    tracker.onControlChange(0, 7, 80);
+    tracker.onPitchBend(0, 1000);
+    assertEquals(12, tracker.getProgram(0));
+    assertEquals(80, tracker.getController(0, 7));
+    assertEquals(1000, tracker.getPitchBend(0));
+    assertEquals(-1, tracker.getProgram(1));
+  }
+
+  @Test
+  public void testReplayOrder() {
+    tracker = new MidiStateTracker();
+    tracker.onPitchBend(4, 300);
+    tracker.onControlChange(4, 64, 127);
+    tracker.onProgramChange(4, 33);
+    tracker.onControlChange(4, 32, 2);
+    tracker.onControlChange(4, 0, 1);
+    tracker.onProgramChange(0, 7);
+    target.onProgramChange(0, 7);
+    target.onControlChange(4, 0, 1);
+    target.onControlChange(4, 32, 2);
+    target.onProgramChange(4, 33);
+    target.onControlChange(4, 64, 127);
+    target.onPitchBend(4, 300);
+    EasyMock.replay(target);
+    tracker.replay(target);
+    EasyMock.verify(target);
+  }
+
+  @Test
+  public void testResetAllControllers() {
+    tracker = new MidiStateTracker();
+    tracker.onProgramChange(9, 3);
+    tracker.onControlChange(9, 10, 64);
+    tracker.onPitchBend(9, -50);
+    tracker.onControlChange(9, 121, 0);
+    target.onProgramChange(9, 3);
+    EasyMock.replay(target);
+    tracker.replay(target);
+    EasyMock.verify(target);
+  }
+
+  @Test
+  public void testReset() {
+    tracker = new MidiStateTracker();
+    tracker.onProgramChange(0, 1);
+    tracker.onControlChange(15, 1, 2);
+    tracker.reset();
+    EasyMock.replay(target);
+    tracker.replay(target);
+    EasyMock.verify(target);
+  }
+}
@@ -188,4 +188,112 @@ public class SystemMessageDecoderTest {
     assertTrue(decoder.decodeByte((byte) 0xf7));
     EasyMock.verify(receiver);
   }
+
+  @Test
+  public void testSysexLimit() {
+    decoder = new SystemMessageDecoder(receiver, 3);
+    receiver.onSystemExclusive(EasyMock.aryEq(new byte[] {0x01, 0x02, 0x03}));
+    EasyMock.replay(receiver);
+    decodeSysex(new byte[] {0x01, 0x02, 0x03});
+    decodeSysex(new byte[] {0x01, 0x02, 0x03, 0x04, 0x05}); // Dropped.
+    assertFalse(decoder.decodeByte((byte) 0x00));
+    EasyMock.verify(receiver);
+  }
+
+  @Test
+  public void testStreamingSysex() {
+    RecordingSysexReceiver sysex = new RecordingSysexReceiver();
+    decoder = new SystemMessageDecoder(receiver, sysex, 4, 0);
+    receiver.onStart();
+    EasyMock.replay(receiver);
+    assertTrue(decoder.decodeByte((byte) 0xf0));
+    for (int i = 0; i < 6; ++i) {
+      assertTrue(decoder.decodeByte((byte) i));
+    }
+    assertTrue(decoder.decodeByte((byte) 0xfa)); // Real time messages don't interrupt sysex.
+    for (int i = 6; i < 10; ++i) {
+      assertTrue(decoder.decodeByte((byte) i));
+    }
+    assertTrue(decoder.decodeByte((byte) 0xf7));
+    decodeSysex(new byte[0]);
+    EasyMock.verify(receiver);
+    assertEquals("begin chunk(0,1,2,3) chunk(4,5,6,7) chunk(8,9) end begin end", sysex.toString());
+  }
+
+  @Test
+  public void testStreamingSysexInterrupted() {
+    RecordingSysexReceiver sysex = new RecordingSysexReceiver();
+    decoder = new SystemMessageDecoder(receiver, sysex, 2, 0);
+    receiver.onTuneRequest();
+    EasyMock.replay(receiver);
+    assertTrue(decoder.decodeByte((byte) 0xf0));
+    assertTrue(decoder.decodeByte((byte) 0x01));
+    assertTrue(decoder.decodeByte((byte) 0x02));
+    assertTrue(decoder.decodeByte((byte) 0x03));
+    assertTrue(decoder.decodeByte((byte) 0xf6));
+    assertFalse(decoder.decodeByte((byte) 0x04));
+    assertTrue(decoder.decodeByte((byte) 0xf0));
+    assertFalse(decoder.decodeByte((byte) 0x90)); // Channel messages interrupt sysex, too.
+    EasyMock.verify(receiver);
+    assertEquals("begin chunk(1,2) aborted begin aborted", sysex.toString());
+  }
+
+  @Test
+  public void testStreamingSysexLimit() {
+    RecordingSysexReceiver sysex = new RecordingSysexReceiver();
+    decoder = new SystemMessageDecoder(receiver, sysex, 2, 3);
+    EasyMock.replay(receiver);
+    decodeSysex(new byte[] {0x01, 0x02, 0x03});
+    decodeSysex(new byte[] {0x01, 0x02, 0x03, 0x04, 0x05});
+    assertFalse(decoder.decodeByte((byte) 0x00));
+    EasyMock.verify(receiver);
+    assertEquals("begin chunk(1,2) chunk(3) end begin chunk(1,2) aborted", sysex.toString());
+  }
+
+  private void decodeSysex(byte[] payload) {
+    assertTrue(decoder.decodeByte((byte) 0xf0));
+    for (byte b : payload) {
+      assertTrue(decoder.decodeByte(b));
+    }
+    assertTrue(decoder.decodeByte((byte) 0xf7));
+  }
+
+  private static class RecordingSysexReceiver implements SysexStreamReceiver {
+    private final StringBuilder events = new StringBuilder();
+
+    @Override
+    public void onSysexBegin() {
+      log("begin");
+    }
+
+    @Override
+    public void onSysexChunk(byte[] buffer, int offset, int length) {
+      StringBuilder sb = new StringBuilder("chunk(");
+      for (int i = 0; i < length; ++i) {
+        if (i > 0) sb.append(',');
+        sb.append(buffer[offset + i]);
+      }
+      log(sb.append(')').toString());
+    }
+
+    @Override
+    public void onSysexEnd() {
+      log("end");
+    }
+
+    @Override
+    public void onSysexAborted() {
+      log("aborted");
+    }
+
+    private void log(String event) {
+      if (events.length() > 0) events.append(' ');
+      events.append(event);
+    }
+
+    @Override
+    public String toString() {
+      return events.toString();
+    }
+  }
 }
@@ -18,6 +18,7 @@ import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.noisepages.nettoyeur.midi.MidiBulkReceiver;
 import com.noisepages.nettoyeur.midi.MidiReceiver;
 
 public class SystemMessageEncoderTest {
@@ -33,27 +34,52 @@ public class SystemMessageEncoderTest {
 
   @Test
   public void testSystemExclusive() {
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
     receiver.onRawByte((byte) 0xf0);
     receiver.onRawByte((byte) 0xf7);
+    receiver.endBlock();
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
     receiver.onRawByte((byte) 0xf0);
     receiver.onRawByte((byte) 0x00);
     receiver.onRawByte((byte) 0x7f);
     receiver.onRawByte((byte) 0x03);
     receiver.onRawByte((byte) 0xf7);
+    receiver.endBlock();
     EasyMock.replay(receiver);
     encoder.onSystemExclusive(new byte[0]);
     encoder.onSystemExclusive(new byte[] {0x00, 0x7f, 0x03});
     EasyMock.verify(receiver);
   }
 
+  @Test
+  public void testBulkSystemExclusive() {
+    MidiBulkReceiver bulkReceiver = EasyMock.createStrictMock(MidiBulkReceiver.class);
+    encoder = new SystemMessageEncoder(bulkReceiver);
+    byte[] sysex = new byte[] {0x00, 0x7f, 0x03};
+    EasyMock.expect(bulkReceiver.beginBlock()).andReturn(true);
+    bulkReceiver.onRawByte((byte) 0xf0);
+    bulkReceiver.onRawBytes(EasyMock.same(sysex), EasyMock.eq(0), EasyMock.eq(3));
+    bulkReceiver.onRawByte((byte) 0xf7);
+    bulkReceiver.endBlock();
+    EasyMock.replay(bulkReceiver);
+    encoder.onSystemExclusive(sysex);
+    EasyMock.verify(bulkReceiver);
+  }
+
   @Test
   public void testTimeCode() {
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
     receiver.onRawByte((byte) 0xf1);
     receiver.onRawByte((byte) 0x00);
+    receiver.endBlock();
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
     receiver.onRawByte((byte) 0xf1);
     receiver.onRawByte((byte) 0x7f);
+    receiver.endBlock();
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
     receiver.onRawByte((byte) 0xf1);
     receiver.onRawByte((byte) 0x61);
+    receiver.endBlock();
     EasyMock.replay(receiver);
     encoder.onTimeCode(0x00);
     encoder.onTimeCode(0x7f);
@@ -63,15 +89,21 @@ public class SystemMessageEncoderTest {
 
   @Test
   public void testSongPosition() {
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
     receiver.onRawByte((byte) 0xf2);
     receiver.onRawByte((byte) 0x00);
     receiver.onRawByte((byte) 0x00);
+    receiver.endBlock();
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
     receiver.onRawByte((byte) 0xf2);
     receiver.onRawByte((byte) 0x7f);
     receiver.onRawByte((byte) 0x7f);
+    receiver.endBlock();
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
     receiver.onRawByte((byte) 0xf2);
     receiver.onRawByte((byte) 0x03);
     receiver.onRawByte((byte) 0x01);
+    receiver.endBlock();
     EasyMock.replay(receiver);
     encoder.onSongPosition(0);
     encoder.onSongPosition(0x3fff);
@@ -91,12 +123,18 @@ public class SystemMessageEncoderTest {
 
   @Test
   public void testSongSelect() {
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
     receiver.onRawByte((byte) 0xf3);
     receiver.onRawByte((byte) 0x00);
+    receiver.endBlock();
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
     receiver.onRawByte((byte) 0xf3);
     receiver.onRawByte((byte) 0x7f);
+    receiver.endBlock();
+    EasyMock.expect(receiver.beginBlock()).andReturn(true);
     receiver.onRawByte((byte) 0xf3);
     receiver.onRawByte((byte) 0x45);
+    receiver.endBlock();
     EasyMock.replay(receiver);
     encoder.onSongSelect(0);
     encoder.onSongSelect(0x7f);
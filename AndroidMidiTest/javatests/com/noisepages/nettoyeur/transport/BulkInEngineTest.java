@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BulkInEngineTest {
+
+  private LoopbackBulkTransport transport;
+  private BulkInEngine engine;
+
+  private static class Recorder implements BulkInEngine.Handler {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    int calls = 0;
+
+    @Override
+    public synchronized void onBytesReceived(byte[] buffer, int length) {
+      // Skip the zero padding at the end of each buffer, like the USB MIDI dispatcher.
+      for (int i = 0; i < length && buffer[i] != 0; i++) {
+        bytes.write(buffer[i]);
+      }
+      calls++;
+      notifyAll();
+    }
+
+    synchronized void awaitCalls(int n) throws InterruptedException {
+      while (calls < n) {
+        wait(1000);
+      }
+    }
+
+    synchronized byte[] getBytes() {
+      return bytes.toByteArray();
+    }
+  }
+
+  @Before
+  public void setUp() {
+    transport = new LoopbackBulkTransport(8);
+    engine = new BulkInEngine(transport, "BulkInEngineTest");
+  }
+
+  private void write(byte[] data) {
+    assertEquals(data.length, transport.write(data, data.length, 0));
+  }
+
+  private BulkInRequest[] newRequests(int n, int size) {
+    BulkInRequest[] requests = new BulkInRequest[n];
+    for (int i = 0; i < n; i++) {
+      requests[i] = transport.newRequest(size);
+    }
+    return requests;
+  }
+
+  @Test
+  public void testDelivery() throws InterruptedException {
+    Recorder recorder = new Recorder();
+    BulkInEngine.Stream stream = engine.addStream(newRequests(3, 8), recorder);
+    assertNotNull(stream);
+    assertTrue(engine.isRunning());
+    assertEquals(3, stream.getRequestsInFlight());
+    write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+    write(new byte[] {9, 10});
+    write(new byte[] {11, 12, 13, 14});
+    write(new byte[] {15}); // Requires the first request to have been requeued.
+    recorder.awaitCalls(4);
+    assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15},
+        recorder.getBytes());
+    stream.close();
+    assertFalse(engine.isRunning());
+    assertEquals(0, engine.getRequestsInFlight());
+    assertEquals(0, transport.getPendingCount());
+  }
+
+  @Test
+  public void testLargeWrite() throws InterruptedException {
+    Recorder recorder = new Recorder();
+    BulkInEngine.Stream stream = engine.addStream(newRequests(3, 8), recorder);
+    byte[] data = new byte[20];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i + 1);
+    }
+    write(data); // Goes out as three packets.
+    recorder.awaitCalls(3);
+    assertArrayEquals(data, recorder.getBytes());
+    stream.close();
+  }
+
+  @Test
+  public void testMultipleStreams() throws InterruptedException {
+    Recorder first = new Recorder();
+    Recorder second = new Recorder();
+    BulkInEngine.Stream firstStream = engine.addStream(newRequests(2, 4), first);
+    BulkInEngine.Stream secondStream = engine.addStream(newRequests(2, 4), second);
+    assertEquals(4, engine.getRequestsInFlight());
+    write(new byte[] {1}); // Pending requests complete in the order they were queued.
+    write(new byte[] {2});
+    write(new byte[] {3});
+    write(new byte[] {4});
+    first.awaitCalls(2);
+    second.awaitCalls(2);
+    assertArrayEquals(new byte[] {1, 2}, first.getBytes());
+    assertArrayEquals(new byte[] {3, 4}, second.getBytes());
+    firstStream.close();
+    assertTrue(engine.isRunning());
+    assertEquals(2, engine.getRequestsInFlight());
+    secondStream.close();
+    assertFalse(engine.isRunning());
+  }
+
+  @Test
+  public void testRestart() throws InterruptedException {
+    Recorder recorder = new Recorder();
+    engine.addStream(newRequests(2, 4), recorder).close();
+    assertFalse(engine.isRunning());
+    BulkInEngine.Stream stream = engine.addStream(newRequests(2, 4), recorder);
+    write(new byte[] {42});
+    recorder.awaitCalls(1);
+    assertArrayEquals(new byte[] {42}, recorder.getBytes());
+    stream.close();
+  }
+
+  @Test
+  public void testTransportFailure() throws InterruptedException {
+    BulkInEngine.Stream stream = engine.addStream(newRequests(2, 4), new Recorder());
+    transport.close();
+    stream.close();
+    assertFalse(engine.isRunning());
+    assertEquals(0, engine.getRequestsInFlight());
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.common.RawByteSliceReceiver;
+
+public class StreamReaderTest {
+
+  private static class Recorder implements RawByteSliceReceiver {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private int callbacks = 0;
+
+    @Override
+    public synchronized void onBytesReceived(byte[] buffer, int offset, int length) {
+      if (length <= 0) {
+        throw new IllegalArgumentException("Bad length: " + length);
+      }
+      bytes.write(buffer, offset, length);
+      callbacks++;
+      notifyAll();
+    }
+
+    synchronized int getCallbacks() {
+      return callbacks;
+    }
+
+    @Override
+    public void onBytesReceived(ByteBuffer buffer) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void onBytesReceived(int nBytes, byte[] buffer) {
+      onBytesReceived(buffer, 0, nBytes);
+    }
+
+    @Override
+    public boolean beginBlock() {
+      return false;
+    }
+
+    @Override
+    public void endBlock() {}
+
+    synchronized byte[] awaitBytes(int n) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (bytes.size() < n && System.currentTimeMillis() < deadline) {
+        wait(100);
+      }
+      return bytes.toByteArray();
+    }
+  }
+
+  private static class ReaderThread extends Thread {
+    private final StreamReader reader;
+    private volatile IOException exception = null;
+
+    private ReaderThread(StreamReader reader) {
+      this.reader = reader;
+    }
+
+    @Override
+    public void run() {
+      try {
+        reader.readAll();
+      } catch (IOException e) {
+        exception = e;
+      }
+    }
+  }
+
+  private void runTransfer(StreamTransport sender, StreamTransport receiver) throws Exception {
+    Recorder recorder = new Recorder();
+    ReaderThread thread = new ReaderThread(new StreamReader(receiver.getInputStream(), recorder, 64));
+    thread.start();
+    byte[] data = new byte[10000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    OutputStream out = sender.getOutputStream();
+    for (int i = 0; i < data.length; i += 100) {
+      out.write(data, i, 100);
+    }
+    out.flush();
+    assertArrayEquals(data, recorder.awaitBytes(data.length));
+    receiver.close();
+    thread.join(5000);
+    assertTrue(!thread.isAlive());
+    assertTrue(thread.exception != null);
+    sender.close();
+  }
+
+  @Test
+  public void testPipe() throws Exception {
+    PipeStreamTransport[] pair = PipeStreamTransport.createPair(256);
+    runTransfer(pair[0], pair[1]);
+  }
+
+  @Test
+  public void testSocket() throws Exception {
+    SocketStreamTransport[] pair = SocketStreamTransport.createLocalPair();
+    runTransfer(pair[0], pair[1]);
+  }
+
+  @Test
+  public void testEndOfStream() throws Exception {
+    PipeStreamTransport[] pair = PipeStreamTransport.createPair(256);
+    Recorder recorder = new Recorder();
+    ReaderThread thread = new ReaderThread(new StreamReader(pair[1].getInputStream(), recorder, 64));
+    thread.start();
+    pair[0].getOutputStream().write(new byte[] {1, 2, 3}, 0, 3);
+    pair[0].close();
+    thread.join(5000);
+    assertTrue(!thread.isAlive());
+    assertTrue(thread.exception == null);
+    assertArrayEquals(new byte[] {1, 2, 3}, recorder.awaitBytes(3));
+  }
+
+  @Test
+  public void testAdaptiveBufferSize() throws Exception {
+    PipeStreamTransport[] pair = PipeStreamTransport.createPair(4096);
+    Recorder recorder = new Recorder();
+    StreamReader reader = new StreamReader(pair[1].getInputStream(), recorder, 8, 64, 0);
+    byte[] data = new byte[1000];
+    pair[0].getOutputStream().write(data, 0, data.length);
+    ReaderThread thread = new ReaderThread(reader);
+    thread.start();
+    recorder.awaitBytes(data.length);
+    assertEquals(64, reader.getBufferSize()); // Doubled on full reads: 8, 16, 32, 64.
+    assertEquals(3 + (1000 - 8 - 16 - 32 + 63) / 64, recorder.getCallbacks());
+    for (int i = 0; i < 500; i++) {
+      pair[0].getOutputStream().write(new byte[] {1}, 0, 1);
+      recorder.awaitBytes(data.length + i + 1);
+    }
+    assertEquals(8, reader.getBufferSize()); // Shrunk after a long run of short reads.
+    assertEquals(1500, reader.getBytesRead());
+    assertEquals(reader.getReadCount(), reader.getCallbackCount());
+    pair[1].close();
+    thread.join(5000);
+  }
+
+  @Test
+  public void testCoalescing() throws Exception {
+    PipeStreamTransport[] pair = PipeStreamTransport.createPair(256);
+    Recorder recorder = new Recorder();
+    StreamReader reader = new StreamReader(pair[1].getInputStream(), recorder, 64, 64, 200000);
+    ReaderThread thread = new ReaderThread(reader);
+    thread.start();
+    OutputStream out = pair[0].getOutputStream();
+    out.write(new byte[] {1}, 0, 1);
+    Thread.sleep(20);
+    out.write(new byte[] {2, 3}, 0, 2);
+    assertArrayEquals(new byte[] {1, 2, 3}, recorder.awaitBytes(3));
+    Thread.sleep(250);
+    assertEquals(1, recorder.getCallbacks());
+    assertEquals(2, reader.getReadCount());
+    pair[1].close();
+    thread.join(5000);
+  }
+
+  @Test
+  public void testPipeEndOfStream() throws IOException {
+    PipeStreamTransport[] pair = PipeStreamTransport.createPair(16);
+    pair[0].getOutputStream().write(new byte[] {1, 2, 3}, 0, 3);
+    pair[0].close();
+    byte[] buffer = new byte[16];
+    assertEquals(3, pair[1].getInputStream().read(buffer, 0, buffer.length));
+    assertEquals(-1, pair[1].getInputStream().read(buffer, 0, buffer.length));
+  }
+}
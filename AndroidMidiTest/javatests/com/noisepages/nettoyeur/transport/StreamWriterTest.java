@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.common.OverflowPolicy;
+
+public class StreamWriterTest {
+
+  private StreamWriter writer = null;
+
+  /**
+   * Output stream that records its writes and can be made to stall until released.
+   */
+  private static class RecordingStream extends OutputStream {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final CountDownLatch release;
+    int writeCalls = 0;
+
+    private RecordingStream(boolean stall) {
+      release = new CountDownLatch(stall ? 1 : 0);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e.getMessage());
+      }
+      synchronized (this) {
+        bytes.write(b, offset, length);
+        writeCalls++;
+      }
+    }
+
+    synchronized byte[] getBytes() {
+      return bytes.toByteArray();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    if (writer != null) {
+      writer.close();
+    }
+  }
+
+  private static byte[] sequence(int n) {
+    byte[] data = new byte[n];
+    for (int i = 0; i < n; i++) {
+      data[i] = (byte) i;
+    }
+    return data;
+  }
+
+  @Test
+  public void testCoalescing() throws IOException, InterruptedException {
+    RecordingStream out = new RecordingStream(true);
+    writer = new StreamWriter(out, 1024, 256, 0, OverflowPolicy.BLOCK);
+    byte[] data = sequence(600);
+    writer.write(data, 0, 3);
+    Thread.sleep(50); // Let the writer thread get stuck on the first write.
+    for (int i = 3; i < data.length; i += 3) {
+      assertTrue(writer.write(data, i, 3));
+    }
+    assertEquals(597, writer.getQueueDepth());
+    out.release.countDown();
+    writer.flush();
+    assertArrayEquals(data, out.getBytes());
+    assertEquals(4, out.writeCalls); // 3 + 256 + 256 + 85
+    assertEquals(600, writer.getBytesWritten());
+    assertTrue(writer.getMaxStallNanos() >= 40000000L);
+  }
+
+  @Test
+  public void testFlushDeadline() throws IOException, InterruptedException {
+    RecordingStream out = new RecordingStream(false);
+    writer = new StreamWriter(out, 1024, 256, 100, OverflowPolicy.BLOCK);
+    long start = System.nanoTime();
+    writer.write(new byte[] {1, 2, 3}, 0, 3);
+    Thread.sleep(20);
+    writer.write(new byte[] {4, 5}, 0, 2);
+    assertEquals(0, out.getBytes().length);
+    writer.flush();
+    assertTrue(System.nanoTime() - start >= 90000000L);
+    assertArrayEquals(new byte[] {1, 2, 3, 4, 5}, out.getBytes());
+    assertEquals(1, out.writeCalls);
+  }
+
+  @Test
+  public void testLargeWrite() throws IOException {
+    RecordingStream out = new RecordingStream(false);
+    writer = new StreamWriter(out, 64, 16, 0, OverflowPolicy.BLOCK);
+    byte[] data = sequence(1000);
+    writer.write(data, 0, data.length);
+    writer.flush();
+    assertArrayEquals(data, out.getBytes());
+  }
+
+  private Thread writeInBackground(final byte[] data) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          writer.write(data, 0, data.length);
+        } catch (IOException e) {
+          // Shows up as missing bytes.
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  @Test
+  public void testLargeWriteIsNotInterleaved() throws IOException, InterruptedException {
+    RecordingStream out = new RecordingStream(true);
+    writer = new StreamWriter(out, 64, 16, 0, OverflowPolicy.BLOCK);
+    byte[] data = sequence(100);
+    byte[] small = new byte[] {-1, -2, -3};
+    Thread large = writeInBackground(data);
+    Thread.sleep(50); // Let the large write fill the queue and wait for space.
+    Thread other = writeInBackground(small);
+    Thread.sleep(50); // There is room for the small write, but it must wait its turn.
+    out.release.countDown();
+    large.join();
+    other.join();
+    writer.flush();
+    byte[] expected = new byte[data.length + small.length];
+    System.arraycopy(data, 0, expected, 0, data.length);
+    System.arraycopy(small, 0, expected, data.length, small.length);
+    assertArrayEquals(expected, out.getBytes());
+  }
+
+  @Test
+  public void testDropNewest() throws IOException, InterruptedException {
+    RecordingStream out = new RecordingStream(true);
+    writer = new StreamWriter(out, 8, 4, 0, OverflowPolicy.DROP_NEWEST);
+    byte[] data = sequence(12);
+    assertTrue(writer.write(data, 0, 4));
+    Thread.sleep(50); // Let the writer thread get stuck on the first write.
+    assertTrue(writer.write(data, 4, 6));
+    assertFalse(writer.write(data, 10, 3)); // Three bytes don't fit; two would.
+    assertTrue(writer.write(data, 10, 2));
+    assertEquals(1, writer.getDroppedCount());
+    out.release.countDown();
+    writer.flush();
+    assertArrayEquals(data, out.getBytes());
+  }
+
+  @Test
+  public void testFailure() throws InterruptedException {
+    writer = new StreamWriter(new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("Broken pipe");
+      }
+    }, 64, 16, 0, OverflowPolicy.BLOCK);
+    try {
+      writer.write(new byte[] {1}, 0, 1);
+      writer.flush();
+    } catch (IOException e) {
+      assertEquals("Broken pipe", e.getMessage());
+      return;
+    }
+    throw new AssertionError("Expected IOException");
+  }
+
+  @Test(expected = IOException.class)
+  public void testClosed() throws IOException {
+    writer = new StreamWriter(new ByteArrayOutputStream(), 64, 16, 0, OverflowPolicy.BLOCK);
+    writer.close();
+    writer.write(new byte[] {1}, 0, 1);
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.noisepages.nettoyeur.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.common.RawByteReceiver;
+
+public class TimedReleaseQueueTest {
+
+  private TimedReleaseQueue queue = null;
+
+  /**
+   * Receiver that records messages along with their release times, optionally taking a fixed time
+   * per write.
+   */
+  private static class RecordingReceiver implements RawByteReceiver {
+    private final List<byte[]> messages = new ArrayList<byte[]>();
+    private final List<Long> releaseTimes = new ArrayList<Long>();
+    private final long writeMillis;
+
+    private RecordingReceiver(long writeMillis) {
+      this.writeMillis = writeMillis;
+    }
+
+    @Override
+    public void onBytesReceived(int nBytes, byte[] buffer) {
+      long now = System.nanoTime();
+      byte[] message = new byte[nBytes];
+      System.arraycopy(buffer, 0, message, 0, nBytes);
+      synchronized (this) {
+        messages.add(message);
+        releaseTimes.add(now);
+      }
+      if (writeMillis > 0) {
+        try {
+          Thread.sleep(writeMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    @Override
+    public boolean beginBlock() {
+      return false;
+    }
+
+    @Override
+    public void endBlock() {}
+
+    synchronized int size() {
+      return messages.size();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    if (queue != null) {
+      queue.close();
+    }
+  }
+
+  private static void awaitCount(RecordingReceiver receiver, int n) throws InterruptedException {
+    for (int i = 0; i < 200 && receiver.size() < n; ++i) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testReleaseOnTime() throws InterruptedException {
+    RecordingReceiver receiver = new RecordingReceiver(0);
+    queue = new TimedReleaseQueue(receiver, 64, 16);
+    long t0 = System.nanoTime() + 20000000L;
+    for (int i = 0; i < 5; ++i) {
+      queue.onBytesReceived(3, new byte[] {(byte) 0x90, (byte) i, 0x40}, t0 + i * 10000000L);
+    }
+    awaitCount(receiver, 5);
+    assertEquals(5, receiver.size());
+    for (int i = 0; i < 5; ++i) {
+      assertArrayEquals(new byte[] {(byte) 0x90, (byte) i, 0x40}, receiver.messages.get(i));
+      long due = t0 + i * 10000000L;
+      assertTrue("released early", receiver.releaseTimes.get(i) >= due);
+      assertTrue("released late", receiver.releaseTimes.get(i) < due + 5000000L);
+    }
+    assertEquals(5, queue.getReleasedCount());
+  }
+
+  @Test
+  public void testWrapAround() throws InterruptedException {
+    RecordingReceiver receiver = new RecordingReceiver(0);
+    queue = new TimedReleaseQueue(receiver, 8, 4);
+    long now = System.nanoTime();
+    for (int i = 0; i < 20; ++i) {
+      // Blocks while the queue is full.
+      queue.onBytesReceived(3, new byte[] {(byte) 0xb0, 0x07, (byte) i}, now);
+    }
+    awaitCount(receiver, 20);
+    assertEquals(20, receiver.size());
+    for (int i = 0; i < 20; ++i) {
+      assertArrayEquals(new byte[] {(byte) 0xb0, 0x07, (byte) i}, receiver.messages.get(i));
+    }
+  }
+
+  @Test
+  public void testDiscardPending() throws InterruptedException {
+    RecordingReceiver receiver = new RecordingReceiver(0);
+    queue = new TimedReleaseQueue(receiver, 64, 16);
+    long later = System.nanoTime() + 1000000000L;
+    queue.onBytesReceived(3, new byte[] {(byte) 0x90, 0x40, 0x40}, later);
+    queue.onBytesReceived(3, new byte[] {(byte) 0x90, 0x41, 0x40}, later);
+    assertEquals(2, queue.getPendingCount());
+    queue.discardPending();
+    assertEquals(0, queue.getPendingCount());
+    queue.onBytesReceived(3, new byte[] {(byte) 0x80, 0x40, 0x00}, System.nanoTime());
+    awaitCount(receiver, 1);
+    Thread.sleep(50);
+    assertEquals(1, receiver.size());
+    assertArrayEquals(new byte[] {(byte) 0x80, 0x40, 0x00}, receiver.messages.get(0));
+  }
+
+  @Test
+  public void testClose() {
+    RecordingReceiver receiver = new RecordingReceiver(10);
+    queue = new TimedReleaseQueue(receiver, 64, 16);
+    long now = System.nanoTime();
+    for (int i = 0; i < 3; ++i) {
+      queue.onBytesReceived(3, new byte[] {(byte) 0xb0, 0x7b, 0x00}, now);
+    }
+    queue.onBytesReceived(3, new byte[] {(byte) 0x90, 0x40, 0x40}, now + 1000000000L);
+    queue.close();
+    assertEquals(3, receiver.size()); // Due messages go out; the later one is discarded.
+    queue = null;
+  }
+
+  @Test
+  public void testLatencyCompensation() throws InterruptedException {
+    RecordingReceiver receiver = new RecordingReceiver(5);
+    queue = new TimedReleaseQueue(receiver, 256, 64);
+    queue.setLatencyCompensation(true);
+    long t0 = System.nanoTime() + 10000000L;
+    for (int i = 0; i < 40; ++i) {
+      queue.onBytesReceived(1, new byte[] {(byte) 0xf8}, t0 + i * 20000000L);
+    }
+    awaitCount(receiver, 40);
+    assertEquals(40, receiver.size());
+    long latency = queue.getWriteLatencyNanos();
+    assertTrue("latency estimate: " + latency, latency >= 4000000L);
+    long due = t0 + 39 * 20000000L;
+    assertTrue("not compensated", receiver.releaseTimes.get(39) < due - latency / 2);
+  }
+}
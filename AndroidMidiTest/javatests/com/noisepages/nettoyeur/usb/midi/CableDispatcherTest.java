@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.usb.midi;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.midi.MidiReceiver;
+
+public class CableDispatcherTest {
+
+  private CableDispatcher dispatcher;
+  private MidiReceiver cable0;
+  private MidiReceiver cable3;
+  private MidiReceiver all;
+
+  @Before
+  public void setUp() {
+    dispatcher = new CableDispatcher();
+    cable0 = EasyMock.createStrictMock(MidiReceiver.class);
+    cable3 = EasyMock.createStrictMock(MidiReceiver.class);
+    all = EasyMock.createStrictMock(MidiReceiver.class);
+  }
+
+  @Test
+  public void testDispatch() {
+    dispatcher.setReceiver(0, cable0);
+    dispatcher.setReceiver(3, cable3);
+    dispatcher.setReceiver(CableDispatcher.ALL_CABLES, all);
+    all.onNoteOn(1, 60, 100);
+    cable0.onNoteOn(1, 60, 100);
+    all.onProgramChange(2, 5);
+    cable3.onProgramChange(2, 5);
+    all.onNoteOff(1, 60, 64);
+    EasyMock.replay(cable0, cable3, all);
+    dispatcher.dispatch(new byte[] {
+        0x09, (byte) 0x91, 60, 100,
+        0x00, 0x00, 0x00, 0x00, // Reserved CIN, skipped.
+        0x3c, (byte) 0xc2, 5, 0,
+        0x58, (byte) 0x81, 60, 64, // No receiver for cable 5.
+        0x09, (byte) 0x91, 60}, 19); // Incomplete packet, skipped.
+    EasyMock.verify(cable0, cable3, all);
+  }
+
+  @Test
+  public void testRemoveReceiver() {
+    dispatcher.setReceiver(0, cable0);
+    cable0.onNoteOn(1, 60, 100);
+    EasyMock.replay(cable0);
+    byte[] packet = new byte[] {0x09, (byte) 0x91, 60, 100};
+    dispatcher.dispatch(packet, 4);
+    dispatcher.setReceiver(0, null);
+    dispatcher.dispatch(packet, 4);
+    EasyMock.verify(cable0);
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann (peter.brinkmann@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.usb.midi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.midi.MidiReceiver;
+import com.noisepages.nettoyeur.midi.ToWireConverter;
+import com.noisepages.nettoyeur.transport.BulkInEngine;
+import com.noisepages.nettoyeur.transport.BulkInRequest;
+import com.noisepages.nettoyeur.transport.LoopbackBulkTransport;
+
+/**
+ * Runs MIDI events through the complete USB path on a loopback transport: wire converter,
+ * packetizer, bulk transfers, input engine, cable dispatcher, and back to MIDI events.
+ */
+public class UsbMidiLoopbackTest {
+
+  private static final int MAX_PACKET_SIZE = 64;
+
+  private LoopbackBulkTransport transport;
+  private BulkInEngine engine;
+  private BulkInEngine.Stream stream;
+  private CableDispatcher dispatcher;
+  private UsbMidiPacketWriter writer;
+  private ToWireConverter toWire;
+  private Recorder recorder;
+
+  private static class Recorder extends MidiReceiver.DummyReceiver {
+    private final List<String> events = new ArrayList<String>();
+
+    @Override
+    public synchronized void onNoteOn(int channel, int key, int velocity) {
+      events.add("on " + channel + " " + key + " " + velocity);
+      notifyAll();
+    }
+
+    @Override
+    public synchronized void onProgramChange(int channel, int program) {
+      events.add("pc " + channel + " " + program);
+      notifyAll();
+    }
+
+    synchronized List<String> awaitEvents(int n) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (events.size() < n && System.currentTimeMillis() < deadline) {
+        wait(100);
+      }
+      return new ArrayList<String>(events);
+    }
+  }
+
+  @Before
+  public void setUp() {
+    transport = new LoopbackBulkTransport(MAX_PACKET_SIZE);
+    engine = new BulkInEngine(transport, "UsbMidiLoopbackTest");
+    dispatcher = new CableDispatcher();
+    recorder = new Recorder();
+    BulkInRequest[] requests = new BulkInRequest[3];
+    for (int i = 0; i < requests.length; i++) {
+      requests[i] = transport.newRequest(MAX_PACKET_SIZE);
+    }
+    stream = engine.addStream(requests, new BulkInEngine.Handler() {
+      @Override
+      public void onBytesReceived(byte[] buffer, int length) {
+        dispatcher.dispatch(buffer, length);
+      }
+    });
+    writer = new UsbMidiPacketWriter(transport);
+    toWire = new ToWireConverter(writer);
+  }
+
+  @After
+  public void tearDown() {
+    stream.close();
+  }
+
+  @Test
+  public void testCables() throws InterruptedException {
+    dispatcher.setReceiver(2, recorder);
+    toWire.onNoteOn(0, 60, 100); // Cable 0 has no receiver.
+    writer.setVirtualCable(2);
+    toWire.onNoteOn(1, 61, 101);
+    toWire.onProgramChange(3, 7);
+    List<String> events = recorder.awaitEvents(2);
+    assertEquals(2, events.size());
+    assertEquals("on 1 61 101", events.get(0));
+    assertEquals("pc 3 7", events.get(1));
+  }
+
+  @Test
+  public void testLoad() throws InterruptedException {
+    dispatcher.setReceiver(CableDispatcher.ALL_CABLES, recorder);
+    int n = 20000;
+    for (int i = 0; i < n; i++) {
+      if (i % 100 == 0) {
+        toWire.beginBlock();
+      }
+      toWire.onNoteOn(i % 16, i % 128, (i / 128) % 128);
+      if (i % 100 == 99) {
+        toWire.endBlock();
+      }
+    }
+    List<String> events = recorder.awaitEvents(n);
+    assertEquals(n, events.size());
+    for (int i = 0; i < n; i += 997) {
+      assertEquals("on " + (i % 16) + " " + (i % 128) + " " + ((i / 128) % 128), events.get(i));
+    }
+  }
+}
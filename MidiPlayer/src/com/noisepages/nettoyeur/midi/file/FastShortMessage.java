@@ -72,6 +72,20 @@ class FastShortMessage extends ShortMessage {
         return returnedArray;
     }
 
+    public int getMessage(byte[] buffer, int offset) {
+        int length = getLength();
+        if (length>0) {
+            buffer[offset] = (byte) (packedMsg & 0xFF);
+            if (length>1) {
+                buffer[offset+1] = (byte) ((packedMsg & 0xFF00) >> 8);
+                if (length>2) {
+                    buffer[offset+2] = (byte) ((packedMsg & 0xFF0000) >> 16);
+                }
+            }
+        }
+        return length;
+    }
+
     public int getLength() {
         try {
             return getDataLength(packedMsg & 0xFF) + 1;
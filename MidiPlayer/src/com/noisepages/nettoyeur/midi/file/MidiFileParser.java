@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.file;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Parser for standard MIDI files that works directly on a buffer holding the entire file, e.g., a
+ * memory-mapped file. The constructor reads the header and locates the track chunks without
+ * touching their contents; after that, tracks can be parsed in one pass with a
+ * {@link MidiFileVisitor}, or event by event with a {@link TrackCursor}. Neither creates objects
+ * per event or copies any data.
+ * 
+ * The parser accepts the same files as {@link StandardMidiFileReader}, with the same rules for
+ * running status and the same tolerance for unknown and truncated chunks. The parser itself holds
+ * no mutable state, so several threads may parse different tracks of the same file concurrently.
+ */
+public class MidiFileParser {
+
+  public static final int CHANNEL = 0;
+  public static final int SYSEX = 1;
+  public static final int META = 2;
+
+  private static final int MTHD_MAGIC = 0x4d546864; // "MThd"
+  private static final int MTRK_MAGIC = 0x4d54726b; // "MTrk"
+  private static final int MTHD_SIZE = 14; // Magic, length, type, number of tracks, division.
+
+  private final ByteBuffer buffer;
+  private final MidiFileFormat format;
+  private final int[] trackOffsets;
+  private final int[] trackLengths;
+
+  /**
+   * Constructor.
+   * 
+   * @param file buffer holding a standard MIDI file from its position to its limit; the parser
+   *        neither modifies the buffer nor its position
+   * @throws InvalidMidiDataException if the file is not a standard MIDI file of type 0 or 1
+   * @throws EOFException if the header is truncated
+   */
+  public MidiFileParser(ByteBuffer file) throws InvalidMidiDataException, EOFException {
+    buffer = file.duplicate().order(ByteOrder.BIG_ENDIAN);
+    int pos = buffer.position();
+    int limit = buffer.limit();
+    if (limit - pos < MTHD_SIZE) {
+      throw new EOFException("invalid MIDI file");
+    }
+    if (buffer.getInt(pos) != MTHD_MAGIC) {
+      throw new InvalidMidiDataException("not a valid MIDI file");
+    }
+    int headerLength = buffer.getInt(pos + 4);
+    int type = buffer.getShort(pos + 8);
+    int numTracks = buffer.getShort(pos + 10);
+    int timing = buffer.getShort(pos + 12);
+    float divisionType;
+    int resolution;
+    if (timing > 0) {
+      divisionType = Sequence.PPQ;
+      resolution = timing;
+    } else {
+      int frameCode = (-1 * timing) >> 8;
+      switch (frameCode) {
+        case 24:
+          divisionType = Sequence.SMPTE_24;
+          break;
+        case 25:
+          divisionType = Sequence.SMPTE_25;
+          break;
+        case 29:
+          divisionType = Sequence.SMPTE_30DROP;
+          break;
+        case 30:
+          divisionType = Sequence.SMPTE_30;
+          break;
+        default:
+          throw new InvalidMidiDataException("Unknown frame code: " + frameCode);
+      }
+      resolution = timing & 0xff;
+    }
+    if (type != 0 && type != 1) {
+      throw new InvalidMidiDataException("Invalid or unsupported file type: " + type);
+    }
+    format =
+        new MidiFileFormat(type, divisionType, resolution, limit - buffer.position(),
+            MidiFileFormat.UNKNOWN_LENGTH);
+
+    int[] offsets = new int[Math.max(numTracks, 0)];
+    int[] lengths = new int[offsets.length];
+    int count = 0;
+    // Like StandardMidiFileReader, skip the rest of a longer header, but never back up into it.
+    long end = pos + 8L + Math.max(headerLength, 6);
+    if (end > limit) {
+      throw new EOFException("invalid MIDI file");
+    }
+    pos = (int) end;
+    while (count < numTracks) {
+      if (limit - pos < 8) {
+        throw new EOFException("invalid MIDI file");
+      }
+      int magic = buffer.getInt(pos);
+      int length = buffer.getInt(pos + 4);
+      pos += 8;
+      if (length < 0 || limit - pos < length) break; // Truncated chunk; ignore the rest.
+      if (magic == MTRK_MAGIC) { // Skip unknown chunks.
+        offsets[count] = pos;
+        lengths[count] = length;
+        ++count;
+      }
+      pos += length;
+    }
+    trackOffsets = (count == offsets.length) ? offsets : copyOf(offsets, count);
+    trackLengths = (count == lengths.length) ? lengths : copyOf(lengths, count);
+  }
+
+  private static int[] copyOf(int[] a, int n) {
+    int[] b = new int[n];
+    System.arraycopy(a, 0, b, 0, n);
+    return b;
+  }
+
+  /**
+   * @return the format of the file; the length of the file is the number of bytes in the buffer
+   */
+  public MidiFileFormat getFormat() {
+    return format;
+  }
+
+  /**
+   * @return the number of complete track chunks
+   */
+  public int getTrackCount() {
+    return trackOffsets.length;
+  }
+
+  /**
+   * @return the number of bytes of event data in the given track
+   */
+  public int getTrackLength(int track) {
+    return trackLengths[track];
+  }
+
+  /**
+   * Parses all tracks, one after the other.
+   */
+  public void parse(MidiFileVisitor visitor) throws InvalidMidiDataException, EOFException {
+    for (int track = 0; track < trackOffsets.length; ++track) {
+      parseTrack(track, visitor);
+    }
+  }
+
+  /**
+   * Parses one track.
+   */
+  public void parseTrack(int track, MidiFileVisitor visitor) throws InvalidMidiDataException,
+      EOFException {
+    TrackCursor cursor = getTrackCursor(track);
+    visitor.onTrackStart(track);
+    while (cursor.next()) {
+      long tick = cursor.tick;
+      switch (cursor.type) {
+        case CHANNEL:
+          int message = cursor.message;
+          visitor.onChannelMessage(track, tick, message & 0xff, (message >> 8) & 0xff,
+              (message >> 16) & 0xff);
+          break;
+        case SYSEX:
+          visitor.onSysex(track, tick, cursor.status, buffer, cursor.payloadOffset,
+              cursor.payloadLength);
+          break;
+        default:
+          visitor.onMeta(track, tick, cursor.metaType, buffer, cursor.payloadOffset,
+              cursor.payloadLength);
+          break;
+      }
+    }
+    visitor.onTrackEnd(track, cursor.tick);
+  }
+
+  /**
+   * @return a new cursor that is positioned before the first event of the given track
+   */
+  public TrackCursor getTrackCursor(int track) {
+    return new TrackCursor(buffer, trackOffsets[track], trackOffsets[track] + trackLengths[track]);
+  }
+
+  /**
+   * Decodes the events of one track on demand. The getters describe the current event, i.e., the
+   * one that the last call to {@link #next()} has advanced to.
+   */
+  public static class TrackCursor {
+    private final ByteBuffer buffer;
+    private final int end;
+    private int pos;
+    private int status = 0; // Running status.
+    private boolean endOfTrack = false;
+
+    private long tick = 0;
+    private int type;
+    private int message;
+    private int length;
+    private int metaType;
+    private int payloadOffset;
+    private int payloadLength;
+
+    private TrackCursor(ByteBuffer buffer, int start, int end) {
+      this.buffer = buffer;
+      this.end = end;
+      pos = start;
+    }
+
+    /**
+     * Advances to the next event.
+     * 
+     * @return false if the end of the track has been reached
+     * @throws InvalidMidiDataException if the track contains an invalid status byte
+     * @throws EOFException if an event extends beyond the end of the track
+     */
+    public boolean next() throws InvalidMidiDataException, EOFException {
+      if (pos >= end || endOfTrack) return false;
+      tick += readVarInt();
+      int data1 = -1;
+      int byteValue = readByte();
+      if (byteValue >= 0x80) {
+        status = byteValue;
+      } else {
+        data1 = byteValue;
+      }
+      switch (status & 0xf0) {
+        case 0x80:
+        case 0x90:
+        case 0xa0:
+        case 0xb0:
+        case 0xe0:
+          if (data1 == -1) {
+            data1 = readByte();
+          }
+          type = CHANNEL;
+          message = status | (data1 << 8) | (readByte() << 16);
+          length = 3;
+          break;
+        case 0xc0:
+        case 0xd0:
+          if (data1 == -1) {
+            data1 = readByte();
+          }
+          type = CHANNEL;
+          message = status | (data1 << 8);
+          length = 2;
+          break;
+        case 0xf0:
+          if (status == 0xf0 || status == 0xf7) {
+            type = SYSEX;
+          } else if (status == 0xff) {
+            type = META;
+            metaType = readByte();
+            endOfTrack = (metaType == 0x2f);
+          } else {
+            throw new InvalidMidiDataException("Invalid status byte: " + status);
+          }
+          long n = readVarInt();
+          if (n > end - pos) {
+            throw new EOFException("invalid MIDI file");
+          }
+          payloadOffset = pos;
+          payloadLength = (int) n;
+          pos += payloadLength;
+          break;
+        default:
+          throw new InvalidMidiDataException("Invalid status byte: " + status);
+      }
+      return true;
+    }
+
+    private int readByte() throws EOFException {
+      if (pos >= end) {
+        throw new EOFException("invalid MIDI file");
+      }
+      return buffer.get(pos++) & 0xff;
+    }
+
+    private long readVarInt() throws EOFException {
+      long value = 0;
+      int b;
+      do {
+        b = readByte();
+        value = (value << 7) + (b & 0x7f);
+      } while ((b & 0x80) != 0);
+      return value;
+    }
+
+    /**
+     * @return the tick of the current event, i.e., the sum of all delta times so far
+     */
+    public long getTick() {
+      return tick;
+    }
+
+    /**
+     * @return CHANNEL, SYSEX, or META
+     */
+    public int getType() {
+      return type;
+    }
+
+    /**
+     * @return the status byte of the current event; 0xff for meta events
+     */
+    public int getStatus() {
+      return status;
+    }
+
+    /**
+     * @return the current channel message, packed from the least significant byte up
+     */
+    public int getMessage() {
+      return message;
+    }
+
+    /**
+     * @return the number of bytes of the current channel message
+     */
+    public int getLength() {
+      return length;
+    }
+
+    /**
+     * @return the type of the current meta event
+     */
+    public int getMetaType() {
+      return metaType;
+    }
+
+    /**
+     * @return the absolute index of the data of the current sysex or meta event in the buffer
+     */
+    public int getPayloadOffset() {
+      return payloadOffset;
+    }
+
+    /**
+     * @return the number of data bytes of the current sysex or meta event
+     */
+    public int getPayloadLength() {
+      return payloadLength;
+    }
+
+    /**
+     * @return the buffer holding the MIDI file
+     */
+    public ByteBuffer getBuffer() {
+      return buffer;
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.file;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Callbacks for {@link MidiFileParser}. All arguments are primitives, apart from the buffer that
+ * holds the MIDI file; sysex and meta data are passed as a range of that buffer rather than
+ * copied, so that parsing doesn't create any objects per event.
+ */
+public interface MidiFileVisitor {
+
+  /**
+   * Called before the first event of a track.
+   */
+  void onTrackStart(int track);
+
+  /**
+   * Called for each channel message.
+   * 
+   * @param data2 second data byte, or 0 for messages with only one data byte
+   */
+  void onChannelMessage(int track, long tick, int status, int data1, int data2);
+
+  /**
+   * Called for each system exclusive message.
+   * 
+   * @param status 0xf0 for a regular sysex message, 0xf7 for an escape or continuation
+   * @param buffer holding the MIDI file; its position and limit are meaningless here
+   * @param offset absolute index of the first data byte in the buffer
+   * @param length number of data bytes
+   */
+  void onSysex(int track, long tick, int status, ByteBuffer buffer, int offset, int length);
+
+  /**
+   * Called for each meta message, including the end of track.
+   * 
+   * @param type meta type, e.g., 0x51 for tempo changes
+   * @param buffer holding the MIDI file; its position and limit are meaningless here
+   * @param offset absolute index of the first data byte in the buffer
+   * @param length number of data bytes
+   */
+  void onMeta(int track, long tick, int type, ByteBuffer buffer, int offset, int length);
+
+  /**
+   * Called after the last event of a track.
+   * 
+   * @param tick tick of the last event, or 0 if the track is empty
+   */
+  void onTrackEnd(int track, long tick);
+}
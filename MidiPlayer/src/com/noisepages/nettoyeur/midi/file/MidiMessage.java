@@ -149,6 +149,20 @@ public abstract class MidiMessage implements Cloneable {
     }
 
 
+    /**
+     * Copies the MIDI message data into the given array, without the
+     * allocation of <code>{@link #getMessage()}</code>.
+     *
+     * @param buffer the array to copy the message data into
+     * @param offset index of the first byte in the array
+     * @return the length of the message in bytes
+     */
+    public int getMessage(byte[] buffer, int offset) {
+        System.arraycopy(data, 0, buffer, offset, length);
+        return length;
+    }
+
+
     /**
      * Obtains the status byte for the MIDI message.  The status "byte" is
      * represented as an integer; see the
@@ -145,7 +145,7 @@ public class MidiUtils {
 
         // optimization to not always go through entire list of tempo events
         int snapshotIndex = cache.snapshotIndex;
-        int snapshotMicro = cache.snapshotMicro;
+        long snapshotMicro = cache.snapshotMicro;
 
         // walk through all tempo changes and add time for the respective blocks
         long us = 0; // microsecond
@@ -238,7 +238,7 @@ public class MidiUtils {
                 // take the middle event as estimate
                 ret = (low + high) >> 1;
                 // tick of estimate
-                long t = track.get(ret).getTick();
+                long t = track.getTick(ret);
                 if (t == tick) {
                     break;
                 } else if (t < tick) {
@@ -265,7 +265,7 @@ public class MidiUtils {
         // index in ticks/tempos at the snapshot
         int snapshotIndex = 0;
         // microsecond at the snapshot
-        int snapshotMicro = 0;
+        long snapshotMicro = 0;
 
         int currTempo; // MPQ, used as return value for microsecond2tick
 
@@ -294,6 +294,10 @@ public class MidiUtils {
                 Track track = tracks[0];
                 int c = track.size();
                 for (int i = 0; i < c; i++) {
+                    if (track.isPacked(i)) {
+                        // channel message; no need to create an event
+                        continue;
+                    }
                     MidiEvent ev = track.get(i);
                     MidiMessage msg = ev.getMessage();
                     if (isMetaTempo(msg)) {
@@ -343,16 +343,17 @@ class SMFParser {
                         data1 = readUnsigned();
                     }
                     data2 = readUnsigned();
-                    message = new FastShortMessage(status | (data1 << 8) | (data2 << 16));
-                    break;
+                    // stored packed; no message or event objects needed
+                    track.add(tick, status | (data1 << 8) | (data2 << 16));
+                    continue;
                 case 0xC0:
                 case 0xD0:
                     // one data byte
                     if (data1 == -1) {
                         data1 = readUnsigned();
                     }
-                    message = new FastShortMessage(status | (data1 << 8));
-                    break;
+                    track.add(tick, status | (data1 << 8));
+                    continue;
                 case 0xF0:
                     // sys-ex or meta
                     switch(status) {
@@ -25,9 +25,6 @@
 
 package com.noisepages.nettoyeur.midi.file;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-
 /**
  * A MIDI track is an independent stream of MIDI events (time-stamped MIDI
  * data) that can be stored along with other tracks in a standard MIDI file.
@@ -53,6 +50,15 @@ import java.util.HashSet;
  * included to obtain the track's size, in terms of either the number of events
  * it contains or its duration in ticks.
  *
+ * <p>
+ * Events are held in arrays: ticks in a <code>long</code> array, short
+ * messages read from a file packed into an <code>int</code> array, and all
+ * other messages as objects.  The first call to <code>get</code> for a
+ * packed event creates its <code>MidiEvent</code> and keeps it in place of
+ * the packed message, so that events retain their identity.  Modifications
+ * copy the arrays wherever they would otherwise change data that readers
+ * may be looking at, so that reads of events that already exist never lock.
+ *
  * @see Sequencer#setTrackMute
  * @see Sequencer#setTrackSolo
  *
@@ -61,15 +67,40 @@ import java.util.HashSet;
  */
 public class Track {
 
-    // TODO: use arrays for faster access
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Snapshot of the events of a track.  Entries below <code>count</code>
+     * never change once a snapshot has been published, except that a packed
+     * message may be replaced by an event with the same tick and message;
+     * the end of track event is not part of the arrays.
+     */
+    private static class Events {
+        private final long[] ticks;
+        private final int[] packedMsgs;     // valid where events[i] is null
+        private final MidiEvent[] events;
+        private final int count;
+        private final boolean hasEot;
+
+        private Events(long[] ticks, int[] packedMsgs, MidiEvent[] events,
+                       int count, boolean hasEot) {
+            this.ticks = ticks;
+            this.packedMsgs = packedMsgs;
+            this.events = events;
+            this.count = count;
+            this.hasEot = hasEot;
+        }
+
+        private int size() {
+            return hasEot ? count + 1 : count;
+        }
+    }
 
-    // the list containing the events
-    private ArrayList<MidiEvent> eventsList = new ArrayList<MidiEvent>();
+    private final Object lock = new Object();
 
-    // use a hashset to detect duplicate events in add(MidiEvent)
-    private HashSet<MidiEvent> set = new HashSet<MidiEvent>();
+    private volatile Events snapshot;
 
-    private MidiEvent eotEvent;
+    private final MidiEvent eotEvent;
 
 
     /**
@@ -80,8 +111,8 @@ public class Track {
         // start with the end of track event
         MetaMessage eot = new ImmutableEndOfTrack();
         eotEvent = new MidiEvent(eot, 0);
-        eventsList.add(eotEvent);
-        set.add(eotEvent);
+        snapshot = new Events(new long[INITIAL_CAPACITY], new int[INITIAL_CAPACITY],
+                              new MidiEvent[INITIAL_CAPACITY], 0, true);
     }
 
     /**
@@ -98,80 +129,128 @@ public class Track {
         if (event == null) {
             return false;
         }
-        synchronized(eventsList) {
-
-            if (!set.contains(event)) {
-                int eventsCount = eventsList.size();
+        synchronized(lock) {
+            Events e = snapshot;
+            if (event == eotEvent ? e.hasEot : indexOf(e, event) >= 0) {
+                return false;
+            }
+            if (!e.hasEot) {
+                // if there is no eot event, add our immutable instance again,
+                // at the tick of the last event
+                eotEvent.setTick(e.count > 0 ? e.ticks[e.count - 1] : 0);
+            }
 
-                // get the last event
-                MidiEvent lastEvent = null;
-                if (eventsCount > 0) {
-                    lastEvent = eventsList.get(eventsCount - 1);
+            // first see if we are trying to add
+            // and endoftrack event.
+            if (MidiUtils.isMetaEndOfTrack(event.getMessage())) {
+                // since end of track event is useful
+                // for delays at the end of a track, we want to keep
+                // the tick value requested here if it is greater
+                // than the one on the eot we are maintaining.
+                // Otherwise, we only want a single eot event, so ignore.
+                if (event.getTick() > eotEvent.getTick()) {
+                    eotEvent.setTick(event.getTick());
                 }
-                // sanity check that we have a correct end-of-track
-                if (lastEvent != eotEvent) {
-                    // if there is no eot event, add our immutable instance again
-                    if (lastEvent != null) {
-                        // set eotEvent's tick to the last tick of the track
-                        eotEvent.setTick(lastEvent.getTick());
-                    } else {
-                        // if the events list is empty, just set the tick to 0
-                        eotEvent.setTick(0);
-                    }
-                    // we needn't check for a duplicate of eotEvent in "eventsList",
-                    // since then it would appear in the set.
-                    eventsList.add(eotEvent);
-                    set.add(eotEvent);
-                    eventsCount = eventsList.size();
+                if (!e.hasEot) {
+                    snapshot = new Events(e.ticks, e.packedMsgs, e.events, e.count, true);
                 }
+                return true;
+            }
+            insert(e, event.getTick(), 0, event);
+            return true;
+        }
+    }
 
-                // first see if we are trying to add
-                // and endoftrack event.
-                if (MidiUtils.isMetaEndOfTrack(event.getMessage())) {
-                    // since end of track event is useful
-                    // for delays at the end of a track, we want to keep
-                    // the tick value requested here if it is greater
-                    // than the one on the eot we are maintaining.
-                    // Otherwise, we only want a single eot event, so ignore.
-                    if (event.getTick() > eotEvent.getTick()) {
-                        eotEvent.setTick(event.getTick());
-                    }
-                    return true;
-                }
+    /**
+     * Appends a short message that has just been read from a file, without
+     * creating an event object.  Equivalent to adding a new event, but faster
+     * if messages arrive in time order.
+     *
+     * @param packedMsg a valid channel message: the status byte and data
+     * bytes, packed from the least significant byte up
+     */
+    void add(long tick, int packedMsg) {
+        synchronized(lock) {
+            Events e = snapshot;
+            if (!e.hasEot) {
+                eotEvent.setTick(e.count > 0 ? e.ticks[e.count - 1] : 0);
+            }
+            insert(e, tick, packedMsg, null);
+        }
+    }
 
-                // prevent duplicates
-                set.add(event);
+    // Inserts after all events with the same or earlier ticks and publishes
+    // a new snapshot.  Appending writes past the end of the published
+    // entries, so the arrays are only copied when they are full; inserting
+    // anywhere else shifts entries and therefore always copies.
+    private void insert(Events e, long tick, int packedMsg, MidiEvent event) {
+        int n = e.count;
+        int i = (n == 0 || e.ticks[n - 1] <= tick) ? n : upperBound(e, tick);
+        long[] ticks = e.ticks;
+        int[] packedMsgs = e.packedMsgs;
+        MidiEvent[] events = e.events;
+        if (i < n || n == ticks.length) {
+            int capacity = (n == ticks.length) ? 2 * n : ticks.length;
+            ticks = new long[capacity];
+            packedMsgs = new int[capacity];
+            events = new MidiEvent[capacity];
+            System.arraycopy(e.ticks, 0, ticks, 0, i);
+            System.arraycopy(e.packedMsgs, 0, packedMsgs, 0, i);
+            System.arraycopy(e.events, 0, events, 0, i);
+            System.arraycopy(e.ticks, i, ticks, i + 1, n - i);
+            System.arraycopy(e.packedMsgs, i, packedMsgs, i + 1, n - i);
+            System.arraycopy(e.events, i, events, i + 1, n - i);
+        }
+        ticks[i] = tick;
+        packedMsgs[i] = packedMsg;
+        events[i] = event;
+        if (eotEvent.getTick() < tick) {
+            eotEvent.setTick(tick);
+        }
+        snapshot = new Events(ticks, packedMsgs, events, n + 1, true);
+    }
 
-                // insert event such that events is sorted in increasing
-                // tick order
-                int i = eventsCount;
-                for ( ; i > 0; i--) {
-                    if (event.getTick() >= eventsList.get(i-1).getTick()) {
-                        break;
-                    }
-                }
-                if (i == eventsCount) {
-                    // we're adding an event after the
-                    // tick value of our eot, so push the eot out.
-                    // Always add at the end for better performance:
-                    // this saves all the checks and arraycopy when inserting
-
-                    // overwrite eot with new event
-                    eventsList.set(eventsCount - 1, event);
-                    // set new time of eot, if necessary
-                    if (eotEvent.getTick() < event.getTick()) {
-                        eotEvent.setTick(event.getTick());
-                    }
-                    // add eot again at the end
-                    eventsList.add(eotEvent);
-                } else {
-                    eventsList.add(i, event);
-                }
-                return true;
+    // Index of the first event with a later tick than the given one.
+    private static int upperBound(Events e, long tick) {
+        int low = 0;
+        int high = e.count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (e.ticks[mid] <= tick) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Index of the given event, not counting the end of track, or -1.
+    // Events are found by identity among those with the same tick; packed
+    // messages never match, since no event has been handed out for them.
+    private static int indexOf(Events e, MidiEvent event) {
+        long tick = event.getTick();
+        for (int i = upperBound(e, tick) - 1; i >= 0 && e.ticks[i] == tick; i--) {
+            if (e.events[i] == event) {
+                return i;
             }
         }
+        return -1;
+    }
 
-        return false;
+    // Like indexOf, but also finds events whose tick has been changed
+    // after they were added.
+    private static int find(Events e, MidiEvent event) {
+        int i = indexOf(e, event);
+        if (i >= 0) {
+            return i;
+        }
+        for (i = e.count - 1; i >= 0; i--) {
+            if (e.events[i] == event) {
+                return i;
+            }
+        }
+        return -1;
     }
 
 
@@ -193,16 +272,35 @@ public class Track {
         // to the last event, if the last non-EOT event is removed?
         // Or: document that the ticks() length will not be reduced
         // by deleting events (unless the EOT event is removed)
-        synchronized(eventsList) {
-            if (set.remove(event)) {
-                int i = eventsList.indexOf(event);
-                if (i >= 0) {
-                    eventsList.remove(i);
-                    return true;
+        if (event == null) {
+            return false;
+        }
+        synchronized(lock) {
+            Events e = snapshot;
+            if (event == eotEvent) {
+                if (!e.hasEot) {
+                    return false;
                 }
+                snapshot = new Events(e.ticks, e.packedMsgs, e.events, e.count, false);
+                return true;
+            }
+            int i = find(e, event);
+            if (i < 0) {
+                return false;
             }
+            int n = e.count;
+            long[] ticks = new long[e.ticks.length];
+            int[] packedMsgs = new int[ticks.length];
+            MidiEvent[] events = new MidiEvent[ticks.length];
+            System.arraycopy(e.ticks, 0, ticks, 0, i);
+            System.arraycopy(e.packedMsgs, 0, packedMsgs, 0, i);
+            System.arraycopy(e.events, 0, events, 0, i);
+            System.arraycopy(e.ticks, i + 1, ticks, i, n - i - 1);
+            System.arraycopy(e.packedMsgs, i + 1, packedMsgs, i, n - i - 1);
+            System.arraycopy(e.events, i + 1, events, i, n - i - 1);
+            snapshot = new Events(ticks, packedMsgs, events, n - 1, e.hasEot);
+            return true;
         }
-        return false;
     }
 
 
@@ -215,24 +313,85 @@ public class Track {
      * @see #size
      */
     public MidiEvent get(int index) throws ArrayIndexOutOfBoundsException {
-        try {
-            synchronized(eventsList) {
-                return eventsList.get(index);
+        Events e = snapshot;
+        if (index < 0 || index >= e.size()) {
+            throw new ArrayIndexOutOfBoundsException("Index: " + index + ", Size: " + e.size());
+        }
+        if (index == e.count) {
+            return eotEvent;
+        }
+        MidiEvent event = e.events[index];
+        if (event != null) {
+            return event;
+        }
+        synchronized(lock) {
+            // the track may have changed in the meantime
+            e = snapshot;
+            if (index >= e.size()) {
+                throw new ArrayIndexOutOfBoundsException("Index: " + index + ", Size: " + e.size());
             }
-        } catch (IndexOutOfBoundsException ioobe) {
-            throw new ArrayIndexOutOfBoundsException(ioobe.getMessage());
+            if (index == e.count) {
+                return eotEvent;
+            }
+            event = e.events[index];
+            if (event == null) {
+                try {
+                    event = new MidiEvent(new FastShortMessage(e.packedMsgs[index]),
+                                          e.ticks[index]);
+                } catch (InvalidMidiDataException imde) {
+                    // should never happen; only the parser adds packed messages
+                    throw new IllegalStateException(imde.getMessage());
+                }
+                // readers of the old snapshot see either the packed message
+                // or the new event; publish again so that others see the event
+                e.events[index] = event;
+                snapshot = new Events(e.ticks, e.packedMsgs, e.events, e.count, e.hasEot);
+            }
+            return event;
         }
     }
 
 
+    /**
+     * Tells whether the event at the specified index is a short message
+     * that has been read from a file and not been obtained by
+     * <code>get</code> yet.  Such events are channel messages, which lets
+     * scans for other messages skip them without creating event objects.
+     * @throws <code>ArrayIndexOutOfBoundsException</code>  if the
+     * specified index is negative or not less than the current size of
+     * this track.
+     */
+    boolean isPacked(int index) throws ArrayIndexOutOfBoundsException {
+        Events e = snapshot;
+        if (index < 0 || index >= e.size()) {
+            throw new ArrayIndexOutOfBoundsException("Index: " + index + ", Size: " + e.size());
+        }
+        return index < e.count && e.events[index] == null;
+    }
+
+
+    /**
+     * Obtains the tick of the event at the specified index, without creating
+     * an event object.
+     * @throws <code>ArrayIndexOutOfBoundsException</code>  if the
+     * specified index is negative or not less than the current size of
+     * this track.
+     */
+    long getTick(int index) throws ArrayIndexOutOfBoundsException {
+        Events e = snapshot;
+        if (index < 0 || index >= e.size()) {
+            throw new ArrayIndexOutOfBoundsException("Index: " + index + ", Size: " + e.size());
+        }
+        return (index == e.count) ? eotEvent.getTick() : e.ticks[index];
+    }
+
+
     /**
      * Obtains the number of events in this track.
      * @return the size of the track's event vector
      */
     public int size() {
-        synchronized(eventsList) {
-            return eventsList.size();
-        }
+        return snapshot.size();
     }
 
 
@@ -247,13 +406,11 @@ public class Track {
      * @see Sequencer#getTickPosition()
      */
     public long ticks() {
-        long ret = 0;
-        synchronized (eventsList) {
-            if (eventsList.size() > 0) {
-                ret = eventsList.get(eventsList.size() - 1).getTick();
-            }
+        Events e = snapshot;
+        if (e.hasEot) {
+            return eotEvent.getTick();
         }
-        return ret;
+        return (e.count > 0) ? e.ticks[e.count - 1] : 0;
     }
 
     private static class ImmutableEndOfTrack extends MetaMessage {
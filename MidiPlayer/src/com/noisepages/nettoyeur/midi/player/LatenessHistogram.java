@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.player;
+
+/**
+ * Histogram of scheduling lateness, i.e., the difference between the time when an event was
+ * dispatched and the time when it was due. Buckets are powers of two in microseconds: bucket 0
+ * counts events that were less than 1us late (including events that went out early), bucket i
+ * counts lateness in [2^(i-1), 2^i) microseconds, and the last bucket collects everything beyond.
+ */
+public class LatenessHistogram {
+
+  private static final int BUCKETS = 22; // Up to about two seconds.
+
+  private final long[] counts = new long[BUCKETS];
+  private long total = 0;
+  private long sumNanos = 0;
+  private long maxNanos = 0;
+
+  /**
+   * Records one event.
+   * 
+   * @param latenessNanos dispatch time minus due time, in nanoseconds
+   */
+  public synchronized void record(long latenessNanos) {
+    long micros = latenessNanos / 1000;
+    int bucket = (micros <= 0) ? 0 : Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+    counts[bucket]++;
+    total++;
+    if (latenessNanos > 0) {
+      sumNanos += latenessNanos;
+      maxNanos = Math.max(maxNanos, latenessNanos);
+    }
+  }
+
+  /**
+   * Clears all buckets.
+   */
+  public synchronized void reset() {
+    for (int i = 0; i < BUCKETS; ++i) {
+      counts[i] = 0;
+    }
+    total = 0;
+    sumNanos = 0;
+    maxNanos = 0;
+  }
+
+  /**
+   * @return number of buckets
+   */
+  public int getBucketCount() {
+    return BUCKETS;
+  }
+
+  /**
+   * @return exclusive upper bound of the given bucket in microseconds, or Long.MAX_VALUE for the
+   *         last bucket
+   */
+  public long getUpperBoundMicros(int bucket) {
+    return (bucket < BUCKETS - 1) ? (1L << bucket) : Long.MAX_VALUE;
+  }
+
+  /**
+   * @return number of events in the given bucket
+   */
+  public synchronized long getCount(int bucket) {
+    return counts[bucket];
+  }
+
+  /**
+   * @return total number of events recorded
+   */
+  public synchronized long getTotalCount() {
+    return total;
+  }
+
+  /**
+   * @return largest lateness recorded, in nanoseconds
+   */
+  public synchronized long getMaxNanos() {
+    return maxNanos;
+  }
+
+  /**
+   * @return mean lateness in nanoseconds, counting early events as on time
+   */
+  public synchronized long getMeanNanos() {
+    return (total > 0) ? sumNanos / total : 0;
+  }
+
+  /**
+   * @param fraction between 0 and 1, e.g., 0.99 for the 99th percentile
+   * @return upper bound in microseconds of the bucket that contains the given percentile
+   */
+  public synchronized long getPercentileMicros(double fraction) {
+    long threshold = (long) Math.ceil(fraction * total);
+    long n = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      n += counts[i];
+      if (n >= threshold && n > 0) {
+        return getUpperBoundMicros(i);
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "events: " + total + ", mean: " + getMeanNanos() / 1000 + "us, p99: <"
+        + getPercentileMicros(0.99) + "us, max: " + maxNanos / 1000 + "us";
+  }
+}
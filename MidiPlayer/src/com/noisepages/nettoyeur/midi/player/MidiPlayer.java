@@ -66,6 +66,10 @@ import com.noisepages.nettoyeur.usb.util.UsbDeviceSelector;
 public class MidiPlayer extends Activity implements BluetoothSppObserver, OnClickListener {
 
   private static final int CONNECT = 1;
+  private static final long RECONNECT_DELAY_MILLIS = 250;
+  private static final long MAX_RECONNECT_DELAY_MILLIS = 4000;
+  private static final int MAX_RECONNECT_ATTEMPTS = 8;
+  private static final int OUTAGE_BUFFER_SIZE = 0; // Stale notes are worse than missing ones.
 
   private MidiPlayerService midiService = null;
   private MidiDevice tmpDevice = null; // Only for keeping track of the current device while
@@ -242,6 +246,8 @@ public class MidiPlayer extends Activity implements BluetoothSppObserver, OnClic
     try {
       BluetoothMidiDevice device;
       device = new BluetoothMidiDevice(this, new MidiReceiver.DummyReceiver());
+      device.setAutoReconnect(true, RECONNECT_DELAY_MILLIS, MAX_RECONNECT_DELAY_MILLIS,
+          MAX_RECONNECT_ATTEMPTS, OUTAGE_BUFFER_SIZE);
       device.connect(address);
       tmpDevice = device;
     } catch (BluetoothUnavailableException e) {
@@ -16,7 +16,15 @@
 
 package com.noisepages.nettoyeur.midi.player;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
 
 import android.app.Notification;
 import android.app.PendingIntent;
@@ -25,10 +33,12 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 
 import com.noisepages.nettoyeur.midi.FromWireConverter;
 import com.noisepages.nettoyeur.midi.MidiDevice;
 import com.noisepages.nettoyeur.midi.MidiReceiver;
+import com.noisepages.nettoyeur.transport.TimedReleaseQueue;
 
 
 public class MidiPlayerService extends Service {
@@ -39,11 +49,23 @@ public class MidiPlayerService extends Service {
 
   private static final CharSequence TAG = "MidiPlayerService";
   private static final int ID = 1;
+  private static final String SEQUENCE_CACHE_DIR = "sequences";
+  private static final int MAX_CACHED_SEQUENCES = 16;
+  // Amount of music that a new file needs to have loaded before playback can start; the rest
+  // loads in the background.
+  private static final long READY_MILLIS = 5000;
+  // Events are dispatched this far ahead of time and released by a timed queue, so that
+  // scheduling jitter and transport latency stay off the musical timeline.
+  private static final long LOOKAHEAD_MILLIS = 40;
+  // Large enough for the controller state that is chased after a seek, which goes out in one block.
+  private static final int RELEASE_QUEUE_CAPACITY = 8192;
+  private static final int RELEASE_QUEUE_MAX_MESSAGES = 1024;
 
   private volatile ConnectionType connectionType = ConnectionType.NONE;
   private volatile MidiDevice midiDevice = null;
   private volatile MidiSequence midiSequence = null;
   private volatile FromWireConverter midiConverter = null;
+  private volatile TimedReleaseQueue releaseQueue = null;
   private volatile Uri uri = null;
 
   private final Binder binder = new MidiPlayerServiceBinder();
@@ -70,6 +92,8 @@ public class MidiPlayerService extends Service {
       pause();
     }
     if (midiDevice != null) {
+      releaseQueue.close();
+      releaseQueue = null;
       midiDevice.close();
       midiDevice = null;
       midiConverter = null;
@@ -90,15 +114,58 @@ public class MidiPlayerService extends Service {
     if (isInitialized()) {
       pause();
     }
+    MidiSequenceObserver sequenceObserver = new MidiSequenceObserver() {
+      @Override
+      public void onPlaybackFinished(MidiSequence sequence) {
+        observer.onPlaybackFinished(sequence);
+        stopForeground(true);
+      }
+    };
     try {
-      InputStream is = getContentResolver().openInputStream(uri);
-      midiSequence = new MidiSequence(is, new MidiSequenceObserver() {
-        @Override
-        public void onPlaybackFinished(MidiSequence sequence) {
-          observer.onPlaybackFinished(sequence);
-          stopForeground(true);
+      File cacheFile = getSequenceCacheFile(uri);
+      MidiSequence sequence = null;
+      if (cacheFile.exists()) {
+        try {
+          sequence = MidiSequence.load(cacheFile, sequenceObserver);
+          cacheFile.setLastModified(System.currentTimeMillis());
+        } catch (IOException e) {
+          e.printStackTrace();
+          cacheFile.delete();
         }
-      });
+      }
+      if (sequence == null) {
+        final File target = cacheFile;
+        MidiSequenceLoadObserver loadObserver = new MidiSequenceLoadObserver() {
+          @Override
+          public void onLoadFinished(MidiSequence sequence) {
+            try {
+              sequence.save(target);
+              pruneSequenceCache(target.getParentFile());
+            } catch (IOException e) {
+              e.printStackTrace(); // Not fatal; we'll just parse the file again next time.
+            }
+          }
+
+          @Override
+          public void onLoadFailed(MidiSequence sequence, Exception e) {
+            e.printStackTrace(); // Playback ends early; nothing goes into the cache.
+          }
+        };
+        ByteBuffer file = mapMidiFile(uri);
+        if (file != null) {
+          sequence =
+              MidiSequence.loadProgressively(file, READY_MILLIS, sequenceObserver, loadObserver);
+        } else {
+          InputStream is = getContentResolver().openInputStream(uri);
+          try {
+            sequence =
+                MidiSequence.loadProgressively(is, READY_MILLIS, sequenceObserver, loadObserver);
+          } finally {
+            is.close();
+          }
+        }
+      }
+      midiSequence = sequence;
       this.uri = uri;
     } catch (Exception e) {
       e.printStackTrace();
@@ -107,8 +174,73 @@ public class MidiPlayerService extends Service {
     return true;
   }
 
+  /**
+   * Compiled sequences are cached under a checksum of the contents of the MIDI file, so that a
+   * modified file never picks up a stale sequence. Computing the checksum only takes one pass over
+   * the raw bytes, which is much cheaper than parsing.
+   */
+  private File getSequenceCacheFile(Uri uri) throws IOException {
+    CRC32 crc = new CRC32();
+    long length = 0;
+    byte[] buffer = new byte[8192];
+    InputStream is = getContentResolver().openInputStream(uri);
+    try {
+      int n;
+      while ((n = is.read(buffer)) > 0) {
+        crc.update(buffer, 0, n);
+        length += n;
+      }
+    } finally {
+      is.close();
+    }
+    File dir = new File(getCacheDir(), SEQUENCE_CACHE_DIR);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Unable to create cache directory " + dir);
+    }
+    return new File(dir, Long.toHexString(crc.getValue()) + "-" + length + ".mseq");
+  }
+
+  /**
+   * Maps a MIDI file into memory, so that the parser can work on it without reading it first.
+   * 
+   * @return the mapped file, or null if the uri doesn't refer to a file that can be mapped
+   */
+  private ByteBuffer mapMidiFile(Uri uri) {
+    try {
+      ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(uri, "r");
+      if (pfd == null) return null;
+      FileInputStream fis = new FileInputStream(pfd.getFileDescriptor());
+      try {
+        FileChannel channel = fis.getChannel();
+        // The mapping remains valid after the channel is closed.
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+        fis.close();
+        pfd.close();
+      }
+    } catch (IOException e) {
+      return null; // E.g., a pipe; fall back to reading a stream.
+    }
+  }
+
+  private void pruneSequenceCache(File dir) {
+    File[] files = dir.listFiles();
+    if (files == null || files.length <= MAX_CACHED_SEQUENCES) return;
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        long ta = a.lastModified();
+        long tb = b.lastModified();
+        return (ta > tb) ? -1 : ((ta < tb) ? 1 : 0); // Most recently used first.
+      }
+    });
+    for (int i = MAX_CACHED_SEQUENCES; i < files.length; ++i) {
+      files[i].delete();
+    }
+  }
+
   public long getDuration() {
-    return isInitialized() ? midiSequence.duration : 0;
+    return isInitialized() ? midiSequence.getDuration() : 0;
   }
 
   public Uri getUri() {
@@ -119,6 +251,7 @@ public class MidiPlayerService extends Service {
     reset();
     midiDevice = device;
     midiConverter = new FromWireConverter(receiver);
+    releaseQueue = createReleaseQueue(midiConverter);
     connectionType = ConnectionType.BLUETOOTH;
   }
 
@@ -126,9 +259,17 @@ public class MidiPlayerService extends Service {
     reset();
     midiDevice = device;
     midiConverter = new FromWireConverter(receiver);
+    releaseQueue = createReleaseQueue(midiConverter);
     connectionType = ConnectionType.USB;
   }
 
+  private TimedReleaseQueue createReleaseQueue(FromWireConverter converter) {
+    TimedReleaseQueue queue =
+        new TimedReleaseQueue(converter, RELEASE_QUEUE_CAPACITY, RELEASE_QUEUE_MAX_MESSAGES);
+    queue.setLatencyCompensation(true);
+    return queue;
+  }
+
   public boolean isPlaying() {
     return isInitialized() && midiSequence.isPlaying();
   }
@@ -143,7 +284,7 @@ public class MidiPlayerService extends Service {
     notification.setLatestEventInfo(this, TAG, "Return to MidiPlayer", pi);
     notification.flags |= Notification.FLAG_ONGOING_EVENT;
     startForeground(ID, notification);
-    midiSequence.start(midiConverter);
+    midiSequence.start(releaseQueue, LOOKAHEAD_MILLIS);
   }
 
   public void pause() {
@@ -154,6 +295,17 @@ public class MidiPlayerService extends Service {
     stopForeground(true);
   }
 
+  public void seek(long millis) {
+    if (!isInitialized()) {
+      throw new IllegalStateException("MidiPlayerService not initialized");
+    }
+    midiSequence.seek(millis);
+  }
+
+  public long getPosition() {
+    return isInitialized() ? midiSequence.getPosition() : 0;
+  }
+
   public void rewind() {
     if (!isInitialized()) {
       throw new IllegalStateException("MidiPlayerService not initialized");
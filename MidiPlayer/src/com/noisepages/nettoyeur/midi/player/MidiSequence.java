@@ -16,65 +16,108 @@
 
 package com.noisepages.nettoyeur.midi.player;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-
-import android.os.Handler;
-import android.os.HandlerThread;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
 import android.os.Process;
-import android.os.SystemClock;
 
 import com.noisepages.nettoyeur.common.RawByteReceiver;
+import com.noisepages.nettoyeur.common.TimestampedRawByteReceiver;
+import com.noisepages.nettoyeur.midi.FromWireConverter;
+import com.noisepages.nettoyeur.midi.ToWireConverter;
 import com.noisepages.nettoyeur.midi.file.InvalidMidiDataException;
-import com.noisepages.nettoyeur.midi.file.MetaMessage;
-import com.noisepages.nettoyeur.midi.file.MidiEvent;
-import com.noisepages.nettoyeur.midi.file.MidiMessage;
-import com.noisepages.nettoyeur.midi.file.MidiUtils;
-import com.noisepages.nettoyeur.midi.file.MidiUtils.TempoCache;
-import com.noisepages.nettoyeur.midi.file.Sequence;
-import com.noisepages.nettoyeur.midi.file.StandardMidiFileReader;
-import com.noisepages.nettoyeur.midi.file.Track;
-import com.noisepages.nettoyeur.midi.file.spi.MidiFileReader;
+import com.noisepages.nettoyeur.midi.util.MidiStateTracker;
+import com.noisepages.nettoyeur.transport.TimedReleaseQueue;
 
 
+/**
+ * Playable MIDI sequence. Events are stored in columns: a sorted array of times in microseconds, an
+ * array of offsets into a single buffer of MIDI bytes, and the buffer itself. Sequences can be
+ * saved in a compiled format that mirrors this layout, so that loading a compiled sequence only
+ * takes a memory mapping and a bulk copy of the time and offset columns, no matter how complex the
+ * original file was.
+ * 
+ * A sequence can also be loaded progressively from a MIDI file, in which case a background thread
+ * merges the tracks and publishes the events in chunks, and playback can start with the first
+ * chunk (see {@link #loadProgressively(InputStream, long, MidiSequenceObserver,
+ * MidiSequenceLoadObserver)}).
+ * 
+ * Playback runs on a dedicated high-priority thread that works with System.nanoTime. It sleeps
+ * until shortly before an event is due and then spins for the remainder, and it shortens its sleeps
+ * by a running estimate of how much the system oversleeps. The lateness of each event is recorded
+ * in a histogram. Optionally, events are dispatched ahead of time, along with the time when they
+ * are due, to an output stage that releases them on time (see {@link TimedReleaseQueue}), so that
+ * the latency of the transport doesn't land on the musical timeline.
+ * 
+ * Seeking finds the target event by binary search over the times. The controller state at the
+ * target (programs, controllers including sustain, pitch bend) is chased from the nearest of a set
+ * of periodic state snapshots, so that a seek only replays a bounded number of events, and it is
+ * sent in a single block when playback resumes.
+ * 
+ * The compiled format consists of a header (magic number, format version, duration in
+ * milliseconds, number of events, size of the MIDI data in bytes; all big-endian), followed by the
+ * times of all events (long, in microseconds), the offsets of all events plus the end offset (int),
+ * and the MIDI data.
+ */
 public class MidiSequence {
 
-  private static class CompoundMidiEvent implements Comparable<CompoundMidiEvent> {
-    public final long timeInMillis;
-    public final byte[] midiBytes;
+  private static final int MAGIC = 0x4d534551; // "MSEQ"
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 24;
+  private static final long START_DELAY_NANOS = 250000000L;
+  private static final long SPIN_NANOS = 300000L; // Spin for the last 300us before each event.
+  private static final long MAX_OVERSLEEP_NANOS = 2000000L; // Cap for the oversleep estimate.
+  private static final int SNAPSHOT_INTERVAL = 256; // Number of events between state snapshots.
+  private static final long LOADER_POLL_NANOS = 10000000L; // Max wait for the loader per poll.
 
-    private CompoundMidiEvent(long timeInMillies, byte[] midiBytes) {
-      this.timeInMillis = timeInMillies;
-      this.midiBytes = midiBytes;
-    }
+  /**
+   * Immutable view of the events that are available for playback. While a sequence is loading,
+   * new views with more events replace old ones; the arrays may be larger than the number of
+   * events. Snapshots are taken before every SNAPSHOT_INTERVAL-th event, up to and including
+   * count; later views may share the array of snapshots and fill in entries beyond that.
+   */
+  private static class Columns {
+    private final long[] times;
+    private final int[] offsets; // One more than count; entry count is the size of the data.
+    private final ByteBuffer data;
+    private final int count;
+    private final int maxEventSize;
+    private final long duration; // Milliseconds.
+    private final byte[][] snapshots; // Controller state, as MIDI messages.
 
-    @Override
-    public int compareTo(CompoundMidiEvent another) {
-      return (timeInMillis < another.timeInMillis) ? -1 : ((timeInMillis > another.timeInMillis)
-          ? 1
-          : 0);
+    private Columns(long[] times, int[] offsets, ByteBuffer data, int count, int maxEventSize,
+        long duration, byte[][] snapshots) {
+      this.times = times;
+      this.offsets = offsets;
+      this.data = data;
+      this.count = count;
+      this.maxEventSize = maxEventSize;
+      this.duration = duration;
+      this.snapshots = snapshots;
     }
   }
 
-  /**
-   * Duration of the entire song in milliseconds.
-   */
-  public final long duration;
-
-  private final List<CompoundMidiEvent> events = new ArrayList<CompoundMidiEvent>();
+  private volatile Columns columns;
+  private volatile boolean loaded;
   private final MidiSequenceObserver observer;
   private volatile boolean isPlaying = false;
-  private Iterator<CompoundMidiEvent> eventIterator = null;
-  private HandlerThread handlerThread = null;
-  private RawByteReceiver receiver = null;
+  private int position = 0; // Index of the next event.
+  private long positionMicros = 0; // Time at which playback resumes.
+  private byte[] pendingChase = null; // State to be sent when playback resumes after a seek.
+  private volatile SequencerThread sequencerThread = null;
+  private TimestampedRawByteReceiver output = null;
+  private long lookaheadNanos = 0;
+  private final LatenessHistogram latenessHistogram = new LatenessHistogram();
 
   /**
    * Creates a new sequencer object for a MIDI file.
@@ -85,67 +128,343 @@ public class MidiSequence {
    */
   public MidiSequence(InputStream is, MidiSequenceObserver observer)
       throws InvalidMidiDataException, IOException {
+    this(observer);
+    MidiSequenceLoader.open(is, this, 0, null).load();
+  }
+
+  /**
+   * Creates a new sequencer object for a MIDI file that is already in memory.
+   * 
+   * @param file buffer holding the entire MIDI file, e.g., a memory-mapped file; it is only read
+   *        while the constructor runs
+   * @throws InvalidMidiDataException thrown if the file is invalid
+   * @throws IOException thrown if the file is truncated
+   */
+  public MidiSequence(ByteBuffer file, MidiSequenceObserver observer)
+      throws InvalidMidiDataException, IOException {
+    this(observer);
+    MidiSequenceLoader.open(file, this, 0, null).load();
+  }
+
+  private MidiSequence(long duration, long[] times, int[] offsets, ByteBuffer data,
+      MidiSequenceObserver observer) {
     this.observer = observer;
-    MidiFileReader reader = new StandardMidiFileReader();
-    Sequence seq = reader.getSequence(is);
-    TempoCache tempoCache = new TempoCache(seq);
-    Map<Long, ByteArrayOutputStream> eventsBuilder = new HashMap<Long, ByteArrayOutputStream>();
-    long maxTime = 0;
-    for (Track track : seq.getTracks()) {
-      for (int i = 0; i < track.size(); i++) {
-        MidiEvent event = track.get(i);
-        MidiMessage message = event.getMessage();
-        if (!(message instanceof MetaMessage)) {
-          long time = (MidiUtils.tick2microsecond(seq, event.getTick(), tempoCache) + 500) / 1000;
-          if (time > maxTime) {
-            maxTime = time;
-          }
-          ByteArrayOutputStream baos = eventsBuilder.get(time);
-          if (baos == null) {
-            eventsBuilder.put(time, baos = new ByteArrayOutputStream());
-          }
-          baos.write(message.getMessage());
+    columns =
+        new Columns(times, offsets, data, times.length, computeMaxEventSize(offsets, 0,
+            times.length, 0), duration, extendSnapshots(null, 0, times.length, offsets, data));
+    loaded = true;
+  }
+
+  private MidiSequence(MidiSequenceObserver observer) {
+    this.observer = observer;
+    int[] offsets = new int[1];
+    ByteBuffer data = ByteBuffer.allocate(0);
+    columns =
+        new Columns(new long[0], offsets, data, 0, 0, 0,
+            extendSnapshots(null, 0, 0, offsets, data));
+    loaded = false;
+  }
+
+  private static int computeMaxEventSize(int[] offsets, int from, int to, int max) {
+    for (int i = from; i < to; ++i) {
+      max = Math.max(max, offsets[i + 1] - offsets[i]);
+    }
+    return max;
+  }
+
+  /**
+   * Loads a standard MIDI file progressively. Tracks are parsed and merged on a background thread
+   * that publishes events in chunks as it goes; this method returns as soon as the given amount of
+   * music is ready, so that playback can start while the rest of the file is still loading. Until
+   * loading has finished, the duration of the sequence and the range of seeks are limited to the
+   * events that are available.
+   * 
+   * @param is input stream to read MIDI content from; it is fully read before this method returns,
+   *        and the caller remains responsible for closing it
+   * @param readyMillis amount of music to be available when this method returns, in milliseconds
+   * @param observer for playback events
+   * @param loadObserver to be notified on the loading thread when loading has finished or failed;
+   *        may be null
+   * @return the sequence
+   * @throws InvalidMidiDataException if the file is invalid
+   * @throws IOException if the file can't be read
+   */
+  public static MidiSequence loadProgressively(InputStream is, long readyMillis,
+      MidiSequenceObserver observer, MidiSequenceLoadObserver loadObserver)
+      throws InvalidMidiDataException, IOException {
+    MidiSequence sequence = new MidiSequence(observer);
+    MidiSequenceLoader loader =
+        MidiSequenceLoader.open(is, sequence, readyMillis * 1000, loadObserver);
+    loader.start();
+    loader.awaitReady();
+    return sequence;
+  }
+
+  /**
+   * Loads a standard MIDI file progressively from a buffer, e.g., a memory-mapped file, which
+   * saves reading the file into memory first. See
+   * {@link #loadProgressively(InputStream, long, MidiSequenceObserver, MidiSequenceLoadObserver)}.
+   * 
+   * @param file buffer holding the entire MIDI file; it must not change until loading has finished
+   */
+  public static MidiSequence loadProgressively(ByteBuffer file, long readyMillis,
+      MidiSequenceObserver observer, MidiSequenceLoadObserver loadObserver)
+      throws InvalidMidiDataException, IOException {
+    MidiSequence sequence = new MidiSequence(observer);
+    MidiSequenceLoader loader =
+        MidiSequenceLoader.open(file, sequence, readyMillis * 1000, loadObserver);
+    loader.start();
+    loader.awaitReady();
+    return sequence;
+  }
+
+  /**
+   * Publishes the events that the builder holds so far; called by the loading thread.
+   * 
+   * @param builder holding the events merged so far; its last event is left out unless loading is
+   *        complete, because messages may still be added to it
+   * @param complete true if loading has finished
+   */
+  void publish(MidiSequenceBuilder builder, boolean complete) {
+    Columns previous = columns;
+    int count = builder.getEventCount();
+    if (!complete && count > 0) {
+      --count;
+    }
+    int[] offsets = builder.getOffsetsArray();
+    long[] times = builder.getTimesArray();
+    long duration = (count > 0) ? (times[count - 1] + 500) / 1000 : 0;
+    ByteBuffer data = ByteBuffer.wrap(builder.getDataArray());
+    columns =
+        new Columns(times, offsets, data, count, computeMaxEventSize(offsets, previous.count, count,
+            previous.maxEventSize), duration, extendSnapshots(previous.snapshots, previous.count,
+            count, offsets, data));
+    loaded = complete;
+    SequencerThread thread = sequencerThread;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  /**
+   * @return true if all events of the sequence are available
+   */
+  public boolean isLoaded() {
+    return loaded;
+  }
+
+  /**
+   * @return duration of the entire song in milliseconds; while the sequence is loading, duration of
+   *         the part that is available
+   */
+  public long getDuration() {
+    return columns.duration;
+  }
+
+  /**
+   * Loads a sequence in compiled format. The MIDI data is memory-mapped rather than read.
+   * 
+   * @param file compiled sequence, as written by {@link #save(File)}
+   * @param observer for playback events
+   * @return the sequence
+   * @throws IOException if the file can't be read or is not a valid compiled sequence
+   */
+  public static MidiSequence load(File file, MidiSequenceObserver observer) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long fileSize = channel.size();
+      if (fileSize < HEADER_SIZE) {
+        throw new IOException("Truncated sequence file: " + file);
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        throw new IOException("Not a compiled sequence, or unsupported version: " + file);
+      }
+      long duration = buffer.getLong();
+      int count = buffer.getInt();
+      int dataSize = buffer.getInt();
+      if (count < 0 || dataSize < 0
+          || fileSize != HEADER_SIZE + 12L * count + 4L + dataSize) {
+        throw new IOException("Corrupt sequence file: " + file);
+      }
+      long[] times = new long[count];
+      buffer.asLongBuffer().get(times);
+      buffer.position(buffer.position() + 8 * count);
+      int[] offsets = new int[count + 1];
+      buffer.asIntBuffer().get(offsets);
+      buffer.position(buffer.position() + 4 * (count + 1));
+      if (offsets[0] != 0 || offsets[count] != dataSize) {
+        throw new IOException("Corrupt sequence file: " + file);
+      }
+      for (int i = 0; i < count; ++i) {
+        if (offsets[i + 1] < offsets[i] || (i > 0 && times[i] < times[i - 1])) {
+          throw new IOException("Corrupt sequence file: " + file);
         }
       }
+      ByteBuffer data = buffer.slice();
+      return new MidiSequence(duration, times, offsets, data, observer);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Saves this sequence in compiled format. The file is written under a temporary name first and
+   * then renamed, so that readers never see a partial file.
+   * 
+   * @param file destination
+   * @throws IOException if the file can't be written
+   * @throws IllegalStateException if the sequence is still loading
+   */
+  public void save(File file) throws IOException {
+    if (!loaded) {
+      throw new IllegalStateException("Sequence is still loading");
+    }
+    Columns c = columns;
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(c.duration);
+      out.writeInt(c.count);
+      out.writeInt(c.offsets[c.count]);
+      for (int i = 0; i < c.count; ++i) {
+        out.writeLong(c.times[i]);
+      }
+      for (int i = 0; i <= c.count; ++i) {
+        out.writeInt(c.offsets[i]);
+      }
+      ByteBuffer bytes = c.data.duplicate();
+      bytes.clear();
+      bytes.limit(c.offsets[c.count]);
+      byte[] chunk = new byte[8192];
+      while (bytes.hasRemaining()) {
+        int n = Math.min(chunk.length, bytes.remaining());
+        bytes.get(chunk, 0, n);
+        out.write(chunk, 0, n);
+      }
+    } finally {
+      out.close();
     }
-    duration = maxTime;
-    for (Entry<Long, ByteArrayOutputStream> entry : eventsBuilder.entrySet()) {
-      events
-          .add(new MidiSequence.CompoundMidiEvent(entry.getKey(), entry.getValue().toByteArray()));
+    if (!tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("Unable to rename " + tmp + " to " + file);
     }
-    Collections.sort(events);
   }
 
-  private class MidiRunnable implements Runnable {
-    private byte[] buffer;
-    private CompoundMidiEvent currentEvent;
-    private final long t0;
-    private final Handler handler;
+  /**
+   * @return the number of distinct points in time at which the sequence sends MIDI data; while the
+   *         sequence is loading, the number of events that are available
+   */
+  public int getEventCount() {
+    return columns.count;
+  }
+
+  private class SequencerThread extends Thread {
+    private byte[] buffer = new byte[0];
+    private volatile long t0; // Value of System.nanoTime at time 0 of the sequence.
+    private volatile boolean running = true;
+    private long oversleep = 0; // Running estimate of how much parkNanos overshoots.
 
-    private MidiRunnable() {
-      handler = new Handler(handlerThread.getLooper());
-      currentEvent = eventIterator.next();
-      t0 = SystemClock.uptimeMillis() - currentEvent.timeInMillis + 250;
+    private SequencerThread() {
+      super("MidiSequencer");
+      t0 = System.nanoTime() - positionMicros * 1000 + START_DELAY_NANOS;
     }
 
-    private void scheduleNext() {
-      buffer = currentEvent.midiBytes;
-      handler.postAtTime(this, t0 + currentEvent.timeInMillis);
+    @Override
+    public void run() {
+      raisePriority();
+      Columns c = null;
+      ByteBuffer reader = null; // Private position for this thread.
+      boolean stalled = false;
+      while (true) {
+        if (c != columns) {
+          c = columns;
+          reader = c.data.duplicate();
+          if (buffer.length < c.maxEventSize) {
+            buffer = new byte[c.maxEventSize];
+          }
+        }
+        if (position >= c.count) {
+          if (loaded) {
+            if (position < columns.count) continue; // Final chunk has just been published.
+            isPlaying = false;
+            observer.onPlaybackFinished(MidiSequence.this);
+            return;
+          }
+          // The loader has fallen behind; wait for it to publish more events.
+          LockSupport.parkNanos(LOADER_POLL_NANOS);
+          if (!running) return;
+          stalled = true;
+          continue;
+        }
+        long target = t0 + c.times[position] * 1000;
+        if (stalled) {
+          // Shift the timeline rather than rushing through the events that are now overdue.
+          long delay = System.nanoTime() + lookaheadNanos - target;
+          if (delay > 0) {
+            t0 += delay;
+            target += delay;
+          }
+          stalled = false;
+        }
+        if (!waitUntil(target - lookaheadNanos)) return;
+        latenessHistogram.record(System.nanoTime() - target + lookaheadNanos);
+        int offset = c.offsets[position];
+        int n = c.offsets[position + 1] - offset;
+        reader.position(offset);
+        reader.get(buffer, 0, n);
+        output.onBytesReceived(n, buffer, target);
+        ++position;
+      }
+    }
+
+    private boolean waitUntil(long target) {
+      while (running) {
+        long sleep = target - System.nanoTime() - SPIN_NANOS - oversleep;
+        if (sleep <= 0) break;
+        long before = System.nanoTime();
+        LockSupport.parkNanos(sleep);
+        // Clamp outliers, e.g., from preemption, so that they don't make us wake up far too soon.
+        long overshoot = Math.min(System.nanoTime() - before - sleep, MAX_OVERSLEEP_NANOS);
+        if (overshoot > 0 || oversleep > 0) {
+          oversleep = Math.max(0, oversleep + (overshoot - oversleep) / 8);
+        }
+      }
+      while (running && System.nanoTime() < target) {
+        // Spin.
+      }
+      return running;
+    }
+
+    private void cancel() {
+      running = false;
+      LockSupport.unpark(this);
+    }
+  }
+
+  /**
+   * Output stage without lookahead, sending each event as soon as it is dispatched.
+   */
+  private static class ImmediateOutput implements TimestampedRawByteReceiver {
+    private final RawByteReceiver receiver;
+
+    private ImmediateOutput(RawByteReceiver receiver) {
+      this.receiver = receiver;
     }
 
     @Override
-    public void run() {
+    public void onBytesReceived(int nBytes, byte[] buffer, long timestampNanos) {
       receiver.beginBlock();
-      receiver.onBytesReceived(buffer.length, buffer);
+      receiver.onBytesReceived(nBytes, buffer);
       receiver.endBlock();
-      if (eventIterator.hasNext()) {
-        currentEvent = eventIterator.next();
-        scheduleNext();
-      } else {
-        isPlaying = false;
-        observer.onPlaybackFinished(MidiSequence.this);
-      }
     }
+
+    @Override
+    public void discardPending() {}
   }
 
   /**
@@ -154,37 +473,66 @@ public class MidiSequence {
    * @param receiver to which MIDI bytes will be written
    */
   public void start(RawByteReceiver receiver) {
-    if (events.isEmpty()) {
+    start(new ImmediateOutput(receiver), 0);
+  }
+
+  /**
+   * Starts playback in lookahead mode, i.e., each event is dispatched ahead of time, along with the
+   * time when it is due.
+   * 
+   * @param output output stage that holds events until they are due, e.g.,
+   *        {@link TimedReleaseQueue}
+   * @param lookaheadMillis how far ahead of time events are dispatched
+   */
+  public void start(TimestampedRawByteReceiver output, long lookaheadMillis) {
+    Columns c = columns;
+    if (loaded && c.count == 0) {
       observer.onPlaybackFinished(this);
       return;
     }
     pause();
-    this.receiver = receiver;
-    if (eventIterator == null || !eventIterator.hasNext()) {
+    this.output = output;
+    lookaheadNanos = lookaheadMillis * 1000000L;
+    if (position == 0 || (loaded && position >= columns.count)) {
       allNotesOff();
       resetAllControllers();
-      eventIterator = events.iterator();
+      position = 0;
+      positionMicros = (c.count > 0) ? c.times[0] : 0;
+      pendingChase = null;
+    } else if (pendingChase != null) {
+      output.onBytesReceived(pendingChase.length, pendingChase, System.nanoTime());
+      pendingChase = null;
     }
-    handlerThread = new HandlerThread("MidiSequencer", Process.THREAD_PRIORITY_AUDIO);
-    handlerThread.start();
     isPlaying = true;
-    MidiRunnable midiRunnable = new MidiRunnable();
-    midiRunnable.scheduleNext();
+    sequencerThread = new SequencerThread();
+    sequencerThread.start();
   }
 
   /**
    * Pauses playback.
    */
   public void pause() {
-    if (handlerThread == null) return;
-    handlerThread.quit();
-    try {
-      handlerThread.join();
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt(); // Preserve interrupt flag in case the caller needs it.
+    if (sequencerThread == null) return;
+    sequencerThread.cancel();
+    if (Thread.currentThread() != sequencerThread) {
+      try {
+        sequencerThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt(); // Preserve interrupt flag in case the caller needs it.
+      }
+    }
+    // Events that were dispatched ahead of time but haven't gone out yet will be played again on
+    // resume.
+    output.discardPending();
+    long now = System.nanoTime();
+    long t0 = sequencerThread.t0;
+    long[] times = columns.times;
+    while (position > 0 && t0 + times[position - 1] * 1000 > now) {
+      --position;
     }
+    positionMicros = Math.max(positionMicros, (now - t0) / 1000);
     isPlaying = false;
-    handlerThread = null;
+    sequencerThread = null;
     allNotesOff();
   }
 
@@ -193,13 +541,158 @@ public class MidiSequence {
    */
   public void rewind() {
     pause();
-    eventIterator = null;
+    position = 0;
+    positionMicros = 0;
+  }
+
+  /**
+   * Moves the play position to the given time. The controller state at the new position is chased
+   * from the nearest of the snapshots that were taken while the sequence was loading, so that the
+   * cost of a seek is bounded regardless of the length of the sequence. If the sequence is playing,
+   * playback continues from the new position.
+   * While the sequence is loading, seeks are limited to the part that is available.
+   * 
+   * @param millis new position in milliseconds
+   */
+  public void seek(long millis) {
+    boolean wasPlaying = isPlaying;
+    pause();
+    Columns c = columns;
+    long micros = Math.max(0, millis) * 1000;
+    if (!loaded && c.count > 0) {
+      micros = Math.min(micros, c.times[c.count - 1]);
+    }
+    int lo = 0;
+    int hi = c.count;
+    while (lo < hi) { // Find the first event at or after the target time.
+      int mid = (lo + hi) >>> 1;
+      if (c.times[mid] < micros) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    position = lo;
+    positionMicros = micros;
+    pendingChase = chase(c, position);
+    if (wasPlaying) {
+      start(output, lookaheadNanos / 1000000L);
+    }
+  }
+
+  /**
+   * @return the current play position in milliseconds
+   */
+  public long getPosition() {
+    SequencerThread thread = sequencerThread;
+    long duration = columns.duration;
+    if (isPlaying && thread != null) {
+      long micros = (System.nanoTime() - thread.t0) / 1000;
+      return Math.min(Math.max(micros, positionMicros) / 1000, duration);
+    }
+    if (loaded && position >= columns.count) return duration;
+    return Math.min(positionMicros / 1000, duration);
+  }
+
+  private byte[] chase(Columns c, int index) {
+    int k = index / SNAPSHOT_INTERVAL;
+    MidiStateTracker tracker = new MidiStateTracker();
+    FromWireConverter fromWire = new FromWireConverter(tracker);
+    fromWire.onBytesReceived(c.snapshots[k].length, c.snapshots[k]);
+    replayEvents(fromWire, c.offsets, c.data.duplicate(), k * SNAPSHOT_INTERVAL, index);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(channelMessages((byte) 0x7b, (byte) 0), 0, 48); // All notes off.
+    bytes.write(channelMessages((byte) 0x79, (byte) 0), 0, 48); // Reset all controllers.
+    byte[] state = encodeState(tracker);
+    bytes.write(state, 0, state.length);
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Extends the snapshots of the first events of a sequence to the first count events. This only
+   * replays the events that are new, so that the snapshots of a sequence are built in a single pass
+   * while it loads.
+   * 
+   * @param snapshots snapshots of the first from events, or null if there are none yet
+   * @return array holding the snapshots of the first count events; a new one if the given array
+   *         was too small
+   */
+  // Off Android, e.g., in tests on a plain JVM, Process is a stub that throws; the sequencer then
+  // runs at the highest priority that Java offers.
+  private static void raisePriority() {
+    try {
+      Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+    } catch (RuntimeException e) {
+      Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
+    } catch (UnsatisfiedLinkError e) {
+      Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
+    }
+  }
+
+  private static byte[][] extendSnapshots(byte[][] snapshots, int from, int count, int[] offsets,
+      ByteBuffer data) {
+    int n = (snapshots != null) ? from / SNAPSHOT_INTERVAL + 1 : 0;
+    int k = count / SNAPSHOT_INTERVAL + 1;
+    if (k <= n) return snapshots;
+    if (snapshots == null || snapshots.length < k) {
+      byte[][] result = new byte[Math.max(k, 2 * n)][];
+      if (n > 0) {
+        System.arraycopy(snapshots, 0, result, 0, n);
+      }
+      snapshots = result;
+    }
+    MidiStateTracker tracker = new MidiStateTracker();
+    FromWireConverter fromWire = new FromWireConverter(tracker);
+    if (n > 0) {
+      fromWire.onBytesReceived(snapshots[n - 1].length, snapshots[n - 1]);
+    } else {
+      snapshots[n++] = encodeState(tracker);
+    }
+    ByteBuffer reader = data.duplicate();
+    for (int i = n; i < k; ++i) {
+      replayEvents(fromWire, offsets, reader, (i - 1) * SNAPSHOT_INTERVAL, i * SNAPSHOT_INTERVAL);
+      snapshots[i] = encodeState(tracker);
+    }
+    return snapshots;
+  }
+
+  private static void replayEvents(FromWireConverter fromWire, int[] offsets, ByteBuffer reader,
+      int from, int to) {
+    reader.limit(offsets[to]);
+    reader.position(offsets[from]);
+    fromWire.onBytesReceived(reader);
+  }
+
+  private static byte[] encodeState(MidiStateTracker tracker) {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    tracker.replay(new ToWireConverter(new RawByteReceiver() {
+      @Override
+      public void onBytesReceived(int nBytes, byte[] buffer) {
+        bytes.write(buffer, 0, nBytes);
+      }
+
+      @Override
+      public boolean beginBlock() {
+        return false;
+      }
+
+      @Override
+      public void endBlock() {}
+    }));
+    return bytes.toByteArray();
   }
 
   public boolean isPlaying() {
     return isPlaying;
   }
 
+  /**
+   * @return histogram of the lateness of all events played so far; can be reset by the caller
+   */
+  public LatenessHistogram getLatenessHistogram() {
+    return latenessHistogram;
+  }
+
   private void allNotesOff() {
     allChannels((byte) 0x7b, (byte) 0);
   }
@@ -209,10 +702,17 @@ public class MidiSequence {
   }
 
   private void allChannels(byte controller, byte v) {
-    byte[] buffer = new byte[] {0, controller, v};
+    byte[] buffer = channelMessages(controller, v);
+    output.onBytesReceived(buffer.length, buffer, System.nanoTime());
+  }
+
+  private static byte[] channelMessages(byte controller, byte v) {
+    byte[] buffer = new byte[48];
     for (int c = 0x00; c < 0x10; ++c) {
-      buffer[0] = (byte) (0xb0 | c);
-      receiver.onBytesReceived(buffer.length, buffer);
+      buffer[3 * c] = (byte) (0xb0 | c);
+      buffer[3 * c + 1] = controller;
+      buffer[3 * c + 2] = v;
     }
+    return buffer;
   }
 }
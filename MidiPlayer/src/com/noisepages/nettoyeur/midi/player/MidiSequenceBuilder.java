@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.player;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Builds the columns of a {@link MidiSequence}. Tracks are already in tick order, so a k-way merge
+ * with a binary heap of track indices yields all events in order; there is no map from times to
+ * events, no boxing of times, and no final sort. The heap operations live here; the merge itself
+ * is done by {@link MidiSequenceLoader}. Times are in microseconds; messages that fall into the
+ * same microsecond are concatenated into one compound event.
+ */
+class MidiSequenceBuilder {
+
+  private long[] times = new long[256];
+  private int[] offsets = new int[256];
+  private byte[] data = new byte[1024];
+  private int count = 0;
+  private int size = 0;
+
+  // Heap order: earlier ticks first; ties go to the lower track index, so that simultaneous events
+  // keep the order of the tracks.
+  static boolean precedes(int a, int b, long[] ticks) {
+    return ticks[a] < ticks[b] || (ticks[a] == ticks[b] && a < b);
+  }
+
+  static void siftUp(int[] heap, int i, long[] ticks) {
+    int t = heap[i];
+    while (i > 0) {
+      int parent = (i - 1) >> 1;
+      if (!precedes(t, heap[parent], ticks)) break;
+      heap[i] = heap[parent];
+      i = parent;
+    }
+    heap[i] = t;
+  }
+
+  static void siftDown(int[] heap, int heapSize, long[] ticks) {
+    if (heapSize == 0) return;
+    int t = heap[0];
+    int i = 0;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= heapSize) break;
+      if (child + 1 < heapSize && precedes(heap[child + 1], heap[child], ticks)) {
+        ++child;
+      }
+      if (!precedes(heap[child], t, ticks)) break;
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = t;
+  }
+
+  /**
+   * Appends a channel message. Times must not decrease; a message with the same time as the
+   * previous one becomes part of the same event.
+   * 
+   * @param message status byte and data bytes, packed from the least significant byte up
+   * @param length number of bytes of the message
+   */
+  void appendShortMessage(long time, int message, int length) {
+    reserve(time, length);
+    for (int i = 0; i < length; ++i) {
+      data[size++] = (byte) (message >> (8 * i));
+    }
+    offsets[count] = size;
+  }
+
+  /**
+   * Appends a system exclusive message, i.e., the given status byte followed by the given range of
+   * the buffer.
+   */
+  void appendSysexMessage(long time, int status, ByteBuffer buffer, int offset, int length) {
+    reserve(time, length + 1);
+    data[size++] = (byte) status;
+    for (int i = 0; i < length; ++i) {
+      data[size++] = buffer.get(offset + i); // Absolute gets; the buffer may be shared.
+    }
+    offsets[count] = size;
+  }
+
+  // Starts a new event unless the time is the same as that of the current one, and makes room for
+  // the given number of bytes. The entry of offsets after the last event is kept at the size of
+  // the data, so that a loader can publish the arrays as they are.
+  private void reserve(long time, int length) {
+    if (count == 0 || times[count - 1] != time) {
+      if (count + 1 == times.length) {
+        times = Arrays.copyOf(times, 2 * times.length);
+        offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+      }
+      times[count] = time;
+      offsets[count] = size;
+      ++count;
+    }
+    if (size + length > data.length) {
+      data = Arrays.copyOf(data, Math.max(2 * data.length, size + length));
+    }
+  }
+
+  int getEventCount() {
+    return count;
+  }
+
+  /**
+   * @return the internal array of times, without copying; only the first getEventCount() entries
+   *         are valid, and they never change
+   */
+  long[] getTimesArray() {
+    return times;
+  }
+
+  /**
+   * @return the internal array of offsets, without copying; the first getEventCount() + 1 entries
+   *         are valid, and all but the last one never change
+   */
+  int[] getOffsetsArray() {
+    return offsets;
+  }
+
+  /**
+   * @return the internal data array, without copying; data that has been appended never changes
+   */
+  byte[] getDataArray() {
+    return data;
+  }
+}
@@ -0,0 +1,516 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.player;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.os.Process;
+
+import com.noisepages.nettoyeur.midi.file.InvalidMidiDataException;
+import com.noisepages.nettoyeur.midi.file.MidiFileFormat;
+import com.noisepages.nettoyeur.midi.file.MidiFileParser;
+import com.noisepages.nettoyeur.midi.file.MidiFileParser.TrackCursor;
+import com.noisepages.nettoyeur.midi.file.MidiUtils;
+import com.noisepages.nettoyeur.midi.file.Sequence;
+import com.noisepages.nettoyeur.midi.file.StandardMidiFileReader;
+
+/**
+ * Loads a standard MIDI file into a {@link MidiSequence}, usually on a background thread. The
+ * whole file is held in one buffer, and each track is decoded by a
+ * {@link MidiFileParser.TrackCursor} that creates no objects per event and copies nothing but the
+ * bytes that end up in the sequence. A k-way merge with a binary heap of track indices then puts
+ * the events in time order; simultaneous events keep the order of their tracks, so the result
+ * doesn't depend on timing.
+ * 
+ * Loading takes two phases. Until the requested amount of music is ready, the merge pulls events
+ * from the cursors on demand, applying tempo changes as it reaches them, so that no pass over the
+ * whole file is needed first. After that, the remainder of the first track is decoded to complete
+ * the tempo map, and the remainders of the other tracks are decoded and timed in parallel, one
+ * task per track, on a thread pool with one thread per processor. Only the merge itself is left to
+ * the loading thread. The decoding rules and the tempo map follow {@link StandardMidiFileReader}
+ * and {@link MidiUtils}.
+ */
+class MidiSequenceLoader implements Runnable {
+
+  private static final int PUBLISH_INTERVAL = 1024; // Number of events per published chunk.
+
+  private final MidiSequence sequence;
+  private final MidiFileParser parser;
+  private final TrackCursor[] cursors;
+  private final float divisionType;
+  private final int resolution;
+  private final long readyMicros;
+  private final MidiSequenceLoadObserver observer;
+  private final MidiSequenceBuilder builder = new MidiSequenceBuilder();
+
+  // Tempo map so far: tempo in microseconds per quarter note from the given tick and time on.
+  private long[] tempoTicks = new long[16];
+  private long[] tempoMicros = new long[16];
+  private int[] tempos = new int[16];
+  private int tempoCount = 1;
+
+  private boolean ready = false;
+  private Exception failure = null;
+  private boolean inBackground = false; // True if loading runs on a thread of its own.
+
+  /**
+   * The remaining events of one track, decoded and timed ahead of the merge. Meta messages are
+   * left out.
+   */
+  private static class DecodedTrack {
+    private long[] ticks;
+    private long[] times;
+    // Channel messages, packed; for sysex messages, the status byte or'ed with the index of the
+    // payload shifted left by eight bits.
+    private int[] messages;
+    private int[] payloads = new int[8]; // Offsets and lengths of sysex payloads, in pairs.
+    private int count = 0;
+    private int payloadCount = 0;
+    // If decoding failed, the merge fails once it gets past the last event that was decoded.
+    private Exception failure = null;
+    private long failureTick = 0;
+
+    private DecodedTrack(int capacity) {
+      ticks = new long[capacity];
+      times = new long[capacity];
+      messages = new int[capacity];
+    }
+
+    private void add(long tick, int message) {
+      if (count == ticks.length) {
+        ticks = Arrays.copyOf(ticks, 2 * count);
+        times = Arrays.copyOf(times, 2 * count);
+        messages = Arrays.copyOf(messages, 2 * count);
+      }
+      ticks[count] = tick;
+      messages[count++] = message;
+    }
+
+    private void addSysex(long tick, int status, int offset, int length) {
+      if (2 * payloadCount == payloads.length) {
+        payloads = Arrays.copyOf(payloads, 2 * payloads.length);
+      }
+      payloads[2 * payloadCount] = offset;
+      payloads[2 * payloadCount + 1] = length;
+      add(tick, status | (payloadCount++ << 8));
+    }
+  }
+
+  private MidiSequenceLoader(MidiSequence sequence, MidiFileParser parser, long readyMicros,
+      MidiSequenceLoadObserver observer) {
+    this.sequence = sequence;
+    this.parser = parser;
+    cursors = new TrackCursor[parser.getTrackCount()];
+    for (int i = 0; i < cursors.length; ++i) {
+      cursors[i] = parser.getTrackCursor(i);
+    }
+    MidiFileFormat format = parser.getFormat();
+    divisionType = format.getDivisionType();
+    resolution = format.getResolution();
+    this.readyMicros = readyMicros;
+    this.observer = observer;
+    tempos[0] = MidiUtils.DEFAULT_TEMPO_MPQ;
+  }
+
+  /**
+   * Reads the header and locates the track chunks of a standard MIDI file.
+   * 
+   * @param file buffer holding the entire file, e.g., a memory-mapped file; it must not change
+   *        while loading
+   * @param sequence to publish events to
+   * @param readyMicros amount of music to be merged before {@link #awaitReady()} returns; the
+   *        remainder is decoded in parallel
+   * @param observer may be null
+   */
+  static MidiSequenceLoader open(ByteBuffer file, MidiSequence sequence, long readyMicros,
+      MidiSequenceLoadObserver observer) throws InvalidMidiDataException, IOException {
+    return new MidiSequenceLoader(sequence, new MidiFileParser(file), readyMicros, observer);
+  }
+
+  /**
+   * Reads a standard MIDI file into memory and locates its track chunks.
+   * 
+   * @param is input stream to read from; it is read to the end
+   */
+  static MidiSequenceLoader open(InputStream is, MidiSequence sequence, long readyMicros,
+      MidiSequenceLoadObserver observer) throws InvalidMidiDataException, IOException {
+    return open(ByteBuffer.wrap(readFully(is)), sequence, readyMicros, observer);
+  }
+
+  // Reads the stream into an array of exactly the right size if the stream knows its length.
+  private static byte[] readFully(InputStream is) throws IOException {
+    byte[] buffer = new byte[Math.max(is.available() + 1, 8192)];
+    int size = 0;
+    int n;
+    while ((n = is.read(buffer, size, buffer.length - size)) > 0) {
+      size += n;
+      if (size == buffer.length) {
+        buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+      }
+    }
+    return Arrays.copyOf(buffer, size);
+  }
+
+  /**
+   * Starts the loading thread.
+   */
+  void start() {
+    new Thread(this, "MidiSequenceLoader").start();
+  }
+
+  /**
+   * Blocks until the requested amount of music has been merged, or until loading has finished.
+   * 
+   * @throws InvalidMidiDataException if the file turned out to be invalid before that point
+   * @throws IOException if the file turned out to be truncated before that point
+   */
+  synchronized void awaitReady() throws InvalidMidiDataException, IOException {
+    while (!ready && failure == null) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while loading");
+      }
+    }
+    if (ready) return;
+    if (failure instanceof InvalidMidiDataException) {
+      throw (InvalidMidiDataException) failure;
+    } else if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else {
+      throw (RuntimeException) failure;
+    }
+  }
+
+  private synchronized boolean signalReady() {
+    boolean wasReady = ready;
+    ready = true;
+    notifyAll();
+    return wasReady;
+  }
+
+  private synchronized boolean signalFailure(Exception e) {
+    failure = e;
+    notifyAll();
+    return ready;
+  }
+
+  /**
+   * Loads the entire file, merging on the current thread. Pass a readyMicros of 0 to
+   * {@link #open} so that all tracks are decoded in parallel.
+   */
+  void load() throws InvalidMidiDataException, IOException {
+    merge();
+    signalReady();
+  }
+
+  @Override
+  public void run() {
+    // Merging is much faster than real time; it mustn't compete with the sequencer.
+    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    inBackground = true;
+    try {
+      merge();
+    } catch (Exception e) {
+      if (signalFailure(e)) {
+        // Playback may have started already; keep what we have.
+        sequence.publish(builder, true);
+        if (observer != null) {
+          observer.onLoadFailed(sequence, e);
+        }
+      }
+      return;
+    }
+    signalReady();
+    if (observer != null) {
+      observer.onLoadFinished(sequence);
+    }
+  }
+
+  private void merge() throws InvalidMidiDataException, IOException {
+    int n = cursors.length;
+    long[] nextTick = new long[n];
+    int[] heap = new int[n];
+    int heapSize = 0;
+    for (int t = 0; t < n; ++t) {
+      if (cursors[t].next()) {
+        nextTick[t] = cursors[t].getTick();
+        heap[heapSize] = t;
+        MidiSequenceBuilder.siftUp(heap, heapSize++, nextTick);
+      }
+    }
+    while (heapSize > 0) {
+      int t = heap[0];
+      TrackCursor cursor = cursors[t];
+      long tick = cursor.getTick();
+      long time = tickToMicros(tick, tempoCount - 1);
+      if (time >= readyMicros) {
+        sequence.publish(builder, false);
+        signalReady();
+        mergeDecoded(decodeRemainders(heap, heapSize));
+        return;
+      }
+      switch (cursor.getType()) {
+        case MidiFileParser.CHANNEL:
+          builder.appendShortMessage(time, cursor.getMessage(), cursor.getLength());
+          break;
+        case MidiFileParser.SYSEX:
+          builder.appendSysexMessage(time, cursor.getStatus(), cursor.getBuffer(),
+              cursor.getPayloadOffset(), cursor.getPayloadLength());
+          break;
+        default:
+          // As in MidiUtils.TempoCache, only tempo changes in the first track count.
+          if (t == 0 && cursor.getMetaType() == 0x51 && cursor.getPayloadLength() == 3) {
+            setTempo(tick, cursor.getBuffer(), cursor.getPayloadOffset());
+          }
+          break;
+      }
+      if (cursor.next()) {
+        nextTick[t] = cursor.getTick();
+      } else {
+        heap[0] = heap[--heapSize];
+      }
+      MidiSequenceBuilder.siftDown(heap, heapSize, nextTick);
+    }
+    sequence.publish(builder, true);
+  }
+
+  // Decodes the rest of every track that still has events, starting with the current event of
+  // its cursor. The first track goes first because its tempo changes are needed for the timing of
+  // all other tracks.
+  private DecodedTrack[] decodeRemainders(int[] heap, int heapSize) throws IOException {
+    DecodedTrack[] tracks = new DecodedTrack[cursors.length];
+    boolean[] pending = new boolean[cursors.length];
+    int remaining = 0;
+    for (int i = 0; i < heapSize; ++i) {
+      pending[heap[i]] = true;
+      if (heap[i] != 0) {
+        ++remaining;
+      }
+    }
+    if (pending[0]) {
+      tracks[0] = decode(0);
+      computeTimes(tracks[0]);
+    }
+    int threads = Math.min(Runtime.getRuntime().availableProcessors(), remaining);
+    if (threads <= 1) {
+      for (int t = 1; t < cursors.length; ++t) {
+        if (pending[t]) {
+          tracks[t] = decode(t);
+          computeTimes(tracks[t]);
+        }
+      }
+    } else {
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+        List<Future<DecodedTrack>> futures = new ArrayList<Future<DecodedTrack>>();
+        for (int t = 0; t < cursors.length; ++t) {
+          futures.add((t > 0 && pending[t]) ? executor.submit(new DecodingTask(t)) : null);
+        }
+        for (int t = 1; t < cursors.length; ++t) {
+          if (pending[t]) {
+            tracks[t] = getResult(futures.get(t));
+          }
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+    return tracks;
+  }
+
+  private class DecodingTask implements Callable<DecodedTrack> {
+    private final int track;
+
+    private DecodingTask(int track) {
+      this.track = track;
+    }
+
+    @Override
+    public DecodedTrack call() {
+      // Like the loading thread itself; a synchronous load keeps the priority of its caller.
+      if (inBackground) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+      }
+      DecodedTrack decoded = decode(track);
+      computeTimes(decoded);
+      return decoded;
+    }
+  }
+
+  private static DecodedTrack getResult(Future<DecodedTrack> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading");
+    } catch (ExecutionException e) {
+      // Decoding errors are part of the result, so this can only be a runtime exception or error.
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw (Error) cause;
+    }
+  }
+
+  // Decodes the rest of a track, starting with the current event of its cursor. Each cursor is
+  // only ever used by one thread at a time; submitting the task hands it over.
+  private DecodedTrack decode(int t) {
+    TrackCursor cursor = cursors[t];
+    DecodedTrack decoded = new DecodedTrack(parser.getTrackLength(t) / 4 + 16);
+    long tick;
+    do {
+      tick = cursor.getTick();
+      switch (cursor.getType()) {
+        case MidiFileParser.CHANNEL:
+          decoded.add(tick, cursor.getMessage());
+          break;
+        case MidiFileParser.SYSEX:
+          decoded.addSysex(tick, cursor.getStatus(), cursor.getPayloadOffset(),
+              cursor.getPayloadLength());
+          break;
+        default:
+          if (t == 0 && cursor.getMetaType() == 0x51 && cursor.getPayloadLength() == 3) {
+            setTempo(tick, cursor.getBuffer(), cursor.getPayloadOffset());
+          }
+          break;
+      }
+      try {
+        if (!cursor.next()) break;
+      } catch (Exception e) {
+        decoded.failure = e;
+        decoded.failureTick = tick;
+        break;
+      }
+    } while (true);
+    return decoded;
+  }
+
+  // Ticks are in order, so the segment of the tempo map only ever moves forward.
+  private void computeTimes(DecodedTrack decoded) {
+    int k = 0;
+    for (int i = 0; i < decoded.count; ++i) {
+      long tick = decoded.ticks[i];
+      while (k + 1 < tempoCount && tempoTicks[k + 1] <= tick) {
+        ++k;
+      }
+      decoded.times[i] = tickToMicros(tick, k);
+    }
+  }
+
+  private void mergeDecoded(DecodedTrack[] tracks) throws InvalidMidiDataException, IOException {
+    int n = tracks.length;
+    int[] next = new int[n];
+    long[] nextTick = new long[n];
+    int[] heap = new int[n];
+    int heapSize = 0;
+    for (int t = 0; t < n; ++t) {
+      if (tracks[t] != null && advance(tracks[t], 0, t, nextTick)) {
+        heap[heapSize] = t;
+        MidiSequenceBuilder.siftUp(heap, heapSize++, nextTick);
+      }
+    }
+    int published = builder.getEventCount();
+    while (heapSize > 0) {
+      int t = heap[0];
+      DecodedTrack track = tracks[t];
+      int i = next[t];
+      if (i == track.count) {
+        throwFailure(track.failure);
+      }
+      long time = track.times[i];
+      int message = track.messages[i];
+      int status = message & 0xff;
+      if (status < 0xf0) {
+        builder.appendShortMessage(time, message, ((status & 0xe0) == 0xc0) ? 2 : 3);
+      } else {
+        int payload = 2 * (message >>> 8);
+        builder.appendSysexMessage(time, status, cursors[t].getBuffer(),
+            track.payloads[payload], track.payloads[payload + 1]);
+      }
+      if (builder.getEventCount() - published >= PUBLISH_INTERVAL) {
+        sequence.publish(builder, false);
+        published = builder.getEventCount();
+      }
+      if (!advance(track, ++next[t], t, nextTick)) {
+        heap[0] = heap[--heapSize];
+      }
+      MidiSequenceBuilder.siftDown(heap, heapSize, nextTick);
+    }
+    sequence.publish(builder, true);
+  }
+
+  // Sets the tick of the next event of the given track, if any. A failure counts as one more
+  // event at the tick where decoding stopped, so that the merge fails at the same point as if it
+  // had been decoding on demand.
+  private static boolean advance(DecodedTrack track, int i, int t, long[] nextTick) {
+    if (i < track.count) {
+      nextTick[t] = track.ticks[i];
+      return true;
+    } else if (i == track.count && track.failure != null) {
+      nextTick[t] = track.failureTick;
+      return true;
+    }
+    return false;
+  }
+
+  private static void throwFailure(Exception e) throws InvalidMidiDataException, IOException {
+    if (e instanceof InvalidMidiDataException) {
+      throw (InvalidMidiDataException) e;
+    } else if (e instanceof IOException) {
+      throw (IOException) e;
+    } else {
+      throw (RuntimeException) e;
+    }
+  }
+
+  // Time of the given tick, which must fall into the k-th segment of the tempo map.
+  private long tickToMicros(long tick, int k) {
+    if (divisionType != Sequence.PPQ) {
+      double seconds = ((double) tick / (double) (divisionType * resolution));
+      return (long) (1000000 * seconds);
+    }
+    return tempoMicros[k] + MidiUtils.ticks2microsec(tick - tempoTicks[k], tempos[k], resolution);
+  }
+
+  private void setTempo(long tick, ByteBuffer data, int offset) {
+    int k = tempoCount - 1;
+    if (tempoCount == tempoTicks.length) {
+      tempoTicks = Arrays.copyOf(tempoTicks, 2 * tempoCount);
+      tempoMicros = Arrays.copyOf(tempoMicros, 2 * tempoCount);
+      tempos = Arrays.copyOf(tempos, 2 * tempoCount);
+    }
+    tempoMicros[tempoCount] =
+        tempoMicros[k] + MidiUtils.ticks2microsec(tick - tempoTicks[k], tempos[k], resolution);
+    tempoTicks[tempoCount] = tick;
+    tempos[tempoCount++] =
+        ((data.get(offset) & 0xff) << 16) | ((data.get(offset + 1) & 0xff) << 8)
+            | (data.get(offset + 2) & 0xff);
+  }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.file;
+
+import static com.noisepages.nettoyeur.midi.file.TestMidiFiles.bytes;
+import static com.noisepages.nettoyeur.midi.file.TestMidiFiles.chunk;
+import static com.noisepages.nettoyeur.midi.file.TestMidiFiles.concat;
+import static com.noisepages.nettoyeur.midi.file.TestMidiFiles.file;
+import static com.noisepages.nettoyeur.midi.file.TestMidiFiles.header;
+import static com.noisepages.nettoyeur.midi.file.TestMidiFiles.randomFile;
+import static com.noisepages.nettoyeur.midi.file.TestMidiFiles.randomTrack;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.midi.file.MidiFileParser.TrackCursor;
+
+/**
+ * Compares the events that {@link MidiFileParser} finds with those of
+ * {@link StandardMidiFileReader}. Events are compared as strings of the form "tick: bytes", where
+ * the bytes of sysex and meta messages are the status byte (and meta type) followed by the data.
+ */
+public class MidiFileParserTest {
+
+  private static String describe(long tick, int status, byte[] data, int offset, int length) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(tick).append(':');
+    sb.append(' ').append(Integer.toHexString(status));
+    for (int i = 0; i < length; ++i) {
+      sb.append(' ').append(Integer.toHexString(data[offset + i] & 0xff));
+    }
+    return sb.toString();
+  }
+
+  private static String describe(long tick, int status, ByteBuffer buffer, int offset,
+      int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; ++i) {
+      data[i] = buffer.get(offset + i);
+    }
+    return describe(tick, status, data, 0, length);
+  }
+
+  private static List<List<String>> readReference(byte[] file)
+      throws InvalidMidiDataException, IOException {
+    Sequence sequence = new StandardMidiFileReader().getSequence(new ByteArrayInputStream(file));
+    List<List<String>> tracks = new ArrayList<List<String>>();
+    for (Track track : sequence.getTracks()) {
+      List<String> events = new ArrayList<String>();
+      for (int i = 0; i < track.size(); ++i) {
+        MidiEvent event = track.get(i);
+        MidiMessage msg = event.getMessage();
+        byte[] data = msg.getMessage();
+        if (msg instanceof MetaMessage) {
+          byte[] metaData = ((MetaMessage) msg).getData();
+          events.add(describe(event.getTick(), 0xff, concat(bytes(((MetaMessage) msg).getType()),
+              metaData), 0, metaData.length + 1));
+        } else {
+          events.add(describe(event.getTick(), data[0] & 0xff, data, 1, msg.getLength() - 1));
+        }
+      }
+      tracks.add(events);
+    }
+    return tracks;
+  }
+
+  private static class RecordingVisitor implements MidiFileVisitor {
+    private final List<List<String>> tracks = new ArrayList<List<String>>();
+    private List<String> events = null;
+
+    @Override
+    public void onTrackStart(int track) {
+      assertEquals(tracks.size(), track);
+      events = new ArrayList<String>();
+      tracks.add(events);
+    }
+
+    @Override
+    public void onChannelMessage(int track, long tick, int status, int data1, int data2) {
+      int command = status & 0xf0;
+      boolean oneByte = command == 0xc0 || command == 0xd0;
+      events.add(describe(tick, status, bytes(data1, data2), 0, oneByte ? 1 : 2));
+    }
+
+    @Override
+    public void onSysex(int track, long tick, int status, ByteBuffer buffer, int offset,
+        int length) {
+      events.add(describe(tick, status, buffer, offset, length));
+    }
+
+    @Override
+    public void onMeta(int track, long tick, int type, ByteBuffer buffer, int offset, int length) {
+      byte[] data = new byte[length + 1];
+      data[0] = (byte) type;
+      for (int i = 0; i < length; ++i) {
+        data[i + 1] = buffer.get(offset + i);
+      }
+      events.add(describe(tick, 0xff, data, 0, length + 1));
+    }
+
+    @Override
+    public void onTrackEnd(int track, long tick) {
+      assertEquals(tracks.size() - 1, track);
+      events = null;
+    }
+  }
+
+  private static List<List<String>> readWithVisitor(byte[] file)
+      throws InvalidMidiDataException, IOException {
+    RecordingVisitor visitor = new RecordingVisitor();
+    new MidiFileParser(ByteBuffer.wrap(file)).parse(visitor);
+    return visitor.tracks;
+  }
+
+  private static List<List<String>> readWithCursors(byte[] file)
+      throws InvalidMidiDataException, IOException {
+    MidiFileParser parser = new MidiFileParser(ByteBuffer.wrap(file));
+    List<List<String>> tracks = new ArrayList<List<String>>();
+    for (int t = 0; t < parser.getTrackCount(); ++t) {
+      List<String> events = new ArrayList<String>();
+      TrackCursor cursor = parser.getTrackCursor(t);
+      while (cursor.next()) {
+        switch (cursor.getType()) {
+          case MidiFileParser.CHANNEL:
+            int message = cursor.getMessage();
+            events.add(describe(cursor.getTick(), message & 0xff,
+                bytes(message >> 8, message >> 16), 0, cursor.getLength() - 1));
+            break;
+          case MidiFileParser.SYSEX:
+            events.add(describe(cursor.getTick(), cursor.getStatus(), cursor.getBuffer(),
+                cursor.getPayloadOffset(), cursor.getPayloadLength()));
+            break;
+          default:
+            byte[] data = new byte[cursor.getPayloadLength() + 1];
+            data[0] = (byte) cursor.getMetaType();
+            for (int i = 1; i < data.length; ++i) {
+              data[i] = cursor.getBuffer().get(cursor.getPayloadOffset() + i - 1);
+            }
+            events.add(describe(cursor.getTick(), 0xff, data, 0, data.length));
+            break;
+        }
+      }
+      tracks.add(events);
+    }
+    return tracks;
+  }
+
+  private static void assertSameEvents(byte[] file) throws InvalidMidiDataException, IOException {
+    List<List<String>> expected = readReference(file);
+    assertEquals(expected, readWithVisitor(file));
+    assertEquals(expected, readWithCursors(file));
+  }
+
+  @Test
+  public void testRandomFiles() throws InvalidMidiDataException, IOException {
+    Random random = new Random(1);
+    for (int i = 0; i < 20; ++i) {
+      assertSameEvents(randomFile(random, 96 + i, 1 + i % 5, 200));
+    }
+  }
+
+  private static void assertSameFormat(byte[] file) throws InvalidMidiDataException, IOException {
+    MidiFileFormat expected =
+        new StandardMidiFileReader().getMidiFileFormat(new ByteArrayInputStream(file));
+    MidiFileFormat format = new MidiFileParser(ByteBuffer.wrap(file)).getFormat();
+    assertEquals(expected.getType(), format.getType());
+    assertEquals(expected.getDivisionType(), format.getDivisionType(), 0);
+    assertEquals(expected.getResolution(), format.getResolution());
+  }
+
+  @Test
+  public void testFormat() throws InvalidMidiDataException, IOException {
+    byte[] file = randomFile(new Random(2), 480, 3, 10);
+    assertSameFormat(file);
+    assertEquals(480, new MidiFileParser(ByteBuffer.wrap(file)).getFormat().getResolution());
+
+    file = randomFile(new Random(3), (-25 << 8) | 40, 2, 100); // SMPTE, 40 ticks per frame.
+    assertSameFormat(file);
+    assertSameEvents(file);
+  }
+
+  @Test
+  public void testUnknownChunksAreSkipped() throws InvalidMidiDataException, IOException {
+    Random random = new Random(4);
+    byte[] file =
+        concat(header(1, 2, 96), chunk("MTrk", randomTrack(random, 50, true)),
+            chunk("XFIH", bytes(1, 2, 3)), chunk("MTrk", randomTrack(random, 50, false)));
+    assertEquals(2, new MidiFileParser(ByteBuffer.wrap(file)).getTrackCount());
+    assertSameEvents(file);
+  }
+
+  @Test
+  public void testTruncatedChunkIsIgnored() throws InvalidMidiDataException, IOException {
+    Random random = new Random(5);
+    byte[] file = file(96, randomTrack(random, 50, true), randomTrack(random, 50, false));
+    byte[] truncated = new byte[file.length - 10];
+    System.arraycopy(file, 0, truncated, 0, truncated.length);
+    assertEquals(1, new MidiFileParser(ByteBuffer.wrap(truncated)).getTrackCount());
+    assertSameEvents(truncated);
+  }
+
+  @Test
+  public void testTruncatedTrack() throws InvalidMidiDataException, IOException {
+    // The last event of the second track lacks its second data byte.
+    byte[] file =
+        file(96, bytes(0, 0x90, 60, 100, 0, 0xff, 0x2f, 0), bytes(0, 0x91, 60, 100, 10, 62));
+    try {
+      readReference(file);
+      fail("Expected EOFException");
+    } catch (EOFException e) {
+      // Expected.
+    }
+    RecordingVisitor visitor = new RecordingVisitor();
+    try {
+      new MidiFileParser(ByteBuffer.wrap(file)).parse(visitor);
+      fail("Expected EOFException");
+    } catch (EOFException e) {
+      // Events up to the truncated one have been visited.
+      assertEquals(2, visitor.tracks.size());
+      assertEquals(1, visitor.tracks.get(1).size());
+      assertEquals("0: 91 3c 64", visitor.tracks.get(1).get(0));
+    }
+  }
+
+  // Format 1 file with a header chunk of the given declared length and the given extra bytes.
+  private static byte[] fileWithHeader(int headerLength, byte[] extra, byte[]... tracks) {
+    byte[] file = file(96, tracks);
+    byte[] length = bytes(headerLength >> 24, headerLength >> 16, headerLength >> 8, headerLength);
+    return concat(Arrays.copyOf(file, 4), length, Arrays.copyOfRange(file, 8, 14), extra,
+        Arrays.copyOfRange(file, 14, file.length));
+  }
+
+  @Test
+  public void testMalformedHeaderLength() throws InvalidMidiDataException, IOException {
+    Random random = new Random(6);
+    byte[] track0 = randomTrack(random, 50, true);
+    byte[] track1 = randomTrack(random, 50, false);
+    // Longer headers are skipped; shorter ones, including negative lengths, end after the fields.
+    byte[][] files = {
+        fileWithHeader(10, bytes(1, 2, 3, 4), track0, track1),
+        fileWithHeader(2, new byte[0], track0, track1),
+        fileWithHeader(0, new byte[0], track0, track1),
+        fileWithHeader(0xfffffff0, new byte[0], track0, track1),
+        fileWithHeader(Integer.MIN_VALUE, new byte[0], track0, track1)};
+    List<List<String>> expected = readReference(file(96, track0, track1));
+    for (byte[] file : files) {
+      assertEquals(2, new MidiFileParser(ByteBuffer.wrap(file)).getTrackCount());
+      assertEquals(expected, readWithVisitor(file));
+      assertEquals(expected, readWithCursors(file));
+    }
+  }
+
+  @Test
+  public void testHeaderBeyondEndOfFile() throws InvalidMidiDataException, IOException {
+    byte[][] files = {
+        fileWithHeader(1000, new byte[0], randomTrack(new Random(7), 50, true)),
+        fileWithHeader(Integer.MAX_VALUE, new byte[0], randomTrack(new Random(7), 50, true))};
+    for (byte[] file : files) {
+      try {
+        readReference(file);
+        fail("Expected EOFException");
+      } catch (EOFException e) {
+        // Expected.
+      }
+      try {
+        new MidiFileParser(ByteBuffer.wrap(file));
+        fail("Expected EOFException");
+      } catch (EOFException e) {
+        // Expected.
+      }
+    }
+  }
+
+  @Test(expected = InvalidMidiDataException.class)
+  public void testNotAMidiFile() throws InvalidMidiDataException, IOException {
+    new MidiFileParser(ByteBuffer.wrap("RIFF....WAVEfmt ".getBytes()));
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.file;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Builds standard MIDI files for tests.
+ */
+public class TestMidiFiles {
+
+  private TestMidiFiles() {}
+
+  public static byte[] bytes(int... values) {
+    byte[] result = new byte[values.length];
+    for (int i = 0; i < values.length; ++i) {
+      result[i] = (byte) values[i];
+    }
+    return result;
+  }
+
+  public static byte[] concat(byte[]... parts) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] part : parts) {
+      out.write(part, 0, part.length);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * @param division ticks per quarter note if positive, SMPTE format and resolution otherwise
+   */
+  public static byte[] header(int format, int tracks, int division) {
+    return concat("MThd".getBytes(), bytes(0, 0, 0, 6, 0, format, tracks >> 8, tracks,
+        division >> 8, division));
+  }
+
+  public static byte[] chunk(String type, byte[] data) {
+    return concat(type.getBytes(),
+        bytes(data.length >> 24, data.length >> 16, data.length >> 8, data.length), data);
+  }
+
+  /**
+   * @return format 1 file with the given track data
+   */
+  public static byte[] file(int division, byte[]... tracks) {
+    byte[][] parts = new byte[tracks.length + 1][];
+    parts[0] = header(1, tracks.length, division);
+    for (int i = 0; i < tracks.length; ++i) {
+      parts[i + 1] = chunk("MTrk", tracks[i]);
+    }
+    return concat(parts);
+  }
+
+  public static void writeVarInt(ByteArrayOutputStream out, long value) {
+    int shift = 0;
+    while ((value >> (shift + 7)) != 0) {
+      shift += 7;
+    }
+    for (; shift > 0; shift -= 7) {
+      out.write((int) (0x80 | (value >> shift)));
+    }
+    out.write((int) (value & 0x7f));
+  }
+
+  /**
+   * Creates the data of a track with random channel messages, sysex messages, and meta messages,
+   * ending with an end of track. Many events share their ticks, and running status is used where
+   * possible.
+   * 
+   * @param tempo true if the track is to include tempo changes
+   */
+  public static byte[] randomTrack(Random random, int events, boolean tempo) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int runningStatus = 0;
+    for (int i = 0; i < events; ++i) {
+      writeVarInt(out, random.nextBoolean() ? 0 : random.nextInt(400));
+      int kind = random.nextInt(20);
+      if (kind == 0) {
+        out.write(0xf0);
+        int n = random.nextInt(8);
+        writeVarInt(out, n + 1);
+        for (int j = 0; j < n; ++j) {
+          out.write(random.nextInt(128));
+        }
+        out.write(0xf7);
+        runningStatus = 0;
+      } else if (kind == 1) {
+        out.write(0xf7); // Escape.
+        writeVarInt(out, 2);
+        out.write(0xfa);
+        out.write(0xfc);
+        runningStatus = 0;
+      } else if (kind == 2 || (kind == 3 && tempo)) {
+        out.write(0xff);
+        if (kind == 2) {
+          out.write(0x01); // Text.
+          writeVarInt(out, 3);
+          out.write('a');
+          out.write('b');
+          out.write('c');
+        } else {
+          out.write(0x51);
+          writeVarInt(out, 3);
+          int mpq = 200000 + random.nextInt(800000);
+          out.write(mpq >> 16);
+          out.write(mpq >> 8);
+          out.write(mpq);
+        }
+        runningStatus = 0;
+      } else {
+        int status = (0x80 + 0x10 * random.nextInt(7)) | random.nextInt(16);
+        if (random.nextInt(4) > 0 && runningStatus != 0) {
+          status = runningStatus;
+        }
+        if (status != runningStatus || random.nextInt(8) == 0) {
+          out.write(status);
+        }
+        runningStatus = status;
+        int command = status & 0xf0;
+        if (command == 0xb0) {
+          out.write(random.nextInt(40) == 0 ? 121 : random.nextInt(120)); // Occasionally a reset.
+        } else {
+          out.write(random.nextInt(128));
+        }
+        if (command != 0xc0 && command != 0xd0) {
+          out.write(random.nextInt(128));
+        }
+      }
+    }
+    out.write(bytes(0, 0xff, 0x2f, 0), 0, 4);
+    return out.toByteArray();
+  }
+
+  /**
+   * @return format 1 file with the given number of random tracks; the first one includes tempo
+   *         changes
+   */
+  public static byte[] randomFile(Random random, int division, int tracks, int eventsPerTrack) {
+    byte[][] data = new byte[tracks][];
+    for (int i = 0; i < tracks; ++i) {
+      data[i] = randomTrack(random, eventsPerTrack, i == 0);
+    }
+    return file(division, data);
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TrackTest {
+
+  private static final int NOTE_ON = 0x90 | (60 << 8) | (100 << 16);
+  private static final int NOTE_OFF = 0x80 | (60 << 8);
+  private static final int CONTROL = 0xb3 | (7 << 8) | (80 << 16);
+
+  private static MidiEvent shortEvent(int packedMsg, long tick) throws InvalidMidiDataException {
+    ShortMessage msg = new ShortMessage();
+    msg.setMessage(packedMsg & 0xff, (packedMsg >> 8) & 0xff, (packedMsg >> 16) & 0xff);
+    return new MidiEvent(msg, tick);
+  }
+
+  private static MidiEvent sysexEvent(long tick) throws InvalidMidiDataException {
+    SysexMessage msg = new SysexMessage();
+    msg.setMessage(new byte[] {(byte) 0xf0, 0x7e, 0x7f, 0x09, 0x01, (byte) 0xf7}, 6);
+    return new MidiEvent(msg, tick);
+  }
+
+  private static MidiEvent endOfTrack(long tick) throws InvalidMidiDataException {
+    MetaMessage msg = new MetaMessage();
+    msg.setMessage(MidiUtils.META_END_OF_TRACK_TYPE, new byte[0], 0);
+    return new MidiEvent(msg, tick);
+  }
+
+  private static int packed(MidiEvent event) {
+    ShortMessage msg = (ShortMessage) event.getMessage();
+    return msg.getStatus() | (msg.getData1() << 8) | (msg.getData2() << 16);
+  }
+
+  private static void assertTicks(Track track, long... ticks) {
+    assertEquals(ticks.length, track.size());
+    for (int i = 0; i < ticks.length; ++i) {
+      assertEquals(ticks[i], track.getTick(i));
+      assertEquals(ticks[i], track.get(i).getTick());
+    }
+  }
+
+  private static void assertEndOfTrack(Track track, int index) {
+    assertTrue(MidiUtils.isMetaEndOfTrack(track.get(index).getMessage()));
+  }
+
+  @Test
+  public void testEmpty() {
+    Track track = new Track();
+    assertTicks(track, 0);
+    assertEndOfTrack(track, 0);
+    assertEquals(0, track.ticks());
+  }
+
+  @Test
+  public void testAppendInOrder() {
+    Track track = new Track();
+    for (int i = 0; i < 100; ++i) { // Enough to grow the arrays a few times.
+      track.add(10 * (i / 2), (i % 2 == 0) ? NOTE_ON : NOTE_OFF);
+    }
+    assertEquals(101, track.size());
+    for (int i = 0; i < 100; ++i) {
+      assertEquals(10 * (i / 2), track.getTick(i));
+      assertEquals((i % 2 == 0) ? NOTE_ON : NOTE_OFF, packed(track.get(i)));
+    }
+    assertEndOfTrack(track, 100);
+    assertEquals(490, track.getTick(100));
+    assertEquals(490, track.ticks());
+  }
+
+  @Test
+  public void testInsertOutOfOrder() throws InvalidMidiDataException {
+    Track track = new Track();
+    track.add(0, NOTE_ON);
+    track.add(20, NOTE_OFF);
+    MidiEvent sysex = sysexEvent(10);
+    assertTrue(track.add(sysex));
+    track.add(10, CONTROL); // Goes after the event with the same tick.
+    MidiEvent first = shortEvent(CONTROL, 0);
+    assertTrue(track.add(first));
+    assertTicks(track, 0, 0, 10, 10, 20, 20);
+    assertEquals(NOTE_ON, packed(track.get(0)));
+    assertSame(first, track.get(1));
+    assertSame(sysex, track.get(2));
+    assertEquals(CONTROL, packed(track.get(3)));
+    assertEquals(NOTE_OFF, packed(track.get(4)));
+    assertEndOfTrack(track, 5);
+    assertEquals(20, track.ticks());
+  }
+
+  @Test
+  public void testDuplicatePackedEvent() throws InvalidMidiDataException {
+    Track track = new Track();
+    track.add(10, NOTE_ON);
+    assertTrue(track.isPacked(0));
+    MidiEvent event = track.get(0);
+    assertFalse(track.isPacked(0));
+    assertSame(event, track.get(0)); // Packed events keep the object that get returns.
+    assertFalse(track.add(event));
+    MidiEvent equal = shortEvent(NOTE_ON, 10);
+    assertTrue(track.add(equal)); // Equal events still match by identity only.
+    assertFalse(track.add(equal));
+    assertTrue(track.add(shortEvent(NOTE_OFF, 10)));
+    assertTicks(track, 10, 10, 10, 10);
+    assertSame(event, track.get(0));
+    assertSame(equal, track.get(1));
+  }
+
+  @Test
+  public void testModifyPackedEvent() throws InvalidMidiDataException {
+    Track track = new Track();
+    track.add(0, NOTE_ON);
+    track.add(10, CONTROL);
+    MidiEvent event = track.get(0);
+    ((ShortMessage) event.getMessage()).setMessage(0x80, 60, 0);
+    event.setTick(5);
+    assertSame(event, track.get(0));
+    assertEquals(NOTE_OFF, packed(track.get(0)));
+    assertEquals(5, track.get(0).getTick());
+    assertTrue(track.remove(event)); // Found even though its tick has changed.
+    assertFalse(track.remove(event));
+    assertTicks(track, 10, 10);
+    assertEquals(CONTROL, packed(track.get(0)));
+  }
+
+  @Test
+  public void testDuplicateObjectEvent() throws InvalidMidiDataException {
+    Track track = new Track();
+    MidiEvent note = shortEvent(NOTE_ON, 10);
+    MidiEvent sysex = sysexEvent(10);
+    assertTrue(track.add(note));
+    assertTrue(track.add(sysex));
+    assertFalse(track.add(note));
+    assertFalse(track.add(sysex));
+    assertTrue(track.add(sysexEvent(10))); // Other than short messages, events match by identity.
+    assertTicks(track, 10, 10, 10, 10);
+    assertFalse(track.add(null));
+  }
+
+  @Test
+  public void testRemovePackedEvent() throws InvalidMidiDataException {
+    Track track = new Track();
+    track.add(0, NOTE_ON);
+    track.add(10, CONTROL);
+    track.add(20, NOTE_OFF);
+    assertTrue(track.remove(track.get(1)));
+    assertTicks(track, 0, 20, 20);
+    assertEquals(NOTE_ON, packed(track.get(0)));
+    assertEquals(NOTE_OFF, packed(track.get(1)));
+    assertFalse(track.remove(shortEvent(CONTROL, 10)));
+    assertFalse(track.remove(shortEvent(NOTE_ON, 0))); // Only the event from get matches.
+    assertTrue(track.remove(track.get(0)));
+    assertTicks(track, 20, 20);
+    assertFalse(track.remove(null));
+  }
+
+  @Test
+  public void testEndOfTrack() throws InvalidMidiDataException {
+    Track track = new Track();
+    track.add(0, NOTE_ON);
+    track.add(20, NOTE_OFF);
+    assertEquals(20, track.ticks());
+
+    // A later end of track extends the track; an earlier one doesn't shorten it.
+    assertTrue(track.add(endOfTrack(100)));
+    assertEquals(100, track.ticks());
+    assertTrue(track.add(endOfTrack(50)));
+    assertEquals(100, track.ticks());
+    assertTicks(track, 0, 20, 100);
+
+    MidiEvent eot = track.get(2);
+    assertFalse(track.add(eot));
+    assertTrue(track.remove(eot));
+    assertFalse(track.remove(eot));
+    assertTicks(track, 0, 20);
+    assertEquals(20, track.ticks());
+
+    // Adding another event brings back the end of track, at the end of the track.
+    track.add(30, CONTROL);
+    assertTicks(track, 0, 20, 30, 30);
+    assertSame(eot, track.get(3));
+    assertEquals(30, track.ticks());
+
+    assertTrue(track.remove(eot));
+    assertTrue(track.add(eot));
+    assertTicks(track, 0, 20, 30, 30);
+  }
+
+  @Test(expected = ArrayIndexOutOfBoundsException.class)
+  public void testOutOfBounds() {
+    Track track = new Track();
+    track.add(0, NOTE_ON);
+    track.get(2);
+  }
+}
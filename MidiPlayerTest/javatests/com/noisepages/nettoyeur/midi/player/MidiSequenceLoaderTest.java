@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2013 Peter Brinkmann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package com.noisepages.nettoyeur.midi.player;
+
+import static com.noisepages.nettoyeur.midi.file.TestMidiFiles.bytes;
+import static com.noisepages.nettoyeur.midi.file.TestMidiFiles.file;
+import static com.noisepages.nettoyeur.midi.file.TestMidiFiles.randomFile;
+import static com.noisepages.nettoyeur.midi.file.TestMidiFiles.randomTrack;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.noisepages.nettoyeur.common.RawByteReceiver;
+import com.noisepages.nettoyeur.midi.FromWireConverter;
+import com.noisepages.nettoyeur.midi.file.InvalidMidiDataException;
+import com.noisepages.nettoyeur.midi.file.MetaMessage;
+import com.noisepages.nettoyeur.midi.file.MidiEvent;
+import com.noisepages.nettoyeur.midi.file.MidiMessage;
+import com.noisepages.nettoyeur.midi.file.MidiUtils;
+import com.noisepages.nettoyeur.midi.file.MidiUtils.TempoCache;
+import com.noisepages.nettoyeur.midi.file.Sequence;
+import com.noisepages.nettoyeur.midi.file.StandardMidiFileReader;
+import com.noisepages.nettoyeur.midi.file.Track;
+import com.noisepages.nettoyeur.midi.util.MidiStateTracker;
+
+/**
+ * Compares sequences loaded by {@link MidiSequenceLoader} with a reference that is built from the
+ * {@link Sequence} that {@link StandardMidiFileReader} reads: all messages other than meta
+ * messages, in order of their ticks, simultaneous messages in order of their tracks, timed with
+ * {@link MidiUtils#tick2microsecond}.
+ */
+public class MidiSequenceLoaderTest {
+
+  private static final MidiSequenceObserver NO_OBSERVER = new MidiSequenceObserver() {
+    @Override
+    public void onPlaybackFinished(MidiSequence sequence) {}
+  };
+
+  private static MidiSequenceBuilder reference(byte[] file)
+      throws InvalidMidiDataException, IOException {
+    Sequence sequence = new StandardMidiFileReader().getSequence(new ByteArrayInputStream(file));
+    TempoCache tempoCache = new TempoCache(sequence);
+    Track[] tracks = sequence.getTracks();
+    int[] next = new int[tracks.length];
+    MidiSequenceBuilder builder = new MidiSequenceBuilder();
+    while (true) {
+      int t = -1;
+      for (int i = 0; i < tracks.length; ++i) {
+        if (next[i] < tracks[i].size()
+            && (t < 0 || tracks[i].get(next[i]).getTick() < tracks[t].get(next[t]).getTick())) {
+          t = i;
+        }
+      }
+      if (t < 0) break;
+      MidiEvent event = tracks[t].get(next[t]++);
+      MidiMessage msg = event.getMessage();
+      if (msg instanceof MetaMessage) continue;
+      long time = MidiUtils.tick2microsecond(sequence, event.getTick(), tempoCache);
+      byte[] data = msg.getMessage();
+      if ((data[0] & 0xff) < 0xf0) {
+        int packed = 0;
+        for (int i = msg.getLength() - 1; i >= 0; --i) {
+          packed = (packed << 8) | (data[i] & 0xff);
+        }
+        builder.appendShortMessage(time, packed, msg.getLength());
+      } else {
+        builder.appendSysexMessage(time, data[0] & 0xff, ByteBuffer.wrap(data), 1,
+            msg.getLength() - 1);
+      }
+    }
+    return builder;
+  }
+
+  // Reads the events of a sequence back from its compiled format.
+  private static void assertMatches(MidiSequenceBuilder expected, MidiSequence sequence)
+      throws IOException {
+    int count = expected.getEventCount();
+    long[] times = expected.getTimesArray();
+    int[] offsets = expected.getOffsetsArray();
+    assertEquals(count, sequence.getEventCount());
+    assertEquals((count > 0) ? (times[count - 1] + 500) / 1000 : 0, sequence.getDuration());
+    File file = File.createTempFile("sequence", ".mseq");
+    try {
+      sequence.save(file);
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+        in.skipBytes(16); // Magic number, version, duration.
+        assertEquals(count, in.readInt());
+        assertEquals(offsets[count], in.readInt());
+        for (int i = 0; i < count; ++i) {
+          assertEquals(times[i], in.readLong());
+        }
+        for (int i = 0; i <= count; ++i) {
+          assertEquals(offsets[i], in.readInt());
+        }
+        byte[] data = new byte[offsets[count]];
+        in.readFully(data);
+        assertArrayEquals(Arrays.copyOf(expected.getDataArray(), offsets[count]), data);
+        assertEquals(-1, in.read());
+      } finally {
+        in.close();
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static void assertMatchesReference(byte[] file)
+      throws InvalidMidiDataException, IOException {
+    MidiSequenceBuilder expected = reference(file);
+    assertMatches(expected, new MidiSequence(ByteBuffer.wrap(file), NO_OBSERVER));
+    assertMatches(expected, new MidiSequence(new ByteArrayInputStream(file), NO_OBSERVER));
+  }
+
+  @Test
+  public void testRandomFiles() throws InvalidMidiDataException, IOException {
+    Random random = new Random(1);
+    for (int i = 0; i < 20; ++i) {
+      assertMatchesReference(randomFile(random, 96 + i, 1 + i % 6, 300));
+    }
+  }
+
+  @Test
+  public void testSmpteFile() throws InvalidMidiDataException, IOException {
+    assertMatchesReference(randomFile(new Random(2), (-25 << 8) | 40, 3, 300));
+  }
+
+  @Test
+  public void testTiedTimestampsAcrossTracks() throws InvalidMidiDataException, IOException {
+    byte[] file = file(96,
+        bytes(0, 0xff, 0x51, 3, 0x07, 0xa1, 0x20, 0, 0x90, 60, 100, 96, 0x80, 60, 0, 0, 0xff,
+            0x2f, 0),
+        bytes(0, 0x91, 64, 100, 0, 0xb1, 7, 80, 96, 0x81, 64, 0, 0, 0xff, 0x2f, 0),
+        bytes(0, 0xc2, 5, 0, 0xf0, 2, 0x01, 0xf7, 96, 0x92, 67, 100, 0, 0xff, 0x2f, 0));
+    MidiSequence sequence = new MidiSequence(ByteBuffer.wrap(file), NO_OBSERVER);
+    MidiSequenceBuilder expected = reference(file);
+    assertMatches(expected, sequence);
+
+    // Two events, with the messages of each one in the order of the tracks.
+    assertEquals(2, expected.getEventCount());
+    assertEquals(0, expected.getTimesArray()[0]);
+    assertEquals(500000, expected.getTimesArray()[1]);
+    assertArrayEquals(bytes(0x90, 60, 100, 0x91, 64, 100, 0xb1, 7, 80, 0xc2, 5, 0xf0, 0x01, 0xf7,
+        0x80, 60, 0, 0x81, 64, 0, 0x92, 67, 100), Arrays.copyOf(expected.getDataArray(), 23));
+    assertEquals(14, expected.getOffsetsArray()[1]);
+  }
+
+  @Test
+  public void testTruncatedChunkIsIgnored() throws InvalidMidiDataException, IOException {
+    Random random = new Random(3);
+    byte[] file = file(96, randomTrack(random, 300, true), randomTrack(random, 300, false),
+        randomTrack(random, 300, false));
+    assertMatchesReference(Arrays.copyOf(file, file.length - 100));
+  }
+
+  @Test
+  public void testTruncatedTrack() throws InvalidMidiDataException, IOException {
+    Random random = new Random(4);
+    byte[] truncated = bytes(0, 0x91, 60, 100, 10, 62); // Lacks the last data byte.
+    byte[][] cases = {
+        file(96, truncated, randomTrack(random, 300, false)),
+        file(96, randomTrack(random, 300, true), randomTrack(random, 300, false), truncated),
+        file(96, randomTrack(random, 300, true), randomTrack(random, 300, false),
+            Arrays.copyOf(randomTrack(random, 300, false), 1000))};
+    for (byte[] file : cases) {
+      try {
+        reference(file);
+        fail("Expected EOFException");
+      } catch (EOFException e) {
+        // Expected.
+      }
+      try {
+        new MidiSequence(ByteBuffer.wrap(file), NO_OBSERVER);
+        fail("Expected EOFException");
+      } catch (EOFException e) {
+        // Expected.
+      }
+    }
+  }
+
+  private static class ChaseRecorder implements RawByteReceiver {
+    private byte[] chase = null;
+
+    @Override
+    public void onBytesReceived(int nBytes, byte[] buffer) {
+      if (chase == null) {
+        chase = Arrays.copyOf(buffer, nBytes);
+      }
+    }
+
+    @Override
+    public boolean beginBlock() {
+      return true;
+    }
+
+    @Override
+    public void endBlock() {}
+  }
+
+  // Seeks, starts and immediately pauses playback, and compares the controller state that is sent
+  // first with the state after all events that precede the new position.
+  private static void assertSeekChasesState(MidiSequence sequence, MidiSequenceBuilder expected,
+      long millis) {
+    sequence.seek(millis);
+    assertEquals(millis, sequence.getPosition());
+    ChaseRecorder recorder = new ChaseRecorder();
+    sequence.start(recorder);
+    sequence.pause();
+    assertNotNull(recorder.chase);
+    MidiStateTracker chased = new MidiStateTracker();
+    new FromWireConverter(chased).onBytesReceived(recorder.chase.length, recorder.chase);
+
+    MidiStateTracker tracker = new MidiStateTracker();
+    FromWireConverter fromWire = new FromWireConverter(tracker);
+    long[] times = expected.getTimesArray();
+    int[] offsets = expected.getOffsetsArray();
+    int i = 0;
+    while (times[i] < millis * 1000) {
+      ++i;
+    }
+    fromWire.onBytesReceived(expected.getDataArray(), 0, offsets[i]);
+    for (int ch = 0; ch < 16; ++ch) {
+      assertEquals(tracker.getProgram(ch), chased.getProgram(ch));
+      assertEquals(tracker.getPitchBend(ch), chased.getPitchBend(ch));
+      for (int ctl = 0; ctl < 120; ++ctl) {
+        assertEquals(tracker.getController(ch, ctl), chased.getController(ch, ctl));
+      }
+    }
+  }
+
+  @Test
+  public void testPlaysToTheEnd()
+      throws InvalidMidiDataException, IOException, InterruptedException {
+    byte[] notes = bytes(0x90, 60, 100, 0x80, 60, 0, 0x90, 62, 100, 0x80, 62, 0);
+    byte[] file = file(96, bytes(0, 0x90, 60, 100, 10, 0x80, 60, 0, 10, 0x90, 62, 100, 10, 0x80,
+        62, 0, 0, 0xff, 0x2f, 0));
+    final CountDownLatch finished = new CountDownLatch(1);
+    MidiSequence sequence = new MidiSequence(ByteBuffer.wrap(file), new MidiSequenceObserver() {
+      @Override
+      public void onPlaybackFinished(MidiSequence sequence) {
+        finished.countDown();
+      }
+    });
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    sequence.start(new RawByteReceiver() {
+      @Override
+      public void onBytesReceived(int nBytes, byte[] buffer) {
+        out.write(buffer, 0, nBytes);
+      }
+
+      @Override
+      public boolean beginBlock() {
+        return true;
+      }
+
+      @Override
+      public void endBlock() {}
+    });
+    assertTrue(finished.await(5, TimeUnit.SECONDS));
+    byte[] played = out.toByteArray();
+    assertTrue(played.length >= notes.length);
+    assertArrayEquals(notes, Arrays.copyOfRange(played, played.length - notes.length,
+        played.length));
+  }
+
+  @Test
+  public void testSeekChasesState() throws InvalidMidiDataException, IOException {
+    Random random = new Random(5);
+    byte[] file = randomFile(random, 96, 4, 2000);
+    MidiSequenceBuilder expected = reference(file);
+    MidiSequence sequence = new MidiSequence(ByteBuffer.wrap(file), NO_OBSERVER);
+    long duration = sequence.getDuration();
+    assertSeekChasesState(sequence, expected, duration / 2);
+    for (int i = 0; i < 10; ++i) {
+      assertSeekChasesState(sequence, expected, 1 + (long) (random.nextDouble() * (duration - 1)));
+    }
+
+    // Compiled sequences have their own snapshots.
+    File compiled = File.createTempFile("sequence", ".mseq");
+    try {
+      sequence.save(compiled);
+      sequence = MidiSequence.load(compiled, NO_OBSERVER);
+      assertSeekChasesState(sequence, expected, duration / 3);
+    } finally {
+      compiled.delete();
+    }
+  }
+}